@@ -1,10 +1,11 @@
 package uk.co.davidbaxter.letmepass.crypto.impl;
 
-import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.io.CipherOutputStream;
 import org.bouncycastle.crypto.modes.GCMBlockCipher;
-import org.bouncycastle.crypto.params.AEADParameters;
-import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import uk.co.davidbaxter.letmepass.crypto.Encrypter;
 import uk.co.davidbaxter.letmepass.crypto.IvFactory;
@@ -44,6 +45,7 @@ public class AesGcmEncrypter implements Encrypter {
     private String mp = null; // TODO: store as char[] & wipe?
     private IvFactory ivFactory;
     private int macSizeBits;
+    private GcmEngine engine = GcmEngine.getDefault();
 
     /**
      * Constructs an AesGcmEncrypter with the given KDF and IvFactory, and the default MAC size of
@@ -79,6 +81,17 @@ public class AesGcmEncrypter implements Encrypter {
         this.kdf = kdf;
     }
 
+    /**
+     * Sets the engine used to encrypt and decrypt whole messages; by default, this is
+     * {@link GcmEngine#getDefault()}. The streams always use BouncyCastle, whose
+     * {@link org.bouncycastle.crypto.io.InvalidCipherTextIOException} callers rely on.
+     *
+     * @param engine GCM engine to use
+     */
+    public void setEngine(GcmEngine engine) {
+        this.engine = engine;
+    }
+
     /**
      * Sets the master password of this encrypter and returns the same encrypter (for builder-like
      * pattern).
@@ -95,51 +108,96 @@ public class AesGcmEncrypter implements Encrypter {
         return kdf.derive(mp);
     }
 
-    private byte[] crypt(byte[] input, boolean encrypt) throws DecryptionException {
+    /**
+     * Derives the key from the master password using the KDF. This is useful for callers that
+     * encrypt many messages with {@link #crypt(byte[], byte[], byte[], byte[], int, int, boolean)},
+     * so that the key is only derived once.
+     *
+     * @return Derived key
+     */
+    public byte[] deriveKey() {
+        assert mp != null;
+        return generateMp();
+    }
+
+    /**
+     * Creates a GCM cipher initialized with the derived key and the current IV of the IV factory
+     * @param encrypt True to initialize for encryption, false for decryption
+     * @return Initialized cipher
+     */
+    private GCMBlockCipher newCipher(boolean encrypt) {
         assert mp != null;
 
         // We get the IV from the IV factory, but do not generate it ourselves: this is to allow
         // calling classes the freedom to generate IVs when they desire.
         byte[] nonce = ivFactory.getCurrentIv();
+        return BouncyCastleGcmEngine.newCipher(generateMp(), nonce, new byte[]{}, macSizeBits,
+                encrypt);
+    }
 
-        // Setup AES cipher in GCM mode
-        // N.B. - AESFastEngine has potential side-channel attacks; we do not care about these.
-        GCMBlockCipher gcmCipher = new GCMBlockCipher(new AESFastEngine());
-        KeyParameter keyParam = new KeyParameter(generateMp());
-        AEADParameters aeadParams = new AEADParameters(keyParam, macSizeBits, nonce, new byte[]{});
-
-        // Initialize the cipher with our key, MAC size, and nonce (IV)
-        byte[] output = new byte[gcmCipher.getOutputSize(input.length)];
-        gcmCipher.init(encrypt, aeadParams);
-
-        // Process the bytes and finalize encryption (write MAC)
-        int written = gcmCipher.processBytes(input, 0, input.length, output, 0);
-
-        // Ensure our buffer is still large enough
-        int newBuffSize = gcmCipher.getOutputSize(input.length);
-        if (newBuffSize > output.length) {
-            byte[] newBuff = new byte[newBuffSize];
-            System.arraycopy(output, 0, newBuff, 0, output.length);
-            output = newBuff;
-        }
+    private byte[] crypt(byte[] input, boolean encrypt) throws DecryptionException {
+        assert mp != null;
+        return engine.crypt(generateMp(), ivFactory.getCurrentIv(), new byte[]{}, macSizeBits,
+                input, 0, input.length, encrypt);
+    }
 
-        try {
-            // Do the final operation
-            written += gcmCipher.doFinal(output, written); // `written` is offset to write MAC
-        } catch (InvalidCipherTextException e) {
-            // This should only be thrown on decryption, when the MAC is invalid or some other error
-            // occurred.
-            throw new DecryptionException(e);
-        }
+    /**
+     * Encrypts or decrypts a single message with an explicit key, nonce and associated data,
+     * bypassing the KDF and IV factory of this encrypter entirely. As with all GCM encryption, the
+     * nonce <b>must</b> be unique for each message encrypted with the same key.
+     * <p>
+     * This method does not modify the state of the encrypter, and so may be called from multiple
+     * threads at once.
+     *
+     * @param key AES key
+     * @param nonce Nonce (IV) for this message
+     * @param associatedData Additional data to authenticate alongside the message
+     * @param input Buffer holding the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param offset Offset of the message in `input`
+     * @param length Length of the message in `input`
+     * @param encrypt True to encrypt, false to decrypt
+     * @return The ciphertext & MAC (encryption) or plaintext (decryption)
+     * @throws DecryptionException If decrypting and the message could not be authenticated
+     */
+    public byte[] crypt(byte[] key, byte[] nonce, byte[] associatedData, byte[] input, int offset,
+                        int length, boolean encrypt) throws DecryptionException {
+        return engine.crypt(key, nonce, associatedData, macSizeBits, input, offset, length,
+                encrypt);
+    }
 
-        if (output.length > written) {
-            byte[] onlyCipherText = new byte[written];
-            System.arraycopy(output, 0, onlyCipherText, 0, written);
-            return onlyCipherText;
-        }
+    /**
+     * Encrypts or decrypts a single message as {@link
+     * #crypt(byte[], byte[], byte[], byte[], int, int, boolean)} does, but into a buffer supplied
+     * by the caller, so that callers encrypting many messages can reuse their buffers.
+     *
+     * @param key AES key
+     * @param nonce Nonce (IV) for this message
+     * @param associatedData Additional data to authenticate alongside the message
+     * @param input Buffer holding the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param offset Offset of the message in `input`
+     * @param length Length of the message in `input`
+     * @param output Buffer to write the result to; must have room for
+     *               {@link #getOutputSize(int, boolean)} bytes
+     * @param outputOffset Offset in `output` to write at
+     * @param encrypt True to encrypt, false to decrypt
+     * @return Number of bytes written to `output`
+     * @throws DecryptionException If decrypting and the message could not be authenticated
+     */
+    public int crypt(byte[] key, byte[] nonce, byte[] associatedData, byte[] input, int offset,
+                     int length, byte[] output, int outputOffset, boolean encrypt)
+            throws DecryptionException {
+        return engine.crypt(key, nonce, associatedData, macSizeBits, input, offset, length,
+                output, outputOffset, encrypt);
+    }
 
-        // Return the ciphertext if all went well
-        return output;
+    /**
+     * Gets the length of the result of encrypting or decrypting a message with this encrypter
+     * @param length Length of the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param encrypt True if encrypting, false if decrypting
+     * @return Length of the ciphertext & MAC (encryption) or plaintext (decryption)
+     */
+    public int getOutputSize(int length, boolean encrypt) {
+        return GcmEngine.getOutputSize(length, macSizeBits, encrypt);
     }
 
     @Override
@@ -161,4 +219,34 @@ public class AesGcmEncrypter implements Encrypter {
     public byte[] decrypt(byte[] cipherText) throws DecryptionException {
         return crypt(cipherText, false);
     }
+
+    /**
+     * Wraps an output stream so that everything written to the returned stream is encrypted with
+     * the current IV before being written to `out`. As with {@link #encrypt(byte[])}, the IV is
+     * <b>not</b> re-generated by this method.
+     * <p>
+     * The MAC is only written once the returned stream is closed; closing it also closes `out`.
+     *
+     * @param out Stream to write ciphertext to
+     * @return Stream accepting plaintext
+     */
+    public OutputStream encryptingStream(OutputStream out) {
+        return new CipherOutputStream(out, newCipher(true));
+    }
+
+    /**
+     * Wraps an input stream of ciphertext so that reading from the returned stream yields the
+     * decrypted plaintext, using the current IV.
+     * <p>
+     * Note that plaintext is returned <b>before</b> it has been authenticated: the MAC is only
+     * checked once the end of the stream has been reached, at which point an
+     * {@link org.bouncycastle.crypto.io.InvalidCipherTextIOException} is thrown if it is invalid.
+     * Callers must therefore read the stream to the end before trusting anything read from it.
+     *
+     * @param in Stream to read ciphertext from
+     * @return Stream of plaintext
+     */
+    public InputStream decryptingStream(InputStream in) {
+        return new CipherInputStream(in, newCipher(false));
+    }
 }
@@ -0,0 +1,84 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+/**
+ * Chooses the parameters of Argon2 for this device, by timing key derivation on it. The same
+ * parameters take many times longer on a low-end device than on a high-end one, so fixed
+ * parameters either make unlocking slow on the former or leave the key under-protected on the
+ * latter.
+ * <p>
+ * All of the device's cores are used, and as much memory as allowed, unless a single pass over
+ * that memory would take too long, in which case the memory is halved until it does not. As many
+ * iterations are then performed as fit in the target time.
+ * <p>
+ * Calibration derives several keys, so takes a few times the target time: it must not be run on
+ * the main thread.
+ */
+public class Argon2Calibrator {
+
+    /** Default time to spend deriving a key, i.e. unlocking the database */
+    public static final long DEFAULT_TARGET_MILLIS = 1000;
+
+    private static final int MIN_MEMORY = 16384;     // 16MiB
+    private static final int MIN_ITERATIONS = 2;
+    private static final int MAX_ITERATIONS = 100;
+    private static final int SALT_LEN = 16;
+    private static final int HASH_LEN = 32;
+    private static final int MEASUREMENTS = 2; // Best of, as the first run pays to map the memory
+    private static final String INPUT = "calibration";
+
+    private final long targetMillis;
+    private final int maxMemory;
+
+    /**
+     * Creates a calibrator
+     *
+     * @param targetMillis Time that deriving a key should take, in milliseconds
+     * @param maxMemory Most memory in KiB that Argon2 may use; at least 16MiB is always used
+     */
+    public Argon2Calibrator(long targetMillis, int maxMemory) {
+        if (targetMillis <= 0)
+            throw new IllegalArgumentException("Target time must be positive");
+
+        this.targetMillis = targetMillis;
+        this.maxMemory = Math.max(maxMemory, MIN_MEMORY);
+    }
+
+    /**
+     * Times key derivation on this device to choose the parameters that take the target time
+     * @return Parameters for this device
+     */
+    public Argon2Parameters calibrate() {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        // Find the most memory we can pass over in the time of an iteration
+        long maxPassNanos = targetMillis * 1000000 / MIN_ITERATIONS;
+        int memory = maxMemory;
+        long passNanos = timePass(memory, parallelism);
+        while (passNanos > maxPassNanos && memory / 2 >= MIN_MEMORY) {
+            memory /= 2;
+            passNanos = timePass(memory, parallelism);
+        }
+
+        long iterations = targetMillis * 1000000 / Math.max(passNanos, 1);
+        iterations = Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+        return new Argon2Parameters((int) iterations, memory, parallelism);
+    }
+
+    /**
+     * Times a single pass of Argon2 over the given memory
+     * @return Fastest time of a pass, in nanoseconds
+     */
+    private static long timePass(int memory, int parallelism) {
+        Argon2KeyDerivationFunction kdf = new Argon2KeyDerivationFunction(1, memory, parallelism,
+                SALT_LEN, HASH_LEN);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            long start = System.nanoTime();
+            kdf.derive(INPUT);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+
+}
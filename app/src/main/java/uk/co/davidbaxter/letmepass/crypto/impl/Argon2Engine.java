@@ -0,0 +1,38 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+/**
+ * An implementation of the Argon2d hashing function, as used by
+ * {@link Argon2KeyDerivationFunction}. All engines produce the same hashes for the same input, so
+ * data can be encrypted with one and decrypted with another.
+ */
+public abstract class Argon2Engine {
+
+    private static Argon2Engine defaultEngine = null;
+
+    /**
+     * Hashes an input with Argon2d (version 1.3)
+     *
+     * @param parameters Cost parameters of Argon2
+     * @param input Input to hash, encoded in UTF-8
+     * @param salt Salt to hash with
+     * @param hashLen Length of hash to generate in bytes
+     * @return Raw hash
+     */
+    public abstract byte[] hash(Argon2Parameters parameters, String input, byte[] salt,
+                                int hashLen);
+
+    /**
+     * Gets the engine to use by default: the native library if it can be loaded on this platform,
+     * or otherwise the pure-Java implementation
+     * @return Default engine
+     */
+    public static synchronized Argon2Engine getDefault() {
+        if (defaultEngine == null) {
+            defaultEngine = NativeArgon2Engine.isAvailable() ? new NativeArgon2Engine()
+                    : new JavaArgon2Engine();
+        }
+
+        return defaultEngine;
+    }
+
+}
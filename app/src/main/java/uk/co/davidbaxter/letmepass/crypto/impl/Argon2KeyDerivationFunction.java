@@ -1,28 +1,25 @@
 package uk.co.davidbaxter.letmepass.crypto.impl;
 
-import java.nio.charset.Charset;
 import java.security.SecureRandom;
 
-import de.mkammerer.argon2.Argon2Advanced;
-import de.mkammerer.argon2.Argon2Factory;
 import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
 
 /**
  * An implementation of a {@link KeyDerivationFunction} using the Argon2(i) hashing function (the
  * winner of the Password Hashing Contest).
  * <p>
- * This class relies on a library that utilizes native binaries. In particular, the binaries for
- * libargon2 and libjnidispatch <b>must</b> be bundled with the final application.
+ * Hashes are computed by an {@link Argon2Engine}: by default, the native library if its binaries
+ * (libargon2 and libjnidispatch) are bundled for the platform, or otherwise a pure-Java
+ * implementation, which produces the same hashes.
  * <p>
  * Argon2d is used in this class due to its resistance to GPU cracking attacks, and the lack of a
  * need for prevention of timing attacks (since we are not a server).
  */
 public class Argon2KeyDerivationFunction implements KeyDerivationFunction {
 
-    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
-
     private SecureRandom saltRandom = new SecureRandom();
-    private Argon2Advanced argon;
+    private Argon2Engine engine = Argon2Engine.getDefault();
+    private int hashLen;
     private int iterations;
     private int memory;
     private int parallelism;
@@ -43,6 +40,18 @@ public class Argon2KeyDerivationFunction implements KeyDerivationFunction {
         this.regenerateSalt();
     }
 
+    /**
+     * Creates a new Argon2 KDF using the provided parameters, generating the salt randomly
+     *
+     * @param parameters Cost parameters of Argon2 (e.g. from {@link Argon2Calibrator})
+     * @param saltLen Length of salt in bytes
+     * @param hashLen Length of hash to generate in bytes
+     */
+    public Argon2KeyDerivationFunction(Argon2Parameters parameters, int saltLen, int hashLen) {
+        this(parameters.getIterations(), parameters.getMemory(), parameters.getParallelism(),
+                saltLen, hashLen);
+    }
+
     /**
      * Creates a new Argon2 KDF using the provided parameters and an initial salt
      *
@@ -54,10 +63,7 @@ public class Argon2KeyDerivationFunction implements KeyDerivationFunction {
      */
     public Argon2KeyDerivationFunction(int iterations, int memory, int parallelism, byte[] salt,
                                        int hashLen) {
-        this.argon = Argon2Factory.createAdvanced(
-                Argon2Factory.Argon2Types.ARGON2d,
-                salt.length,
-                hashLen);
+        this.hashLen = hashLen;
         this.iterations = iterations;
         this.memory = memory;
         this.parallelism = parallelism;
@@ -124,9 +130,18 @@ public class Argon2KeyDerivationFunction implements KeyDerivationFunction {
         this.saltRandom.nextBytes(this.salt);
     }
 
+    /**
+     * Sets the engine to compute hashes with, e.g. to compare engines
+     * @param engine Engine to use
+     */
+    public void setEngine(Argon2Engine engine) {
+        this.engine = engine;
+    }
+
     @Override
     public byte[] derive(String input) {
-        return argon.rawHash(iterations, memory, parallelism, input, CHARSET_UTF8, salt);
+        return engine.hash(new Argon2Parameters(iterations, memory, parallelism), input, salt,
+                hashLen);
     }
 
 }
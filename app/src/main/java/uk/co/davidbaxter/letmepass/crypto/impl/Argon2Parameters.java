@@ -0,0 +1,62 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+/**
+ * The cost parameters of Argon2 (see {@link Argon2KeyDerivationFunction}): the number of
+ * iterations, the amount of memory and the degree of parallelism. These determine how long a key
+ * takes to derive, and so how long the database takes to unlock.
+ *
+ * @see Argon2Calibrator
+ */
+public class Argon2Parameters {
+
+    private final int iterations;
+    private final int memory;
+    private final int parallelism;
+
+    /**
+     * Creates a set of Argon2 parameters
+     *
+     * @param iterations Number of iterations to perform
+     * @param memory Amount of memory in KiB to use
+     * @param parallelism Degree of parallelism (number of threads)
+     */
+    public Argon2Parameters(int iterations, int memory, int parallelism) {
+        if (iterations < 1 || parallelism < 1 || memory < 8 * parallelism)
+            throw new IllegalArgumentException("Invalid Argon2 parameters");
+
+        this.iterations = iterations;
+        this.memory = memory;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets the number of iterations
+     * @return Iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Gets the amount of memory to use in KiB
+     * @return Memory
+     */
+    public int getMemory() {
+        return memory;
+    }
+
+    /**
+     * Gets the degree of parallelism (i.e. # threads)
+     * @return Parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public String toString() {
+        return "Argon2Parameters(iterations=" + iterations + ", memory=" + memory
+                + ", parallelism=" + parallelism + ")";
+    }
+
+}
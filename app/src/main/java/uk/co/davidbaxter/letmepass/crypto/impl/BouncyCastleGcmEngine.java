@@ -0,0 +1,99 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * A {@link GcmEngine} using BouncyCastle's software implementation of AES and GHASH. This works on
+ * every platform, but is several times slower than a hardware-accelerated provider.
+ * <p>
+ * Each thread keeps a cipher, and a copy of the last key it used, so that encrypting many messages
+ * with the same key only sets up the key once.
+ */
+public class BouncyCastleGcmEngine extends GcmEngine {
+
+    private final ThreadCiphers<GCMBlockCipher> ciphers = new ThreadCiphers<>();
+
+    /**
+     * Creates a GCM cipher initialized with the given key, nonce, and associated data
+     * @param key AES key
+     * @param nonce Nonce (IV) to use
+     * @param associatedData Additional data to authenticate (but not encrypt)
+     * @param macSizeBits Size of the MAC (GCM tag) in bits
+     * @param encrypt True to initialize for encryption, false for decryption
+     * @return Initialized cipher
+     */
+    public static GCMBlockCipher newCipher(byte[] key, byte[] nonce, byte[] associatedData,
+                                           int macSizeBits, boolean encrypt) {
+        // Setup AES cipher in GCM mode
+        // N.B. - AESFastEngine has potential side-channel attacks; we do not care about these.
+        GCMBlockCipher gcmCipher = new GCMBlockCipher(new AESFastEngine());
+        KeyParameter keyParam = new KeyParameter(key);
+        AEADParameters aeadParams = new AEADParameters(keyParam, macSizeBits, nonce,
+                associatedData);
+
+        // Initialize the cipher with our key, MAC size, and nonce (IV)
+        gcmCipher.init(encrypt, aeadParams);
+        return gcmCipher;
+    }
+
+    @Override
+    protected int doCrypt(byte[] key, byte[] nonce, byte[] associatedData, int macSizeBits,
+                          byte[] input, int offset, int length, byte[] output, int outputOffset,
+                          boolean encrypt) throws DecryptionException {
+        GCMBlockCipher gcmCipher = getCipher(key, nonce, associatedData, macSizeBits, encrypt);
+
+        // Process the bytes and finalize encryption (write MAC)
+        int written = gcmCipher.processBytes(input, offset, length, output, outputOffset);
+        try {
+            // Do the final operation
+            written += gcmCipher.doFinal(output, outputOffset + written);
+        } catch (InvalidCipherTextException e) {
+            // This should only be thrown on decryption, when the MAC is invalid or some other error
+            // occurred.
+            throw new DecryptionException(e);
+        }
+
+        return written;
+    }
+
+    /**
+     * Gets the cipher of this thread, initialized with the given key, nonce, and associated data
+     */
+    private GCMBlockCipher getCipher(byte[] key, byte[] nonce, byte[] associatedData,
+                                     int macSizeBits, boolean encrypt) {
+        GCMBlockCipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = newCipher(key, nonce, associatedData, macSizeBits, encrypt);
+            ciphers.set(cipher, key);
+            return cipher;
+        }
+
+        // Setting the key recomputes the AES key schedule and GHASH tables, so only set it if it
+        // differs from the last message's (a null key means keep the current one)
+        boolean sameKey = ciphers.hasKey(key);
+        KeyParameter keyParam = sameKey ? null : new KeyParameter(key);
+        try {
+            cipher.init(encrypt, new AEADParameters(keyParam, macSizeBits, nonce,
+                    associatedData));
+        } catch (IllegalArgumentException e) {
+            // BouncyCastle refuses to encrypt twice in a row with the same key and nonce on a
+            // cipher. Keeping nonces unique is up to our callers, so start with a fresh cipher.
+            cipher = newCipher(key, nonce, associatedData, macSizeBits, encrypt);
+            sameKey = false;
+        }
+
+        if (!sameKey)
+            ciphers.set(cipher, key);
+        return cipher;
+    }
+
+    @Override
+    public void wipe() {
+        ciphers.clear();
+    }
+
+}
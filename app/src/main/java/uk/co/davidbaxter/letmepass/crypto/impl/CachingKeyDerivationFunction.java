@@ -0,0 +1,41 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
+
+/**
+ * A {@link KeyDerivationFunction} that wraps an {@link Argon2KeyDerivationFunction}, looking up
+ * derived keys in a {@link DerivedKeyCache} before deriving them. The cache is keyed on the input
+ * and the current salt & Argon2 parameters of the wrapped KDF, so changes to these (e.g. a
+ * regenerated salt) result in a fresh derivation.
+ */
+public class CachingKeyDerivationFunction implements KeyDerivationFunction {
+
+    private final Argon2KeyDerivationFunction kdf;
+    private final DerivedKeyCache cache;
+
+    /**
+     * Creates a caching KDF
+     * @param kdf KDF to derive keys with on a cache miss
+     * @param cache Cache to store derived keys in
+     */
+    public CachingKeyDerivationFunction(Argon2KeyDerivationFunction kdf, DerivedKeyCache cache) {
+        this.kdf = kdf;
+        this.cache = cache;
+    }
+
+    @Override
+    public byte[] derive(String input) {
+        byte[] salt = kdf.getSalt();
+        byte[] key = cache.get(input, salt, kdf.getIterations(), kdf.getMemory(),
+                kdf.getParallelism());
+
+        if (key == null) {
+            key = kdf.derive(input);
+            cache.put(input, salt, kdf.getIterations(), kdf.getMemory(), kdf.getParallelism(),
+                    key);
+        }
+
+        return key;
+    }
+
+}
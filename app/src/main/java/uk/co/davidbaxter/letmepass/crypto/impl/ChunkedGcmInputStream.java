@@ -0,0 +1,192 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream that decrypts a stream of chunks written by {@link ChunkedGcmOutputStream}.
+ * Chunks are read ahead and decrypted in parallel on an executor, and their plaintext returned in
+ * order.
+ * <p>
+ * Unlike a single GCM message, each chunk is authenticated before any of its plaintext is
+ * returned, so data read from this stream can be trusted as soon as it is read. The first bytes of
+ * plaintext are available once the first chunk has been decrypted, regardless of the length of
+ * the stream. If a chunk fails to authenticate, or the stream has been truncated, reading throws
+ * an {@link InvalidCipherTextIOException}.
+ */
+public class ChunkedGcmInputStream extends InputStream {
+
+    private final InputStream in;
+    private final AesGcmEncrypter encrypter;
+    private final byte[] key;
+    private final byte[] baseIv;
+    private final byte[] header;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<ChunkedGcmOutputStream.Chunk>> pending = new ArrayDeque<>();
+    private final Deque<ChunkedGcmOutputStream.Chunk> free = new ArrayDeque<>(); // Read chunks
+
+    /** Ciphertext of the next chunk, read ahead so we know whether the current one is the last */
+    private ChunkedGcmOutputStream.Chunk nextChunk = null;
+    private int chunkIndex = 0;
+    private boolean started = false;
+    private boolean submittedLast = false;
+
+    private ChunkedGcmOutputStream.Chunk current = null;
+    private int position = 0;
+
+    /**
+     * Creates a new chunked input stream
+     *
+     * @param in Stream of encrypted chunks
+     * @param encrypter Encrypter to decrypt chunks with (its KDF and IV factory are not used)
+     * @param key AES key
+     * @param baseIv IV from which the nonce of each chunk is derived
+     * @param header Header authenticated with every chunk
+     * @param chunkSize Number of bytes of plaintext in each chunk
+     * @param executor Executor to decrypt chunks on
+     * @param maxPending Maximum number of chunks to read ahead
+     */
+    public ChunkedGcmInputStream(InputStream in, AesGcmEncrypter encrypter, byte[] key,
+                                 byte[] baseIv, byte[] header, int chunkSize,
+                                 ExecutorService executor, int maxPending) {
+        if (chunkSize <= 0 || maxPending <= 0)
+            throw new IllegalArgumentException("Chunk size and max pending must be positive");
+
+        this.in = in;
+        this.encrypter = encrypter;
+        this.key = key;
+        this.baseIv = baseIv;
+        this.header = header;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        // Move on to the next chunk(s) if we have exhausted this one
+        while (available() == 0) {
+            if (!nextPlaintext())
+                return -1;
+        }
+
+        int n = Math.min(len, current.plaintextLength - position);
+        System.arraycopy(current.plaintext, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.plaintextLength - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<ChunkedGcmOutputStream.Chunk> future : pending)
+            future.cancel(false);
+        pending.clear();
+        in.close();
+    }
+
+    /**
+     * Replaces the current plaintext with that of the next chunk
+     * @return False if there are no more chunks
+     * @throws IOException If the next chunk could not be read or authenticated
+     */
+    private boolean nextPlaintext() throws IOException {
+        // The current chunk has been read, so its buffers may be reused for those read ahead
+        if (current != null) {
+            free.addLast(current);
+            current = null;
+        }
+
+        fillPending();
+        if (pending.isEmpty())
+            return false;
+
+        try {
+            current = pending.removeFirst().get();
+            position = 0;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while decrypting", e);
+        } catch (ExecutionException e) {
+            throw new InvalidCipherTextIOException("Failed to authenticate chunk", e.getCause());
+        }
+
+        // Top up the read-ahead now that there is room
+        fillPending();
+        return true;
+    }
+
+    /** Reads chunks and submits them for decryption until we have as many as we may hold */
+    private void fillPending() throws IOException {
+        if (!started) {
+            started = true;
+            readNextChunk();
+        }
+
+        while (pending.size() < maxPending && !submittedLast) {
+            if (nextChunk == null)
+                throw new InvalidCipherTextIOException("Stream truncated", null);
+
+            // Read ahead: the current chunk is the last if there is nothing after it
+            final ChunkedGcmOutputStream.Chunk chunk = nextChunk;
+            readNextChunk();
+
+            final boolean last = nextChunk == null;
+            final int index = chunkIndex++;
+            submittedLast = last;
+            pending.addLast(executor.submit(new Callable<ChunkedGcmOutputStream.Chunk>() {
+                @Override
+                public ChunkedGcmOutputStream.Chunk call() throws Exception {
+                    HybridIvFactory.offsetIv(baseIv, index, chunk.nonce, 0);
+                    chunk.plaintextLength = encrypter.crypt(key, chunk.nonce,
+                            ChunkedGcmOutputStream.getAssociatedData(header, index, last),
+                            chunk.ciphertext, 0, chunk.ciphertextLength, chunk.plaintext, 0,
+                            false);
+                    return chunk;
+                }
+            }));
+        }
+    }
+
+    /** Reads the next chunk of ciphertext, setting it to null if the end of stream is reached */
+    private void readNextChunk() throws IOException {
+        ChunkedGcmOutputStream.Chunk chunk = free.isEmpty()
+                ? new ChunkedGcmOutputStream.Chunk(chunkSize) : free.removeFirst();
+        byte[] buff = chunk.ciphertext;
+        int length = 0;
+        int read;
+        while (length < buff.length && (read = in.read(buff, length, buff.length - length)) != -1)
+            length += read;
+
+        chunk.ciphertextLength = length;
+        if (length == 0) {
+            free.addLast(chunk);
+            nextChunk = null;
+        } else {
+            nextChunk = chunk;
+        }
+    }
+
+}
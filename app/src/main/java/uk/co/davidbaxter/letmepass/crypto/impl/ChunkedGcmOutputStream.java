@@ -0,0 +1,199 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An output stream that splits everything written to it into fixed-size chunks, and encrypts each
+ * chunk as a separate AES-GCM message. Chunks are encrypted in parallel on an executor, and
+ * written to the underlying stream in order.
+ * <p>
+ * Each chunk is written as its ciphertext followed by its MAC. Every chunk but the last contains
+ * exactly `chunkSize` bytes of plaintext; the last contains the remainder (possibly none), and is
+ * written when the stream is closed. Chunks are bound to their position in the stream so that they
+ * cannot be reordered, dropped, or truncated without detection:
+ * <ul>
+ *     <li>The nonce of chunk i is the base IV with i added to its counter (see
+ *     {@link HybridIvFactory#offsetIv(byte[], int)})</li>
+ *     <li>The associated data of each chunk is a header (e.g. a file header) followed by the chunk
+ *     index (uint32_t, big-endian) and a flag (uint8_t) set to 1 for the last chunk only</li>
+ * </ul>
+ * The stream may be read back with {@link ChunkedGcmInputStream}.
+ */
+public class ChunkedGcmOutputStream extends OutputStream {
+
+    /** Length of the MAC appended to each chunk in bytes */
+    public static final int MAC_LENGTH = 16;
+
+    private final OutputStream out;
+    private final AesGcmEncrypter encrypter;
+    private final byte[] key;
+    private final byte[] baseIv;
+    private final byte[] header;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    private final Deque<Chunk> free = new ArrayDeque<>(); // Written chunks, to be reused
+
+    private Chunk chunk;
+    private int chunkIndex = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new chunked output stream
+     *
+     * @param out Stream to write encrypted chunks to
+     * @param encrypter Encrypter to encrypt chunks with (its KDF and IV factory are not used)
+     * @param key AES key
+     * @param baseIv IV from which the nonce of each chunk is derived
+     * @param header Header to authenticate with every chunk
+     * @param chunkSize Number of bytes of plaintext in each chunk
+     * @param executor Executor to encrypt chunks on
+     * @param maxPending Maximum number of chunks to hold in memory while they are encrypted
+     */
+    public ChunkedGcmOutputStream(OutputStream out, AesGcmEncrypter encrypter, byte[] key,
+                                  byte[] baseIv, byte[] header, int chunkSize,
+                                  ExecutorService executor, int maxPending) {
+        if (chunkSize <= 0 || maxPending <= 0)
+            throw new IllegalArgumentException("Chunk size and max pending must be positive");
+
+        this.out = out;
+        this.encrypter = encrypter;
+        this.key = key;
+        this.baseIv = baseIv;
+        this.header = header;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.chunk = new Chunk(chunkSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+
+        while (len > 0) {
+            // Submit the current chunk once full; we never know whether it is the last until close
+            if (chunk.plaintextLength == chunk.plaintext.length)
+                submitChunk(false);
+
+            int n = Math.min(len, chunk.plaintext.length - chunk.plaintextLength);
+            System.arraycopy(b, off, chunk.plaintext, chunk.plaintextLength, n);
+            chunk.plaintextLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only completed chunks can be written, so we can only flush what has been encrypted
+        out.flush();
+    }
+
+    /**
+     * Encrypts and writes the last chunk and any chunks still being encrypted, then closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        submitChunk(true);
+        while (!pending.isEmpty())
+            writeNextChunk();
+
+        closed = true;
+        out.close();
+    }
+
+    /** Submits the current chunk for encryption, writing out completed chunks to make room */
+    private void submitChunk(final boolean last) throws IOException {
+        while (pending.size() >= maxPending)
+            writeNextChunk();
+
+        final Chunk submitted = chunk;
+        final int index = chunkIndex++;
+        pending.addLast(executor.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws Exception {
+                HybridIvFactory.offsetIv(baseIv, index, submitted.nonce, 0);
+                submitted.ciphertextLength = encrypter.crypt(key, submitted.nonce,
+                        getAssociatedData(header, index, last), submitted.plaintext, 0,
+                        submitted.plaintextLength, submitted.ciphertext, 0, true);
+                return submitted;
+            }
+        }));
+
+        // The submitted chunk now belongs to the task; carry on in one that has been written
+        chunk = free.isEmpty() ? new Chunk(submitted.plaintext.length) : free.removeFirst();
+        chunk.plaintextLength = 0;
+    }
+
+    /** Waits for the oldest pending chunk to be encrypted and writes it */
+    private void writeNextChunk() throws IOException {
+        try {
+            Chunk written = pending.removeFirst().get();
+            out.write(written.ciphertext, 0, written.ciphertextLength);
+            free.addLast(written);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while encrypting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encrypt chunk", e.getCause());
+        }
+    }
+
+    /**
+     * Builds the associated data authenticated with a chunk
+     *
+     * @param header Header authenticated with every chunk
+     * @param index Index of the chunk
+     * @param last Whether this is the last chunk in the stream
+     * @return Associated data for the chunk
+     */
+    static byte[] getAssociatedData(byte[] header, int index, boolean last) {
+        return ByteBuffer.allocate(header.length + 5)
+                .order(ByteOrder.BIG_ENDIAN)
+                .put(header)
+                .putInt(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    /**
+     * Buffers for the nonce, plaintext and ciphertext of a chunk. Streams only allocate as many of these
+     * as they hold chunks at once, reusing them for later chunks (see also
+     * {@link ChunkedGcmInputStream}).
+     */
+    static class Chunk {
+        final byte[] nonce = new byte[HybridIvFactory.IV_LENGTH];
+        final byte[] plaintext;
+        final byte[] ciphertext;
+        int plaintextLength = 0;
+        int ciphertextLength = 0;
+
+        /**
+         * Creates the buffers of a chunk
+         * @param chunkSize Number of bytes of plaintext in a (full) chunk
+         */
+        Chunk(int chunkSize) {
+            plaintext = new byte[chunkSize];
+            ciphertext = new byte[chunkSize + MAC_LENGTH];
+        }
+    }
+
+}
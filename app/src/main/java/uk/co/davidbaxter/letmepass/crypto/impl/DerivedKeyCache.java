@@ -0,0 +1,115 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of keys derived from passwords, so that expensive key derivation (e.g. Argon2) need only
+ * be performed once for a given password and set of KDF parameters.
+ * <p>
+ * Keys are held in memory until {@link #clear()} is called, at which point they are zeroed. A
+ * cache should therefore be scoped to a session, and cleared as soon as the session ends.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DerivedKeyCache {
+
+    private final Map<Parameters, byte[]> keys = new HashMap<>();
+
+    /**
+     * Gets (a copy of) a cached key
+     *
+     * @param input Input (password) from which the key was derived
+     * @param salt Salt used in derivation
+     * @param iterations Number of KDF iterations
+     * @param memory KDF memory cost in KiB
+     * @param parallelism KDF degree of parallelism
+     * @return A copy of the cached key, or null if there is no key cached for these parameters
+     */
+    public synchronized byte[] get(String input, byte[] salt, int iterations, int memory,
+                                   int parallelism) {
+        byte[] key = keys.get(new Parameters(input, salt, iterations, memory, parallelism));
+        return key == null ? null : Arrays.copyOf(key, key.length);
+    }
+
+    /**
+     * Caches (a copy of) a derived key
+     *
+     * @param input Input (password) from which the key was derived
+     * @param salt Salt used in derivation
+     * @param iterations Number of KDF iterations
+     * @param memory KDF memory cost in KiB
+     * @param parallelism KDF degree of parallelism
+     * @param key The derived key
+     */
+    public synchronized void put(String input, byte[] salt, int iterations, int memory,
+                                 int parallelism, byte[] key) {
+        byte[] old = keys.put(new Parameters(input, salt, iterations, memory, parallelism),
+                Arrays.copyOf(key, key.length));
+        if (old != null)
+            Arrays.fill(old, (byte) 0);
+    }
+
+    /**
+     * Zeroes and removes all cached keys
+     */
+    public synchronized void clear() {
+        for (byte[] key : keys.values())
+            Arrays.fill(key, (byte) 0);
+        keys.clear();
+    }
+
+    /**
+     * Gets the number of cached keys
+     * @return Number of keys in the cache
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /** The inputs to a key derivation, used as the key of the cache map */
+    private static class Parameters {
+
+        private final String input;
+        private final byte[] salt;
+        private final int iterations;
+        private final int memory;
+        private final int parallelism;
+
+        Parameters(String input, byte[] salt, int iterations, int memory, int parallelism) {
+            this.input = input;
+            this.salt = Arrays.copyOf(salt, salt.length);
+            this.iterations = iterations;
+            this.memory = memory;
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Parameters))
+                return false;
+
+            Parameters other = (Parameters) o;
+            return iterations == other.iterations
+                    && memory == other.memory
+                    && parallelism == other.parallelism
+                    && Arrays.equals(salt, other.salt)
+                    && (input == null ? other.input == null : input.equals(other.input));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = input == null ? 0 : input.hashCode();
+            result = 31 * result + Arrays.hashCode(salt);
+            result = 31 * result + iterations;
+            result = 31 * result + memory;
+            result = 31 * result + parallelism;
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,199 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * An implementation of AES in Galois/Counter Mode, as used by {@link AesGcmEncrypter}. All engines
+ * produce the same ciphertext and MAC for the same input, so data can be encrypted with one and
+ * decrypted with another.
+ * <p>
+ * Engines may keep a cipher for each thread that uses them, re-initializing it for each message
+ * rather than creating a new one, so messages may be encrypted from any number of threads at once.
+ * A thread's cipher is only re-keyed when the key differs from its last message's, so each thread
+ * keeps a copy of its last key until {@link #wipe()} is called.
+ */
+public abstract class GcmEngine {
+
+    private static GcmEngine defaultEngine = null;
+
+    /**
+     * Encrypts or decrypts a single message into a buffer supplied by the caller. Nothing is
+     * allocated for the message itself, so this is preferred when encrypting many messages.
+     *
+     * @param key AES key
+     * @param nonce Nonce (IV) for this message
+     * @param associatedData Additional data to authenticate alongside the message
+     * @param macSizeBits Size of the MAC (GCM tag) in bits
+     * @param input Buffer holding the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param offset Offset of the message in `input`
+     * @param length Length of the message in `input`
+     * @param output Buffer to write the ciphertext & MAC (encryption) or plaintext (decryption) to;
+     *               must have room for {@link #getOutputSize(int, int, boolean)} bytes
+     * @param outputOffset Offset in `output` to write at
+     * @param encrypt True to encrypt, false to decrypt
+     * @return Number of bytes written to `output`
+     * @throws DecryptionException If decrypting and the message could not be authenticated
+     */
+    public int crypt(byte[] key, byte[] nonce, byte[] associatedData, int macSizeBits,
+                     byte[] input, int offset, int length, byte[] output, int outputOffset,
+                     boolean encrypt) throws DecryptionException {
+        if (output.length - outputOffset < getOutputSize(length, macSizeBits, encrypt))
+            throw new IllegalArgumentException("Output buffer too small");
+
+        return doCrypt(key, nonce, associatedData, macSizeBits, input, offset, length, output,
+                outputOffset, encrypt);
+    }
+
+    /**
+     * Encrypts or decrypts a single message
+     *
+     * @param key AES key
+     * @param nonce Nonce (IV) for this message
+     * @param associatedData Additional data to authenticate alongside the message
+     * @param macSizeBits Size of the MAC (GCM tag) in bits
+     * @param input Buffer holding the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param offset Offset of the message in `input`
+     * @param length Length of the message in `input`
+     * @param encrypt True to encrypt, false to decrypt
+     * @return The ciphertext & MAC (encryption) or plaintext (decryption)
+     * @throws DecryptionException If decrypting and the message could not be authenticated
+     */
+    public byte[] crypt(byte[] key, byte[] nonce, byte[] associatedData, int macSizeBits,
+                        byte[] input, int offset, int length, boolean encrypt)
+            throws DecryptionException {
+        byte[] output = new byte[getOutputSize(length, macSizeBits, encrypt)];
+        doCrypt(key, nonce, associatedData, macSizeBits, input, offset, length, output, 0,
+                encrypt);
+        return output;
+    }
+
+    /**
+     * Encrypts or decrypts a single message into a buffer known to be large enough
+     * @see #crypt(byte[], byte[], byte[], int, byte[], int, int, byte[], int, boolean)
+     */
+    protected abstract int doCrypt(byte[] key, byte[] nonce, byte[] associatedData,
+                                   int macSizeBits, byte[] input, int offset, int length,
+                                   byte[] output, int outputOffset, boolean encrypt)
+            throws DecryptionException;
+
+    /**
+     * Zeroes the copies of the last keys of every thread that has used this engine, and drops
+     * their ciphers; e.g. once a session is discarded. Threads create new ciphers as needed.
+     */
+    public abstract void wipe();
+
+    /**
+     * Gets the length of the result of encrypting or decrypting a message
+     *
+     * @param length Length of the plaintext (encryption) or ciphertext & MAC (decryption)
+     * @param macSizeBits Size of the MAC (GCM tag) in bits
+     * @param encrypt True if encrypting, false if decrypting
+     * @return Length of the ciphertext & MAC (encryption) or plaintext (decryption)
+     */
+    public static int getOutputSize(int length, int macSizeBits, boolean encrypt) {
+        return encrypt ? length + macSizeBits / 8 : Math.max(0, length - macSizeBits / 8);
+    }
+
+    /**
+     * Gets the engine to use by default: the platform's provider if it supports AES/GCM correctly
+     * (it is usually hardware-accelerated), or otherwise BouncyCastle
+     * @return Default engine
+     */
+    public static synchronized GcmEngine getDefault() {
+        if (defaultEngine == null) {
+            BouncyCastleGcmEngine bouncyCastle = new BouncyCastleGcmEngine();
+            defaultEngine = JcaGcmEngine.isAvailable(bouncyCastle) ? new JcaGcmEngine(bouncyCastle)
+                    : bouncyCastle;
+        }
+
+        return defaultEngine;
+    }
+
+    /**
+     * The cipher of each thread using an engine, and the key it was last initialized with, kept so
+     * that all of them can be wiped at once (see {@link #wipe()}). Threads only ever use their own
+     * cipher.
+     *
+     * @param <C> Type of cipher
+     */
+    protected static class ThreadCiphers<C> {
+
+        /** Slots of all threads; weak, so that the slots of finished threads are forgotten */
+        private final Set<Slot<C>> slots = Collections.synchronizedSet(
+                Collections.newSetFromMap(new WeakHashMap<Slot<C>, Boolean>()));
+        private final ThreadLocal<Slot<C>> slot = new ThreadLocal<Slot<C>>() {
+            @Override
+            protected Slot<C> initialValue() {
+                Slot<C> slot = new Slot<>();
+                slots.add(slot);
+                return slot;
+            }
+        };
+
+        /**
+         * Gets the cipher of this thread
+         * @return Cipher, or null if this thread has none (e.g. since it was wiped)
+         */
+        public C get() {
+            return slot.get().cipher;
+        }
+
+        /**
+         * Checks whether the cipher of this thread was last initialized with the given key
+         * @param key AES key
+         * @return Whether the key is the same
+         */
+        public boolean hasKey(byte[] key) {
+            Slot<C> slot = this.slot.get();
+            synchronized (slot) {
+                return slot.cipher != null && Arrays.equals(slot.key, key);
+            }
+        }
+
+        /**
+         * Sets the cipher of this thread, and the key it has been initialized with
+         * @param cipher Cipher to keep
+         * @param key AES key of the cipher, which is copied
+         */
+        public void set(C cipher, byte[] key) {
+            Slot<C> slot = this.slot.get();
+            synchronized (slot) {
+                // Copy over the last key if it is the same length, rather than leaving it behind
+                if (slot.key != null && slot.key.length == key.length) {
+                    System.arraycopy(key, 0, slot.key, 0, key.length);
+                } else {
+                    if (slot.key != null)
+                        Arrays.fill(slot.key, (byte) 0);
+                    slot.key = key.clone();
+                }
+                slot.cipher = cipher;
+            }
+        }
+
+        /**
+         * Zeroes the key copies of every thread, and drops their ciphers
+         */
+        public void clear() {
+            synchronized (slots) {
+                for (Slot<C> slot : slots) {
+                    synchronized (slot) {
+                        if (slot.key != null)
+                            Arrays.fill(slot.key, (byte) 0);
+                        slot.key = null;
+                        slot.cipher = null;
+                    }
+                }
+            }
+        }
+
+        private static class Slot<C> {
+            C cipher = null;
+            byte[] key = null;
+        }
+
+    }
+
+}
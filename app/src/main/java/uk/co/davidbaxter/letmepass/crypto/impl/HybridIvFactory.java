@@ -1,7 +1,5 @@
 package uk.co.davidbaxter.letmepass.crypto.impl;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.SecureRandom;
 
 import uk.co.davidbaxter.letmepass.crypto.IvFactory;
@@ -17,14 +15,17 @@ import uk.co.davidbaxter.letmepass.crypto.IvFactory;
  * This combination should ensure that an IV is extremely unlikely to be reused: theoretically, it
  * should take 2^48 generations of IVs with this class to have a 50% chance of generating an IV that
  * has already been generated (see: the birthday paradox).
+ * <p>
+ * This class is not thread-safe, as the current IV is shared; to generate nonces from several
+ * threads, use a {@link NonceSequence}.
  */
 public class HybridIvFactory implements IvFactory {
 
     public static final int IV_LENGTH = 12; // bytes
-    private static final int RAND_LENGTH = 8; // How many bytes of IV is random?
-    private static final int COUNT_LENGTH = 4; // How many bytes of IV is counter?
+    private static final int RAND_LENGTH = 8; // How many bytes of IV is random? (rest is counter)
 
     private byte[] iv = new byte[IV_LENGTH];
+    private byte[] randomNumber = new byte[RAND_LENGTH];
     private SecureRandom srand = new SecureRandom(); // We call this few enough times to not re-seed
 
     /**
@@ -56,33 +57,59 @@ public class HybridIvFactory implements IvFactory {
 
     @Override
     public byte[] generateNewIv() {
-        // Generate the random number
-        byte[] randomNumber = new byte[RAND_LENGTH];
+        // Generate the random number straight into the IV, and increment the counter after it
         srand.nextBytes(randomNumber);
+        int counter = getInt32BE(iv, RAND_LENGTH) + 1;
+        System.arraycopy(randomNumber, 0, iv, 0, RAND_LENGTH);
+        putInt32BE(iv, RAND_LENGTH, counter);
 
-        // Get and increment the counter
-        int counter = toInt32BE(iv, RAND_LENGTH);
-        counter++;
-
-        // Copy these to the IV
-        System.arraycopy(randomNumber, 0, iv, 0, randomNumber.length);
-        System.arraycopy(fromInt32BE(counter), 0, iv, randomNumber.length, COUNT_LENGTH);
+        return iv;
+    }
 
+    /**
+     * Derives an IV from a base IV (generated by this class) by adding an offset to its counter.
+     * This can be used to give each of a sequence of messages a unique IV while only storing the
+     * base IV: the random part is shared, and the counters are consecutive.
+     *
+     * @param baseIv IV to derive from
+     * @param offset Offset to add to the counter of the base IV
+     * @return New derived IV
+     */
+    public static byte[] offsetIv(byte[] baseIv, int offset) {
+        byte[] iv = new byte[IV_LENGTH];
+        offsetIv(baseIv, offset, iv, 0);
         return iv;
     }
 
-    private int toInt32BE(byte[] bytes, int offset) {
-        return ByteBuffer.wrap(bytes, offset, 4)
-                .order(ByteOrder.BIG_ENDIAN)
-                .getInt();
+    /**
+     * Derives an IV from a base IV as {@link #offsetIv(byte[], int)} does, writing it into a
+     * buffer
+     *
+     * @param baseIv IV to derive from
+     * @param offset Offset to add to the counter of the base IV
+     * @param out Buffer to write the derived IV to
+     * @param outOffset Offset in `out` to write at; {@link #IV_LENGTH} bytes are written
+     */
+    public static void offsetIv(byte[] baseIv, int offset, byte[] out, int outOffset) {
+        if (baseIv.length != IV_LENGTH)
+            throw new IllegalArgumentException("IV must be of the correct length (" + IV_LENGTH
+                    + " bytes)");
+
+        System.arraycopy(baseIv, 0, out, outOffset, RAND_LENGTH);
+        putInt32BE(out, outOffset + RAND_LENGTH, getInt32BE(baseIv, RAND_LENGTH) + offset);
+    }
+
+    private static int getInt32BE(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
     }
 
-    private byte[] fromInt32BE(int i) {
-         byte[] out = new byte[4];
-         ByteBuffer buff = ByteBuffer.allocate(4)
-                 .putInt(i);
-         buff.rewind();
-         buff.get(out);
-         return out;
+    static void putInt32BE(byte[] bytes, int offset, int i) {
+        bytes[offset] = (byte) (i >>> 24);
+        bytes[offset + 1] = (byte) (i >>> 16);
+        bytes[offset + 2] = (byte) (i >>> 8);
+        bytes[offset + 3] = (byte) i;
     }
 }
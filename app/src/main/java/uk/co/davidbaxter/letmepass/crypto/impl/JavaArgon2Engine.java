@@ -0,0 +1,476 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+/**
+ * A pure-Java {@link Argon2Engine}, for platforms that the native library is not available on
+ * (e.g. JVMs used for tests and benchmarks). It follows the reference implementation of
+ * Argon2d version 1.3 (RFC 9106), so produces the same hashes as the native library.
+ * <p>
+ * The working memory is held off the heap, and kept between derivations, so that repeated
+ * derivations (e.g. checking the master password before changing it) do not each allocate it
+ * again. It is only held softly, so it can be reclaimed under memory pressure, and is wiped after
+ * every derivation. As derivations share the memory, they are run one at a time.
+ * <p>
+ * Blocks are compressed in heap arrays, in straight-line loops over their 128 words, which the
+ * JIT compiles to tight (and, where it can, vectorized) code.
+ * <p>
+ * The lanes of a slice are independent, so they are filled in parallel on the shared compute
+ * executor (see {@link ParallelUtils}), and more lanes cut the time taken as long as there are
+ * cores to run them. The calling thread fills lanes too, and only waits for lanes that other
+ * threads have started, so derivation cannot deadlock even if the executor is busy.
+ */
+public class JavaArgon2Engine extends Argon2Engine {
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final int VERSION = 0x13;
+    private static final int TYPE_D = 0;
+    private static final int BLOCK_SIZE = 1024;    // Bytes per block
+    private static final int BLOCK_WORDS = 128;    // 64-bit words per block
+    private static final int SYNC_POINTS = 4;      // Slices per pass
+    private static final int PREHASH_LENGTH = 64;  // Length of H0
+    private static final int PREHASH_SEED_LENGTH = PREHASH_LENGTH + 8;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /** Working memory of the last derivation, to be reused by the next */
+    private SoftReference<LongBuffer> memoryRef = new SoftReference<>(null);
+
+    /**
+     * Creates a pure-Java engine, filling lanes in parallel on the shared compute executor
+     */
+    public JavaArgon2Engine() {
+        this(ParallelUtils.getComputeExecutor(), ParallelUtils.getParallelism());
+    }
+
+    /**
+     * Creates a pure-Java engine
+     *
+     * @param executor Executor to fill lanes in parallel on
+     * @param threads Most threads to fill lanes on at once, including the calling thread; 1 to
+     *                fill them all on the calling thread
+     */
+    public JavaArgon2Engine(ExecutorService executor, int threads) {
+        this.executor = executor;
+        this.threads = Math.max(1, threads);
+    }
+
+    @Override
+    public synchronized byte[] hash(Argon2Parameters parameters, String input, byte[] salt,
+                                    int hashLen) {
+        int lanes = parameters.getParallelism();
+        int segmentLength = Math.max(parameters.getMemory(), 2 * SYNC_POINTS * lanes)
+                / (lanes * SYNC_POINTS);
+        int laneLength = segmentLength * SYNC_POINTS;
+
+        Instance instance = new Instance(getMemory(laneLength * lanes), lanes, laneLength,
+                segmentLength);
+        byte[] password = input.getBytes(CHARSET_UTF8);
+        byte[] seed = new byte[PREHASH_SEED_LENGTH];
+        try {
+            initialHash(parameters, hashLen, password, salt, seed);
+            fillFirstBlocks(instance, seed);
+            for (int pass = 0; pass < parameters.getIterations(); pass++) {
+                // Every lane must finish a slice before any lane starts the next
+                for (int slice = 0; slice < SYNC_POINTS; slice++)
+                    fillSlice(instance, pass, slice);
+            }
+            return finalHash(instance, hashLen);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+            Arrays.fill(seed, (byte) 0);
+            instance.wipe();
+        }
+    }
+
+    /**
+     * Gets working memory of at least the given number of blocks, reusing that of the last
+     * derivation if it is large enough
+     */
+    private LongBuffer getMemory(int blocks) {
+        LongBuffer memory = memoryRef.get();
+        if (memory == null || memory.capacity() < blocks * BLOCK_WORDS) {
+            // Let the old memory go before allocating the new
+            memoryRef.clear();
+            memory = null;
+            memory = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE)
+                    .order(ByteOrder.nativeOrder())
+                    .asLongBuffer();
+            memoryRef = new SoftReference<>(memory);
+        }
+
+        return memory;
+    }
+
+    /**
+     * Computes H0 from the parameters and inputs, into the first 64 bytes of the seed for the
+     * first blocks
+     */
+    private static void initialHash(Argon2Parameters parameters, int hashLen, byte[] password,
+                                    byte[] salt, byte[] seed) {
+        Blake2bDigest digest = new Blake2bDigest(null, PREHASH_LENGTH, null, null);
+        updateInt(digest, parameters.getParallelism());
+        updateInt(digest, hashLen);
+        updateInt(digest, parameters.getMemory());
+        updateInt(digest, parameters.getIterations());
+        updateInt(digest, VERSION);
+        updateInt(digest, TYPE_D);
+        updateInt(digest, password.length);
+        digest.update(password, 0, password.length);
+        updateInt(digest, salt.length);
+        digest.update(salt, 0, salt.length);
+        updateInt(digest, 0); // No secret
+        updateInt(digest, 0); // No associated data
+        digest.doFinal(seed, 0);
+    }
+
+    /** Fills the first two blocks of each lane from H0 */
+    private static void fillFirstBlocks(Instance instance, byte[] seed) {
+        byte[] blockBytes = new byte[BLOCK_SIZE];
+        Lane state = instance.lanes[0];
+        for (int lane = 0; lane < instance.lanes.length; lane++) {
+            for (int i = 0; i < 2; i++) {
+                putInt(seed, PREHASH_LENGTH, i);
+                putInt(seed, PREHASH_LENGTH + 4, lane);
+                variableHash(seed, blockBytes, BLOCK_SIZE);
+                for (int w = 0; w < BLOCK_WORDS; w++)
+                    state.cur[w] = getLong(blockBytes, w * 8);
+                state.writeBlock(lane * instance.laneLength + i, state.cur);
+            }
+        }
+        Arrays.fill(blockBytes, (byte) 0);
+    }
+
+    /**
+     * Fills the segments of every lane in a slice, in parallel. Lanes are claimed in turn by the
+     * calling thread and by helpers on the executor; helpers that start once every lane has been
+     * claimed do nothing.
+     */
+    private void fillSlice(final Instance instance, final int pass, final int slice) {
+        final int lanes = instance.lanes.length;
+        final AtomicInteger nextLane = new AtomicInteger();
+        final CountDownLatch filled = new CountDownLatch(lanes);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable filler = new Runnable() {
+            @Override
+            public void run() {
+                int lane;
+                while ((lane = nextLane.getAndIncrement()) < lanes) {
+                    try {
+                        fillSegment(instance, pass, lane, slice);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        filled.countDown();
+                    }
+                }
+            }
+        };
+
+        for (int i = 1, helpers = Math.min(lanes, threads); i < helpers; i++)
+            executor.execute(filler);
+        filler.run();
+
+        // Every lane has been claimed, so we only wait for those being filled by helpers
+        boolean interrupted = false;
+        while (true) {
+            try {
+                filled.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (failure.get() != null)
+            throw new IllegalStateException("Failed to fill lane", failure.get());
+    }
+
+    /** Fills one segment (a slice of a lane) in a pass */
+    private static void fillSegment(Instance instance, int pass, int lane, int slice) {
+        int segmentLength = instance.segmentLength;
+        int laneLength = instance.laneLength;
+        int start = pass == 0 && slice == 0 ? 2 : 0;
+        int offset = lane * laneLength + slice * segmentLength + start;
+        int prevOffset = offset % laneLength == 0 ? offset + laneLength - 1 : offset - 1;
+
+        Lane state = instance.lanes[lane];
+        long[] prev = state.prev;
+        state.readBlock(prevOffset, prev);
+        for (int index = start; index < segmentLength; index++, offset++) {
+            // Argon2d: the reference block is chosen by the first word of the previous block
+            long pseudoRand = prev[0];
+            int refLane = (int) ((pseudoRand >>> 32) % instance.lanes.length);
+            if (pass == 0 && slice == 0)
+                refLane = lane;
+            int refIndex = indexAlpha(instance, pass, slice, index, pseudoRand & 0xFFFFFFFFL,
+                    refLane == lane);
+
+            state.readBlock(refLane * laneLength + refIndex, state.ref);
+            boolean withXor = pass != 0;
+            if (withXor)
+                state.readBlock(offset, state.cur);
+            fillBlock(prev, state.ref, state.cur, withXor, state.r, state.z);
+            state.writeBlock(offset, state.cur);
+
+            // The block just filled is the previous block of the next
+            long[] tmp = prev;
+            prev = state.cur;
+            state.cur = tmp;
+        }
+        state.prev = prev;
+    }
+
+    /** Maps the pseudo-random value of a block to the index of its reference block in a lane */
+    private static int indexAlpha(Instance instance, int pass, int slice, int index,
+                                  long pseudoRand, boolean sameLane) {
+        long areaSize;
+        if (pass == 0) {
+            if (slice == 0)
+                areaSize = index - 1; // All but the previous block
+            else if (sameLane)
+                areaSize = slice * instance.segmentLength + index - 1;
+            else
+                areaSize = slice * instance.segmentLength + (index == 0 ? -1 : 0);
+        } else {
+            if (sameLane)
+                areaSize = instance.laneLength - instance.segmentLength + index - 1;
+            else
+                areaSize = instance.laneLength - instance.segmentLength + (index == 0 ? -1 : 0);
+        }
+
+        long relative = (pseudoRand * pseudoRand) >>> 32;
+        relative = areaSize - 1 - ((areaSize * relative) >>> 32);
+
+        long startPosition = 0;
+        if (pass != 0 && slice != SYNC_POINTS - 1)
+            startPosition = (slice + 1) * instance.segmentLength;
+
+        return (int) ((startPosition + relative) % instance.laneLength);
+    }
+
+    /**
+     * Compresses the previous and reference blocks into the next block, XORing the result into
+     * the block's existing contents in passes after the first (version 1.3)
+     */
+    private static void fillBlock(long[] prev, long[] ref, long[] next, boolean withXor,
+                                  long[] r, long[] z) {
+        for (int i = 0; i < BLOCK_WORDS; i++)
+            r[i] = prev[i] ^ ref[i];
+        if (withXor) {
+            for (int i = 0; i < BLOCK_WORDS; i++)
+                z[i] = r[i] ^ next[i];
+        } else {
+            System.arraycopy(r, 0, z, 0, BLOCK_WORDS);
+        }
+
+        // Apply the Blake2b round to each row of 16 words, then to each column of 16 words
+        for (int i = 0; i < 8; i++) {
+            int b = 16 * i;
+            round(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 2 * i;
+            round(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+
+        for (int i = 0; i < BLOCK_WORDS; i++)
+            next[i] = z[i] ^ r[i];
+    }
+
+    /** The Blake2b round, without message words, over 16 words of a block */
+    private static void round(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6,
+                              int v7, int v8, int v9, int v10, int v11, int v12, int v13,
+                              int v14, int v15) {
+        g(v, v0, v4, v8, v12);
+        g(v, v1, v5, v9, v13);
+        g(v, v2, v6, v10, v14);
+        g(v, v3, v7, v11, v15);
+        g(v, v0, v5, v10, v15);
+        g(v, v1, v6, v11, v12);
+        g(v, v2, v7, v8, v13);
+        g(v, v3, v4, v9, v14);
+    }
+
+    /** The mixing function of Argon2: that of Blake2b, with multiplications of the low words */
+    private static void g(long[] v, int a, int b, int c, int d) {
+        long va = v[a], vb = v[b], vc = v[c], vd = v[d];
+
+        va = va + vb + 2 * (va & 0xFFFFFFFFL) * (vb & 0xFFFFFFFFL);
+        vd = Long.rotateRight(vd ^ va, 32);
+        vc = vc + vd + 2 * (vc & 0xFFFFFFFFL) * (vd & 0xFFFFFFFFL);
+        vb = Long.rotateRight(vb ^ vc, 24);
+        va = va + vb + 2 * (va & 0xFFFFFFFFL) * (vb & 0xFFFFFFFFL);
+        vd = Long.rotateRight(vd ^ va, 16);
+        vc = vc + vd + 2 * (vc & 0xFFFFFFFFL) * (vd & 0xFFFFFFFFL);
+        vb = Long.rotateRight(vb ^ vc, 63);
+
+        v[a] = va;
+        v[b] = vb;
+        v[c] = vc;
+        v[d] = vd;
+    }
+
+    /** Hashes the XOR of the last blocks of every lane into the final hash */
+    private static byte[] finalHash(Instance instance, int hashLen) {
+        Lane state = instance.lanes[0];
+        long[] acc = state.r;
+        long[] block = state.ref;
+        state.readBlock(instance.laneLength - 1, acc);
+        for (int lane = 1; lane < instance.lanes.length; lane++) {
+            state.readBlock(lane * instance.laneLength + instance.laneLength - 1, block);
+            for (int i = 0; i < BLOCK_WORDS; i++)
+                acc[i] ^= block[i];
+        }
+
+        byte[] accBytes = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_WORDS; i++)
+            putLong(accBytes, i * 8, acc[i]);
+
+        byte[] hash = new byte[hashLen];
+        variableHash(accBytes, hash, hashLen);
+        Arrays.fill(accBytes, (byte) 0);
+        return hash;
+    }
+
+    /** The variable-length hash function H' of Argon2, built on Blake2b */
+    private static void variableHash(byte[] input, byte[] out, int outLen) {
+        byte[] lengthBytes = new byte[4];
+        putInt(lengthBytes, 0, outLen);
+
+        if (outLen <= PREHASH_LENGTH) {
+            Blake2bDigest digest = new Blake2bDigest(null, outLen, null, null);
+            digest.update(lengthBytes, 0, 4);
+            digest.update(input, 0, input.length);
+            digest.doFinal(out, 0);
+            return;
+        }
+
+        // Chain 64-byte hashes, taking the first half of each, until the rest fits in one hash
+        Blake2bDigest digest = new Blake2bDigest(null, PREHASH_LENGTH, null, null);
+        byte[] v = new byte[PREHASH_LENGTH];
+        digest.update(lengthBytes, 0, 4);
+        digest.update(input, 0, input.length);
+        digest.doFinal(v, 0);
+        System.arraycopy(v, 0, out, 0, PREHASH_LENGTH / 2);
+
+        int pos = PREHASH_LENGTH / 2;
+        while (outLen - pos > PREHASH_LENGTH) {
+            digest.update(v, 0, PREHASH_LENGTH);
+            digest.doFinal(v, 0);
+            System.arraycopy(v, 0, out, pos, PREHASH_LENGTH / 2);
+            pos += PREHASH_LENGTH / 2;
+        }
+
+        Blake2bDigest last = new Blake2bDigest(null, outLen - pos, null, null);
+        last.update(v, 0, PREHASH_LENGTH);
+        last.doFinal(out, pos);
+        Arrays.fill(v, (byte) 0);
+    }
+
+    private static void updateInt(Blake2bDigest digest, int value) {
+        digest.update((byte) value);
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 24));
+    }
+
+    private static void putInt(byte[] bytes, int off, int value) {
+        bytes[off] = (byte) value;
+        bytes[off + 1] = (byte) (value >>> 8);
+        bytes[off + 2] = (byte) (value >>> 16);
+        bytes[off + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putLong(byte[] bytes, int off, long value) {
+        putInt(bytes, off, (int) value);
+        putInt(bytes, off + 4, (int) (value >>> 32));
+    }
+
+    private static long getLong(byte[] bytes, int off) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--)
+            value = (value << 8) | (bytes[off + i] & 0xFF);
+        return value;
+    }
+
+    /** The working memory of a derivation, and the state of each of its lanes */
+    private static class Instance {
+        final Lane[] lanes;
+        final int laneLength;
+        final int segmentLength;
+
+        Instance(LongBuffer memory, int lanes, int laneLength, int segmentLength) {
+            this.lanes = new Lane[lanes];
+            for (int i = 0; i < lanes; i++)
+                this.lanes[i] = new Lane(memory.duplicate());
+            this.laneLength = laneLength;
+            this.segmentLength = segmentLength;
+        }
+
+        /** Zeroes the memory used and the blocks of every lane */
+        void wipe() {
+            Lane state = lanes[0];
+            long[] zero = state.r;
+            Arrays.fill(zero, 0);
+            for (int i = 0, blocks = lanes.length * laneLength; i < blocks; i++)
+                state.writeBlock(i, zero);
+            for (Lane lane : lanes)
+                lane.wipe();
+        }
+    }
+
+    /**
+     * The state of a lane being filled: its own view of the memory, and the blocks it is
+     * compressing, in heap arrays. Only one thread fills a lane at a time.
+     */
+    private static class Lane {
+        final LongBuffer memory;
+        long[] prev = new long[BLOCK_WORDS];
+        long[] cur = new long[BLOCK_WORDS];
+        final long[] ref = new long[BLOCK_WORDS];
+        final long[] r = new long[BLOCK_WORDS];
+        final long[] z = new long[BLOCK_WORDS];
+
+        Lane(LongBuffer memory) {
+            this.memory = memory;
+        }
+
+        void readBlock(int index, long[] block) {
+            memory.position(index * BLOCK_WORDS);
+            memory.get(block, 0, BLOCK_WORDS);
+        }
+
+        void writeBlock(int index, long[] block) {
+            memory.position(index * BLOCK_WORDS);
+            memory.put(block, 0, BLOCK_WORDS);
+        }
+
+        void wipe() {
+            Arrays.fill(prev, 0);
+            Arrays.fill(cur, 0);
+            Arrays.fill(ref, 0);
+            Arrays.fill(r, 0);
+            Arrays.fill(z, 0);
+        }
+    }
+
+}
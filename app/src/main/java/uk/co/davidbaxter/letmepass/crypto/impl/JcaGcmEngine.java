@@ -0,0 +1,149 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link GcmEngine} using the platform's "AES/GCM/NoPadding" provider (Conscrypt on Android,
+ * SunJCE on the desktop), which uses the AES and carry-less multiply instructions of the CPU where
+ * it has them.
+ * <p>
+ * Providers differ in what they accept: some only take 96-bit nonces, and some refuse 256-bit keys
+ * under old export policies. Messages the provider will not take are handed to a fallback engine,
+ * so any message can be encrypted or decrypted with this engine. Use {@link #isAvailable(GcmEngine)}
+ * to check that the provider exists at all (it was only added in API 19) before using this engine.
+ * <p>
+ * Each thread keeps a cipher, and a key object for the last key it used, so that encrypting many
+ * messages with the same key neither looks up the provider nor copies the key again.
+ */
+public class JcaGcmEngine extends GcmEngine {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12; // bytes; the only length all providers support
+
+    private final GcmEngine fallback;
+    private final ThreadCiphers<KeyedCipher> ciphers = new ThreadCiphers<>();
+
+    /**
+     * Creates an engine using the platform's provider
+     * @param fallback Engine to use for messages the provider does not support
+     */
+    public JcaGcmEngine(GcmEngine fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    protected int doCrypt(byte[] key, byte[] nonce, byte[] associatedData, int macSizeBits,
+                          byte[] input, int offset, int length, byte[] output, int outputOffset,
+                          boolean encrypt) throws DecryptionException {
+        // Providers do not agree on how to fail for messages too short to hold a MAC, so have the
+        // fallback reject these as usual
+        if (nonce.length != NONCE_LENGTH || (!encrypt && length < macSizeBits / 8))
+            return fallback.crypt(key, nonce, associatedData, macSizeBits, input, offset, length,
+                    output, outputOffset, encrypt);
+
+        Cipher cipher;
+        try {
+            cipher = getCipher(key, nonce, associatedData, macSizeBits, encrypt);
+        } catch (GeneralSecurityException e) {
+            // The provider does not support these parameters (e.g. key or MAC size), or refuses
+            // to encrypt twice in a row with the same key and nonce
+            return fallback.crypt(key, nonce, associatedData, macSizeBits, input, offset, length,
+                    output, outputOffset, encrypt);
+        }
+
+        try {
+            return cipher.doFinal(input, offset, length, output, outputOffset);
+        } catch (GeneralSecurityException e) {
+            // AEADBadTagException when the MAC is invalid; as for BouncyCastle, only thrown on
+            // decryption
+            throw new DecryptionException(e);
+        }
+    }
+
+    /**
+     * Gets the cipher of this thread, initialized with the given key, nonce, and associated data
+     * @throws GeneralSecurityException If the provider does not support the parameters
+     */
+    private Cipher getCipher(byte[] key, byte[] nonce, byte[] associatedData, int macSizeBits,
+                             boolean encrypt) throws GeneralSecurityException {
+        KeyedCipher keyed = ciphers.get();
+        if (keyed == null || !ciphers.hasKey(key)) {
+            // Keep the key object while the key is the same, rather than copying the key every time
+            Cipher cipher = keyed == null ? Cipher.getInstance(TRANSFORMATION) : keyed.cipher;
+            keyed = new KeyedCipher(cipher, new SecretKeySpec(key, "AES"));
+            ciphers.set(keyed, key);
+        }
+
+        Cipher cipher = keyed.cipher;
+        cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keyed.keySpec,
+                new GCMParameterSpec(macSizeBits, nonce));
+        if (associatedData != null && associatedData.length > 0)
+            cipher.updateAAD(associatedData);
+        return cipher;
+    }
+
+    @Override
+    public void wipe() {
+        ciphers.clear();
+        fallback.wipe();
+    }
+
+    /** The cipher of a thread, and the key object it was last initialized with */
+    private static class KeyedCipher {
+        final Cipher cipher;
+        final SecretKeySpec keySpec;
+
+        KeyedCipher(Cipher cipher, SecretKeySpec keySpec) {
+            this.cipher = cipher;
+            this.keySpec = keySpec;
+        }
+    }
+
+    /**
+     * Checks whether the platform has an AES/GCM provider, and that it produces the same
+     * ciphertext as a reference engine
+     *
+     * @param reference Engine to check the provider's output against
+     * @return Whether the provider can be used
+     */
+    public static boolean isAvailable(GcmEngine reference) {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        byte[] associatedData = new byte[13];
+        byte[] input = new byte[67];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) i;
+            if (i < key.length) key[i] = (byte) (i * 7);
+            if (i < nonce.length) nonce[i] = (byte) (i * 13);
+            if (i < associatedData.length) associatedData[i] = (byte) (i * 31);
+        }
+
+        try {
+            // Use the provider directly, so that the fallback cannot hide a missing provider
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                    new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(associatedData);
+            byte[] cipherText = cipher.doFinal(input);
+
+            byte[] expected = reference.crypt(key, nonce, associatedData, 128, input, 0,
+                    input.length, true);
+            return Arrays.equals(cipherText, expected);
+        } catch (GeneralSecurityException e) {
+            return false;
+        } catch (DecryptionException e) {
+            return false;
+        } catch (LinkageError e) {
+            // GCMParameterSpec and Cipher.updateAAD() do not exist before API 19
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+}
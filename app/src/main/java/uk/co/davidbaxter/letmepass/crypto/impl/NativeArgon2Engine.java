@@ -0,0 +1,50 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.nio.charset.Charset;
+
+import de.mkammerer.argon2.Argon2Advanced;
+import de.mkammerer.argon2.Argon2Factory;
+
+/**
+ * An {@link Argon2Engine} using the native Argon2 library (through argon2-jvm). The binaries for
+ * libargon2 and libjnidispatch must be bundled for the platform; see {@link #isAvailable()}.
+ */
+public class NativeArgon2Engine extends Argon2Engine {
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    private Argon2Advanced argon = null;
+    private int argonHashLen = 0;
+
+    @Override
+    public synchronized byte[] hash(Argon2Parameters parameters, String input, byte[] salt,
+                                    int hashLen) {
+        // The library takes the hash length on creation; it is almost always the same
+        if (argon == null || argonHashLen != hashLen) {
+            argon = Argon2Factory.createAdvanced(Argon2Factory.Argon2Types.ARGON2d, salt.length,
+                    hashLen);
+            argonHashLen = hashLen;
+        }
+
+        return argon.rawHash(parameters.getIterations(), parameters.getMemory(),
+                parameters.getParallelism(), input, CHARSET_UTF8, salt);
+    }
+
+    /**
+     * Checks whether the native library can be loaded and used on this platform
+     * @return Whether the native engine can be used
+     */
+    public static boolean isAvailable() {
+        try {
+            Argon2Factory.createAdvanced(Argon2Factory.Argon2Types.ARGON2d, 16, 32)
+                    .rawHash(1, 8, 1, "", CHARSET_UTF8, new byte[16]);
+            return true;
+        } catch (LinkageError e) {
+            // The binaries are missing, or not built for this platform
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+}
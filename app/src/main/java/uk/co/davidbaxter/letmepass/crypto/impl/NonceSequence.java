@@ -0,0 +1,66 @@
+package uk.co.davidbaxter.letmepass.crypto.impl;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe source of unique nonces, for encrypting many messages with the same key from any
+ * number of threads (e.g. the records of a log, or sealed secrets).
+ * <p>
+ * Each nonce consists of:
+ * <ul>
+ *     <li>Random bytes (8 bytes), chosen once per sequence</li>
+ *     <li>Counter (4 bytes, big-endian), incremented atomically for each nonce</li>
+ * </ul>
+ * Nonces from the same sequence therefore never repeat, without any locking: this is the
+ * deterministic construction of NIST SP 800-38D. Separate sequences have different random parts,
+ * unless, with a 50% chance, some 2^32 sequences are created with the same key.
+ * <p>
+ * Unlike {@link HybridIvFactory}, nonces are not derived from one another, so must <b>not</b> be
+ * used as the base IV of {@link HybridIvFactory#offsetIv(byte[], int)}, whose counters would run
+ * into those of later nonces.
+ */
+public class NonceSequence {
+
+    public static final int NONCE_LENGTH = HybridIvFactory.IV_LENGTH;
+    private static final int RAND_LENGTH = 8; // bytes
+    private static final long MAX_COUNTER = 0xFFFFFFFFL;
+
+    private final byte[] random = new byte[RAND_LENGTH];
+    private final AtomicLong counter = new AtomicLong(0);
+
+    /**
+     * Creates a new sequence with a new random part
+     */
+    public NonceSequence() {
+        new SecureRandom().nextBytes(random);
+    }
+
+    /**
+     * Writes the next nonce of the sequence into a buffer
+     *
+     * @param out Buffer to write the nonce to
+     * @param offset Offset in `out` to write at; {@link #NONCE_LENGTH} bytes are written
+     * @throws IllegalStateException If all 2^32 nonces of this sequence have been used
+     */
+    public void next(byte[] out, int offset) {
+        long count = counter.getAndIncrement();
+        if (count > MAX_COUNTER)
+            throw new IllegalStateException("Nonce sequence exhausted");
+
+        System.arraycopy(random, 0, out, offset, RAND_LENGTH);
+        HybridIvFactory.putInt32BE(out, offset + RAND_LENGTH, (int) count);
+    }
+
+    /**
+     * Gets the next nonce of the sequence
+     * @return New nonce
+     * @throws IllegalStateException If all 2^32 nonces of this sequence have been used
+     */
+    public byte[] next() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        next(nonce, 0);
+        return nonce;
+    }
+
+}
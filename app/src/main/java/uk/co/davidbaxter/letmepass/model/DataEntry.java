@@ -5,7 +5,9 @@ public class DataEntry extends PasswordDatabaseEntry {
 
     public static final String TYPE = "data";
 
+    /** Data, or null if it is sealed (use {@link #getData()} to read it either way) */
     public String data;
+    private transient SealedSecret sealedData = null;
 
     public DataEntry(String name, String data) {
         super(name);
@@ -17,9 +19,50 @@ public class DataEntry extends PasswordDatabaseEntry {
         return TYPE;
     }
 
+    /**
+     * Gets the data, decrypting it if it is sealed. The decrypted data is not kept.
+     * @return Data
+     */
+    public String getData() {
+        return data == null && sealedData != null ? sealedData.unseal() : data;
+    }
+
+    /**
+     * Sets the data, replacing any sealed data
+     * @param data Data
+     */
+    public void setData(String data) {
+        this.data = data;
+        this.sealedData = null;
+    }
+
+    /**
+     * Gets the sealed data, if the data is sealed
+     * @return Sealed data, or null if the data is not sealed
+     */
+    public SealedSecret getSealedData() {
+        return data == null ? sealedData : null;
+    }
+
+    /**
+     * Sets the data to sealed data, to be decrypted only when it is needed
+     * @param sealedData Sealed data
+     */
+    public void setSealedData(SealedSecret sealedData) {
+        this.data = null;
+        this.sealedData = sealedData;
+    }
+
+    @Override
+    public void unseal() {
+        setData(getData());
+    }
+
     @Override
     public Object clone() {
-        return new DataEntry(name, data);
+        DataEntry entry = new DataEntry(name, data);
+        entry.sealedData = sealedData;
+        return entry;
     }
 
     @Override
@@ -30,6 +73,7 @@ public class DataEntry extends PasswordDatabaseEntry {
         super.fromCopy(entry);
         DataEntry dEntry = (DataEntry) entry;
         this.data = dEntry.data;
+        this.sealedData = dEntry.sealedData;
     }
 
     public static DataEntry newEmptyEntry() {
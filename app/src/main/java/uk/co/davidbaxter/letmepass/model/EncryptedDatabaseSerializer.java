@@ -1,6 +1,14 @@
 package uk.co.davidbaxter.letmepass.model;
 
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
 import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
 
 /**
  * Interface for serializing and deserializing databases into/from an encrypted binary format,
@@ -30,4 +38,86 @@ public interface EncryptedDatabaseSerializer {
     PasswordDatabase deserialize(byte[] encrypted, String mp) throws SerializationException,
             DecryptionException;
 
+    /**
+     * Serializes the database into an encrypted binary format, writing it directly to a stream.
+     * Unlike {@link #serialize(PasswordDatabase, String)}, this does not hold the serialized
+     * database in memory, so memory use does not grow with the size of the database.
+     * <p>
+     * The stream is not closed by this method.
+     *
+     * @param db Database to serialize
+     * @param mp Master password for encryption
+     * @param out Stream to write the encrypted data to
+     * @throws SerializationException If the DB could not be serialized
+     * @throws IOException If the data could not be written to the stream
+     */
+    void serialize(PasswordDatabase db, String mp, OutputStream out) throws SerializationException,
+            IOException;
+
+    /**
+     * Deserializes the database from a stream of encrypted binary data. The stream is read to its
+     * end, and is not closed by this method.
+     *
+     * @param in Stream of encrypted data
+     * @param mp Master password to decrypt the data
+     * @return A PasswordDatabase instance from the decrypted data
+     * @throws SerializationException If the data could not be deserialized (e.g. if corrupt)
+     * @throws DecryptionException If the data could not be decrypted
+     * @throws IOException If the data could not be read from the stream
+     */
+    PasswordDatabase deserialize(InputStream in, String mp) throws SerializationException,
+            DecryptionException, IOException;
+
+    /**
+     * Sets a cache of derived keys to use for encryption & decryption, so that keys need not be
+     * re-derived from the master password on every call. The cache is owned by the caller, who is
+     * responsible for clearing it.
+     *
+     * @param cache Cache to use, or null to derive keys on every call
+     */
+    void setKeyCache(@Nullable DerivedKeyCache cache);
+
+    /**
+     * Sets the parameters of the key derivation function to encrypt data with from now on, e.g. as
+     * calibrated for the device (see {@link uk.co.davidbaxter.letmepass.crypto.impl.Argon2Calibrator}).
+     * The parameters are stored with the data, so they need not be known to decrypt it. Data that
+     * is deserialized afterwards replaces them with its own parameters, which are reused when it
+     * is serialized again.
+     * <p>
+     * As the key changes, the next serialization must be in full.
+     *
+     * @param parameters Parameters of Argon2 to derive keys with
+     */
+    void setKdfParameters(Argon2Parameters parameters);
+
+    /**
+     * Checks whether the changes made to a database since it was last serialized or deserialized
+     * by this serializer can be serialized alone, with
+     * {@link #serializeChanges(PasswordDatabase, String, OutputStream)}. This is false if the format
+     * does not support it, if the database is not the one last (de)serialized, or if the data
+     * should be rewritten in full (e.g. to compact it).
+     *
+     * @param db Database to check
+     * @return Whether changes to the database can be serialized alone
+     */
+    boolean canSerializeChanges(PasswordDatabase db);
+
+    /**
+     * Serializes only the changes made to a database since it was last serialized or deserialized
+     * by this serializer. The data written should be appended to the data last (de)serialized.
+     * This must only be called if {@link #canSerializeChanges(PasswordDatabase)} returns true, and
+     * with the same master password as the data last (de)serialized.
+     * <p>
+     * The stream is not closed by this method.
+     *
+     * @param db Database to serialize the changes of
+     * @param mp Master password for encryption
+     * @param out Stream to write the encrypted changes to
+     * @throws SerializationException If the changes could not be serialized
+     * @throws IOException If the data could not be written to the stream
+     * @throws IllegalStateException If changes to the database cannot be serialized alone
+     */
+    void serializeChanges(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException;
+
 }
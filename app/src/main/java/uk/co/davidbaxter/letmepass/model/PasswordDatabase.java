@@ -1,5 +1,7 @@
 package uk.co.davidbaxter.letmepass.model;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -30,6 +32,15 @@ public interface PasswordDatabase {
      */
     boolean deleteEntry(PasswordDatabaseEntry entry);
 
+    /**
+     * Notifies the database that an entry in it has been modified in place (e.g. with
+     * {@link PasswordDatabaseEntry#fromCopy(PasswordDatabaseEntry)}), so that it can update any
+     * information it holds about the entry, such as search indices.
+     *
+     * @param entry Entry that has been modified
+     */
+    void updateEntry(PasswordDatabaseEntry entry);
+
     /**
      * Gets the entries in the root of this database
      * @return Root entries
@@ -78,10 +89,34 @@ public interface PasswordDatabase {
      */
     void setName(String name);
 
+    /**
+     * Takes a snapshot of the database as it is now, which is not affected by later changes to the
+     * database, e.g. so that it can be saved while the database continues to be edited. Snapshots
+     * cannot be modified.
+     * <p>
+     * Snapshots share copies of unchanged entries with earlier snapshots, so only the entries that
+     * have been changed since the last snapshot need to be copied. Changes made to entries in
+     * place are only seen once the database has been notified of them (see
+     * {@link #updateEntry(PasswordDatabaseEntry)}). This method must be called on the thread that
+     * modifies the database.
+     *
+     * @return Snapshot of the database
+     */
+    PasswordDatabase snapshot();
+
     /**
      * Serializes the database into a byte format suitable for storage
      * @return Database at time of call in serialized byte format
      */
     byte[] serialize();
 
+    /**
+     * Serializes the database into the same format as {@link #serialize()}, writing it directly
+     * to a stream rather than returning it. The stream is not closed by this method.
+     *
+     * @param out Stream to write the serialized database to
+     * @throws IOException If the stream could not be written to
+     */
+    void serialize(OutputStream out) throws IOException;
+
 }
@@ -17,6 +17,9 @@ public abstract class PasswordDatabaseEntry implements Serializable, Cloneable {
     public long updated;
     public boolean favorite;
 
+    /** Entry that this entry is a copy of in a snapshot of a database, if it is one */
+    private transient PasswordDatabaseEntry original = null;
+
     protected PasswordDatabaseEntry(String name, long created, long updated, boolean favorite) {
         this.name = name;
         this.created = created;
@@ -54,6 +57,34 @@ public abstract class PasswordDatabaseEntry implements Serializable, Cloneable {
         this.favorite = entry.favorite;
     }
 
+    /**
+     * Decrypts any secret fields of this entry that are held sealed (see {@link SealedSecret}),
+     * so that they can be read and edited directly, e.g. when the entry is opened.
+     * <p>
+     * Subclasses with secret fields should override this method.
+     */
+    public void unseal() {
+    }
+
+    /**
+     * Gets the entry that this entry is a copy of, if it belongs to a snapshot of a database (see
+     * {@link PasswordDatabase#snapshot()}), so that it can be recognised as the same entry across
+     * snapshots (e.g. to save only the entries that have changed)
+     * @return Original entry, or this entry if it is not a copy in a snapshot
+     */
+    public PasswordDatabaseEntry getOriginal() {
+        return original == null ? this : original;
+    }
+
+    /**
+     * Marks this entry as a copy of another entry in a snapshot of a database
+     * @param original Entry that this entry is a copy of
+     * @see #getOriginal()
+     */
+    public void setOriginal(PasswordDatabaseEntry original) {
+        this.original = original.getOriginal();
+    }
+
     @Override
     public abstract Object clone();
 }
@@ -6,9 +6,11 @@ public class PasswordEntry extends PasswordDatabaseEntry {
     public static final String TYPE = "password";
 
     public String username;
+    /** Password, or null if it is sealed (use {@link #getPassword()} to read it either way) */
     public String password;
     public String website;
     public String description;
+    private transient SealedSecret sealedPassword = null;
 
     public PasswordEntry(String name, String username, String password, String website,
                          String description) {
@@ -24,9 +26,50 @@ public class PasswordEntry extends PasswordDatabaseEntry {
         return TYPE;
     }
 
+    /**
+     * Gets the password, decrypting it if it is sealed. The decrypted password is not kept.
+     * @return Password
+     */
+    public String getPassword() {
+        return password == null && sealedPassword != null ? sealedPassword.unseal() : password;
+    }
+
+    /**
+     * Sets the password, replacing any sealed password
+     * @param password Password
+     */
+    public void setPassword(String password) {
+        this.password = password;
+        this.sealedPassword = null;
+    }
+
+    /**
+     * Gets the sealed password, if the password is sealed
+     * @return Sealed password, or null if the password is not sealed
+     */
+    public SealedSecret getSealedPassword() {
+        return password == null ? sealedPassword : null;
+    }
+
+    /**
+     * Sets the password to a sealed password, to be decrypted only when it is needed
+     * @param sealedPassword Sealed password
+     */
+    public void setSealedPassword(SealedSecret sealedPassword) {
+        this.password = null;
+        this.sealedPassword = sealedPassword;
+    }
+
+    @Override
+    public void unseal() {
+        setPassword(getPassword());
+    }
+
     @Override
     public Object clone() {
-        return new PasswordEntry(name, username, password, website, description);
+        PasswordEntry entry = new PasswordEntry(name, username, password, website, description);
+        entry.sealedPassword = sealedPassword;
+        return entry;
     }
 
     @Override
@@ -38,6 +81,7 @@ public class PasswordEntry extends PasswordDatabaseEntry {
         PasswordEntry pEntry = (PasswordEntry) entry;
         this.username = pEntry.username;
         this.password = pEntry.password;
+        this.sealedPassword = pEntry.sealedPassword;
         this.website = pEntry.website;
         this.description = pEntry.description;
     }
@@ -0,0 +1,66 @@
+package uk.co.davidbaxter.letmepass.model;
+
+/**
+ * A secret field of an entry (e.g. a password) that is held encrypted in memory, and only
+ * decrypted when it is needed, rather than being held in plaintext for as long as the database is
+ * open.
+ * <p>
+ * Sealed secrets are immutable. They are decrypted by the {@link Unsealer} that created them,
+ * which holds (or can derive) the key they were encrypted with.
+ */
+public class SealedSecret {
+
+    private final byte[] sealed;
+    private final Unsealer unsealer;
+
+    /**
+     * Creates a sealed secret
+     * @param sealed Encrypted secret, which is not copied and must not be modified
+     * @param unsealer Unsealer to decrypt the secret with
+     */
+    public SealedSecret(byte[] sealed, Unsealer unsealer) {
+        this.sealed = sealed;
+        this.unsealer = unsealer;
+    }
+
+    /**
+     * Decrypts the secret. The result is not kept, so each call decrypts the secret again.
+     * @return Plaintext secret
+     * @throws IllegalStateException If the secret could not be decrypted
+     */
+    public String unseal() {
+        return unsealer.unseal(sealed);
+    }
+
+    /**
+     * Gets the encrypted secret, which must not be modified
+     * @return Encrypted secret
+     */
+    public byte[] getSealed() {
+        return sealed;
+    }
+
+    /**
+     * Gets the unsealer that decrypts this secret
+     * @return Unsealer of this secret
+     */
+    public Unsealer getUnsealer() {
+        return unsealer;
+    }
+
+    /**
+     * A decrypter of sealed secrets
+     */
+    public interface Unsealer {
+
+        /**
+         * Decrypts a sealed secret
+         * @param sealed Encrypted secret
+         * @return Plaintext secret
+         * @throws IllegalStateException If the secret could not be decrypted
+         */
+        String unseal(byte[] sealed);
+
+    }
+
+}
@@ -0,0 +1,385 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import uk.co.davidbaxter.letmepass.model.DataEntry;
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.SealedSecret;
+import uk.co.davidbaxter.letmepass.model.SerializationException;
+
+/**
+ * A compact binary encoding of single entries, used in place of their JSON (see
+ * {@link JsonPasswordDatabase#entryToJson(PasswordDatabaseEntry)}) where entries are stored
+ * individually, e.g. in the records of {@link V5EncryptedDatabaseSerializer}.
+ * <p>
+ * Each type of entry is written field by field, without reflection or field names. An entry is
+ * encoded as follows, where varints are unsigned LEB128 and strings are a varint of their UTF-8
+ * length plus one (zero for null), followed by their UTF-8 bytes:
+ * <pre>
+ * uint8_t type; // 1 = folder, 2 = password, 3 = data
+ * string name;
+ * varint created; // zig-zag encoded
+ * varint updated; // zig-zag encoded
+ * uint8_t flags; // bit 0: favorite
+ * // Password: string username, password, website, description
+ * // Data: string data
+ * // Folder: nothing; folders are encoded without their children
+ * </pre>
+ * Where secrets are sealed (see {@link V6EncryptedDatabaseSerializer}), the secret fields (the
+ * password of password entries and the data of data entries) are instead bytes, encoded by a
+ * {@link SecretEncoder}: a varint of their length plus one (zero for null), followed by the bytes.
+ */
+public class BinaryEntryEncoding {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int TYPE_FOLDER = 1;
+    private static final int TYPE_PASSWORD = 2;
+    private static final int TYPE_DATA = 3;
+    private static final int FLAG_FAVORITE = 1;
+
+    private BinaryEntryEncoding() {
+    }
+
+    /**
+     * Encodes an entry, leaving space before it for the caller to fill (e.g. with a header)
+     *
+     * @param entry Entry to encode; folders are encoded without their children
+     * @param offset Number of bytes to leave before the encoded entry
+     * @return Encoded entry, starting at the offset
+     */
+    public static byte[] encode(PasswordDatabaseEntry entry, int offset) {
+        return encode(entry, offset, null);
+    }
+
+    /**
+     * Encodes an entry, leaving space before it for the caller to fill (e.g. with a header)
+     *
+     * @param entry Entry to encode; folders are encoded without their children
+     * @param offset Number of bytes to leave before the encoded entry
+     * @param secrets Encoder of the secret fields of the entry, or null to encode them as strings
+     * @return Encoded entry, starting at the offset
+     */
+    public static byte[] encode(PasswordDatabaseEntry entry, int offset,
+                                @Nullable SecretEncoder secrets) {
+        Writer writer = new Writer(offset + 64);
+        writer.length = offset;
+
+        int type;
+        if (entry instanceof PasswordEntry)
+            type = TYPE_PASSWORD;
+        else if (entry instanceof DataEntry)
+            type = TYPE_DATA;
+        else if (entry instanceof FolderEntry)
+            type = TYPE_FOLDER;
+        else
+            throw new IllegalArgumentException("Unknown entry type");
+
+        writer.writeByte(type);
+        writer.writeString(entry.name);
+        writer.writeVarint(zigZag(entry.created));
+        writer.writeVarint(zigZag(entry.updated));
+        writer.writeByte(entry.favorite ? FLAG_FAVORITE : 0);
+
+        if (type == TYPE_PASSWORD) {
+            PasswordEntry passwordEntry = (PasswordEntry) entry;
+            writer.writeString(passwordEntry.username);
+            if (secrets == null)
+                writer.writeString(passwordEntry.getPassword());
+            else
+                writer.writeBytes(secrets.encodeSecret(passwordEntry.password,
+                        passwordEntry.getSealedPassword()));
+            writer.writeString(passwordEntry.website);
+            writer.writeString(passwordEntry.description);
+        } else if (type == TYPE_DATA) {
+            DataEntry dataEntry = (DataEntry) entry;
+            if (secrets == null)
+                writer.writeString(dataEntry.getData());
+            else
+                writer.writeBytes(secrets.encodeSecret(dataEntry.data, dataEntry.getSealedData()));
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes an entry encoded with {@link #encode(PasswordDatabaseEntry, int)}
+     *
+     * @param data Buffer containing the encoded entry
+     * @param off Offset of the entry in the buffer
+     * @param len Length of the encoded entry
+     * @return Decoded entry (folders have no children)
+     * @throws SerializationException If the data is not a valid entry
+     */
+    public static PasswordDatabaseEntry decode(byte[] data, int off, int len)
+            throws SerializationException {
+        return decode(data, off, len, null);
+    }
+
+    /**
+     * Decodes an entry encoded with {@link #encode(PasswordDatabaseEntry, int, SecretEncoder)}
+     *
+     * @param data Buffer containing the encoded entry
+     * @param off Offset of the entry in the buffer
+     * @param len Length of the encoded entry
+     * @param unsealer Unsealer of the secret fields of the entry, which are left sealed, or null
+     *                 if they were encoded as strings
+     * @return Decoded entry (folders have no children)
+     * @throws SerializationException If the data is not a valid entry
+     */
+    public static PasswordDatabaseEntry decode(byte[] data, int off, int len,
+                                               @Nullable SealedSecret.Unsealer unsealer)
+            throws SerializationException {
+        Reader reader = new Reader(data, off, off + len);
+        int type = reader.readByte();
+        String name = reader.readString();
+        long created = unZigZag(reader.readVarint());
+        long updated = unZigZag(reader.readVarint());
+        int flags = reader.readByte();
+
+        PasswordDatabaseEntry entry;
+        switch (type) {
+            case TYPE_PASSWORD:
+                if (unsealer == null) {
+                    entry = new PasswordEntry(name, reader.readString(), reader.readString(),
+                            reader.readString(), reader.readString());
+                    break;
+                }
+
+                String username = reader.readString();
+                SealedSecret password = reader.readSealed(unsealer);
+                PasswordEntry passwordEntry = new PasswordEntry(name, username, null,
+                        reader.readString(), reader.readString());
+                if (password != null)
+                    passwordEntry.setSealedPassword(password);
+                entry = passwordEntry;
+                break;
+            case TYPE_DATA:
+                if (unsealer == null) {
+                    entry = new DataEntry(name, reader.readString());
+                    break;
+                }
+
+                SealedSecret sealedData = reader.readSealed(unsealer);
+                DataEntry dataEntry = new DataEntry(name, null);
+                if (sealedData != null)
+                    dataEntry.setSealedData(sealedData);
+                entry = dataEntry;
+                break;
+            case TYPE_FOLDER:
+                entry = new FolderEntry(name);
+                break;
+            default:
+                throw new SerializationException("Unknown entry type");
+        }
+
+        if (reader.position != reader.end)
+            throw new SerializationException("Trailing data after entry");
+
+        entry.created = created;
+        entry.updated = updated;
+        entry.favorite = (flags & FLAG_FAVORITE) != 0;
+        return entry;
+    }
+
+    /** Checks whether a char is a surrogate ({@link Character#isSurrogate} needs API 19) */
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * An encoder of the secret fields of entries, e.g. one that seals them
+     */
+    public interface SecretEncoder {
+
+        /**
+         * Encodes a secret field. At most one of the plaintext and sealed secret is non-null.
+         * @param plaintext Secret, if it is not sealed
+         * @param sealed Sealed secret, if it is sealed
+         * @return Encoded secret, or null if the secret is null
+         */
+        @Nullable
+        byte[] encodeSecret(@Nullable String plaintext, @Nullable SealedSecret sealed);
+
+    }
+
+    /** A growable buffer that values are encoded into */
+    private static class Writer {
+
+        byte[] buffer;
+        int length = 0;
+
+        Writer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeBytes(@Nullable byte[] value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            writeVarint(value.length + 1L);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, buffer, length, value.length);
+            length += value.length;
+        }
+
+        /**
+         * Writes a string, encoding it to UTF-8 directly into the buffer. Unpaired surrogates are
+         * replaced with '?', as {@link String#getBytes(Charset)} does.
+         */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            // Count the UTF-8 length first, so the length can precede the bytes
+            int chars = value.length();
+            int utf8Length = 0;
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else if (isSurrogate(c)) {
+                    utf8Length++;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+
+            writeVarint(utf8Length + 1L);
+            ensureCapacity(utf8Length);
+            for (int i = 0; i < chars; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (isSurrogate(c)) {
+                    buffer[length++] = (byte) '?';
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
+
+    }
+
+    /** A reader of values from an encoded buffer, checking that they lie within it */
+    private static class Reader {
+
+        final byte[] buffer;
+        final int end;
+        int position;
+
+        Reader(byte[] buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte() throws SerializationException {
+            if (position >= end)
+                throw new SerializationException("Truncated entry");
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarint() throws SerializationException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+
+            throw new SerializationException("Malformed varint");
+        }
+
+        String readString() throws SerializationException {
+            int length = readLength();
+            if (length == -1)
+                return null;
+
+            String value = new String(buffer, position, length, CHARSET);
+            position += length;
+            return value;
+        }
+
+        SealedSecret readSealed(SealedSecret.Unsealer unsealer) throws SerializationException {
+            int length = readLength();
+            if (length == -1)
+                return null;
+
+            byte[] sealed = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return new SealedSecret(sealed, unsealer);
+        }
+
+        /** Reads the length of a string or bytes, or -1 if they are null */
+        private int readLength() throws SerializationException {
+            long length = readVarint();
+            if (length == 0)
+                return -1;
+            if (length < 0 || length - 1 > end - position)
+                throw new SerializationException("Truncated field");
+
+            return (int) (length - 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,218 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import uk.co.davidbaxter.letmepass.model.SerializationException;
+import uk.co.davidbaxter.letmepass.storage.DataStore;
+
+/**
+ * A codec used to compress the records of a database (see {@link V4EncryptedDatabaseSerializer}),
+ * identified in the header of the data by its ID.
+ * <p>
+ * Records are small (usually a single entry), so on their own they hardly compress at all. The
+ * compressing codecs therefore deflate each record with a preset dictionary of the strings that
+ * occur throughout serialized entries (field names, types, common websites etc.), which lets even
+ * the first record refer back to them. A record is stored as-is if compressing it would not make
+ * it smaller, so tiny records (e.g. commits) cost only a single byte more than the stored codec.
+ */
+public enum CompressionCodec {
+
+    /** Records are stored uncompressed */
+    STORED(0, Deflater.NO_COMPRESSION),
+    /** Records are compressed quickly, for saves where writing the data is cheap (e.g. local) */
+    FAST(1, Deflater.BEST_SPEED),
+    /** Records are compressed as well as possible, for saves where the data is transferred */
+    BEST(2, Deflater.BEST_COMPRESSION);
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 1;
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Preset dictionary of strings common to serialized entries. Deflate encodes nearer matches in
+     * fewer bits, so the most common strings are at the end.
+     */
+    private static final byte[] DICTIONARY = (
+            "https://www.facebook.com/https://www.amazon.co.uk/https://www.google.com/"
+                    + "https://accounts.google.com/https://login.live.com/https://github.com/"
+                    + "https://twitter.com/https://www.paypal.com/@outlook.com@hotmail.com"
+                    + "@yahoo.com@gmail.com.co.uk.com/.org/.net/login"
+                    + "[\"data\",{\"data\":\"[\"folder\",{\"children\":[],"
+                    + "\"website\":\"https://www.\",\"description\":\"\","
+                    + "[\"password\",{\"username\":\"\",\"password\":\"\","
+                    + "\"name\":\"\",\"created\":15,\"updated\":15,\"favorite\":false}]"
+    ).getBytes(Charset.forName("UTF-8"));
+
+    private final int id;
+    private final int level;
+
+    CompressionCodec(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * Gets the ID identifying this codec in serialized data
+     * @return ID of the codec
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the codec with the given ID
+     * @param id ID of the codec
+     * @return The codec, or null if there is none with the ID
+     */
+    @Nullable
+    public static CompressionCodec fromId(int id) {
+        for (CompressionCodec codec : values()) {
+            if (codec.id == id)
+                return codec;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the codec best suited to saving to the given data store: saves to remote stores are
+     * dominated by the transfer of the data, so are compressed as well as possible, whereas saves
+     * to local stores are compressed quickly.
+     *
+     * @param store Data store that the data will be saved to
+     * @return Codec to compress the data with
+     */
+    public static CompressionCodec forDataStore(DataStore store) {
+        return store.isRemote() ? BEST : FAST;
+    }
+
+    /**
+     * Creates a compressor to compress and decompress records with this codec. Compressors hold
+     * native resources, so must be ended with {@link Compressor#end()}.
+     *
+     * @return New compressor
+     */
+    public Compressor newCompressor() {
+        return new Compressor(this);
+    }
+
+    /**
+     * Compresses and decompresses records with a codec, reusing its deflater and inflater across
+     * records. A compressor is not thread-safe.
+     */
+    public static class Compressor {
+
+        private final CompressionCodec codec;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private Deflater deflater = null;
+        private Inflater inflater = null;
+
+        private Compressor(CompressionCodec codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Compresses a record
+         * @param data Data of the record
+         * @return Compressed record
+         */
+        public byte[] compress(byte[] data) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 1);
+            if (codec != STORED) {
+                if (deflater == null)
+                    deflater = new Deflater(codec.level, true); // true = raw deflate (no wrapper)
+
+                deflater.reset();
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(data);
+                deflater.finish();
+
+                out.write(METHOD_DEFLATED);
+                while (!deflater.finished() && out.size() <= data.length) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+
+                if (deflater.finished() && out.size() <= data.length)
+                    return out.toByteArray();
+
+                // Compressing the record does not make it smaller, so store it
+                out.reset();
+            }
+
+            out.write(METHOD_STORED);
+            out.write(data, 0, data.length);
+            return out.toByteArray();
+        }
+
+        /**
+         * Decompresses a record
+         * @param data Buffer containing the compressed record
+         * @param off Offset of the record in the buffer
+         * @param len Length of the record
+         * @param maxLength Maximum length of the decompressed record
+         * @return Decompressed record
+         * @throws SerializationException If the record is malformed or too long
+         */
+        public byte[] decompress(byte[] data, int off, int len, int maxLength)
+                throws SerializationException {
+            if (len == 0)
+                throw new SerializationException("Empty compressed record");
+
+            switch (data[off]) {
+                case METHOD_STORED:
+                    byte[] record = new byte[len - 1];
+                    System.arraycopy(data, off + 1, record, 0, record.length);
+                    return record;
+                case METHOD_DEFLATED:
+                    return inflate(data, off + 1, len - 1, maxLength);
+                default:
+                    throw new SerializationException("Unknown compression method");
+            }
+        }
+
+        /** Frees the native resources of this compressor */
+        public void end() {
+            if (deflater != null)
+                deflater.end();
+            if (inflater != null)
+                inflater.end();
+        }
+
+        private byte[] inflate(byte[] data, int off, int len, int maxLength)
+                throws SerializationException {
+            if (inflater == null)
+                inflater = new Inflater(true);
+
+            // Raw inflaters never ask for the dictionary, so it must be set up front
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data, off, len);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(len * 4);
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new SerializationException("Truncated compressed record");
+
+                    out.write(buffer, 0, n);
+                    if (out.size() > maxLength)
+                        throw new SerializationException("Compressed record too long");
+                }
+            } catch (DataFormatException e) {
+                throw new SerializationException("Malformed compressed record", e);
+            }
+
+            return out.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+
+/**
+ * An index of where entries are in the tree of a database: the parent of each entry, and the
+ * members of each folder (and of the root). Entries are identified by reference, as with the
+ * lists of entries in the tree, so lookups are constant-time rather than searches of the tree.
+ * <p>
+ * The index must be kept in sync with the tree as it is modified. Removal uses the members held
+ * by the index rather than the current children of a folder, so that entries removed from a
+ * folder's children directly (e.g. by {@link FolderEntry#fromCopy(PasswordDatabaseEntry)}) can
+ * still be found and removed.
+ */
+class EntryHierarchy {
+
+    /** Parent of each entry, where the parent of root entries is null */
+    private final Map<PasswordDatabaseEntry, FolderEntry> parents = new IdentityHashMap<>();
+    private final Map<FolderEntry, Set<PasswordDatabaseEntry>> members = new IdentityHashMap<>();
+    private final Set<PasswordDatabaseEntry> rootMembers = newIdentitySet();
+
+    /**
+     * Creates an index of the tree with the given root entries
+     * @param rootEntries Entries in the root of the tree
+     */
+    EntryHierarchy(List<PasswordDatabaseEntry> rootEntries) {
+        for (PasswordDatabaseEntry entry : rootEntries)
+            add(entry, null);
+    }
+
+    /**
+     * Checks whether an entry is anywhere in the tree
+     * @param entry Entry to check
+     * @return Whether the entry is in the tree
+     */
+    boolean contains(PasswordDatabaseEntry entry) {
+        return parents.containsKey(entry);
+    }
+
+    /**
+     * Checks whether an entry is a direct member of a folder
+     * @param entry Entry to check
+     * @param parent Folder to check, or null for the root
+     * @return Whether the entry is in the folder
+     */
+    boolean isMember(PasswordDatabaseEntry entry, @Nullable FolderEntry parent) {
+        Set<PasswordDatabaseEntry> entries = parent == null ? rootMembers : members.get(parent);
+        return entries != null && entries.contains(entry);
+    }
+
+    /**
+     * Gets the parent of an entry in the tree
+     * @param entry Entry to get the parent of
+     * @return Parent folder, or null if the entry is in the root (or not in the tree)
+     */
+    @Nullable
+    FolderEntry getParent(PasswordDatabaseEntry entry) {
+        return parents.get(entry);
+    }
+
+    /**
+     * Adds an entry to a folder in the index, along with all of its children. If the entry was
+     * already in the index, it is moved.
+     *
+     * @param entry Entry to add
+     * @param parent Folder the entry has been added to, or null for the root
+     */
+    void add(PasswordDatabaseEntry entry, @Nullable FolderEntry parent) {
+        if (parents.containsKey(entry))
+            getMembers(parents.get(entry)).remove(entry);
+
+        parents.put(entry, parent);
+        getMembers(parent).add(entry);
+
+        if (entry instanceof FolderEntry) {
+            for (PasswordDatabaseEntry child : ((FolderEntry) entry).children)
+                add(child, (FolderEntry) entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the index, along with all of the members it had in the index
+     * @param entry Entry to remove
+     */
+    void remove(PasswordDatabaseEntry entry) {
+        if (!parents.containsKey(entry))
+            return;
+
+        getMembers(parents.remove(entry)).remove(entry);
+
+        Set<PasswordDatabaseEntry> children = members.remove(entry);
+        if (children != null) {
+            for (PasswordDatabaseEntry child : new ArrayList<>(children))
+                remove(child);
+        }
+    }
+
+    /**
+     * Gets the members of a folder in the index that are no longer among its children, e.g. as
+     * its children have been replaced
+     *
+     * @param folder Folder to check
+     * @return Members that are no longer children
+     */
+    List<PasswordDatabaseEntry> getRemovedChildren(FolderEntry folder) {
+        Set<PasswordDatabaseEntry> indexed = members.get(folder);
+        if (indexed == null)
+            return Collections.emptyList();
+
+        Set<PasswordDatabaseEntry> current = newIdentitySet();
+        current.addAll(folder.children);
+
+        List<PasswordDatabaseEntry> removed = new ArrayList<>();
+        for (PasswordDatabaseEntry entry : indexed) {
+            if (!current.contains(entry))
+                removed.add(entry);
+        }
+
+        return removed;
+    }
+
+    private Set<PasswordDatabaseEntry> getMembers(@Nullable FolderEntry parent) {
+        if (parent == null)
+            return rootMembers;
+
+        Set<PasswordDatabaseEntry> entries = members.get(parent);
+        if (entries == null) {
+            entries = newIdentitySet();
+            members.put(parent, entries);
+        }
+
+        return entries;
+    }
+
+    private static Set<PasswordDatabaseEntry> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<PasswordDatabaseEntry, Boolean>());
+    }
+
+}
@@ -6,27 +6,42 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.UnsupportedCharsetException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 import uk.co.davidbaxter.letmepass.model.FolderEntry;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
 import uk.co.davidbaxter.letmepass.util.Algorithms;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
 import uk.co.davidbaxter.letmepass.util.Predicate;
 
 /**
@@ -40,8 +55,18 @@ public class JsonPasswordDatabase implements PasswordDatabase {
 
     private static final Gson GSON = new GsonBuilder()
             .registerTypeAdapterFactory(new PasswordDatabaseEntryTypeAdapterFactory())
+            .registerTypeAdapter(JsonPasswordDatabase.class, new DatabaseAdapter())
             .create();
     private static final String CHARSET_NAME = "UTF-8";
+    private static final Charset CHARSET = Charset.forName(CHARSET_NAME);
+    private static final byte[] ENTRIES_START = "{\"entries\":[".getBytes(CHARSET);
+    private static final byte[] NAME_START = ",\"name\":".getBytes(CHARSET);
+    /** Least number of entries encoded by a task when serializing in parallel */
+    private static final int MIN_ENTRIES_PER_RUN = 64;
+    /** Most entries encoded by a task when serializing in parallel, so that the JSON held in memory
+     * at once is bounded however large the database is */
+    private static final int MAX_ENTRIES_PER_RUN = 256;
+    private static final int RUNS_PER_THREAD = 4;
     private static final Function<PasswordDatabaseEntry, List<PasswordDatabaseEntry>> GET_CHILDREN
             = new Function<PasswordDatabaseEntry, List<PasswordDatabaseEntry>>() {
         @Override
@@ -55,7 +80,25 @@ public class JsonPasswordDatabase implements PasswordDatabase {
     private List<PasswordDatabaseEntry> entries = new ArrayList<>();
     private String name = "";
 
-    // Default constructor for Gson reflection
+    /** Index of entries' parents and folders' members; built on first use, and not serialized */
+    private transient EntryHierarchy hierarchy = null;
+
+    /** Index of entries for searching; built on first search, and not serialized */
+    private transient TrigramIndex searchIndex = null;
+
+    /** Database this is a snapshot of, if it is one */
+    private transient JsonPasswordDatabase origin = null;
+
+    /** Last snapshot taken of this database, if any, and whether it is out of date */
+    private transient JsonPasswordDatabase lastSnapshot = null;
+    private transient boolean snapshotStale = false;
+
+    /** Copies of entries in the last snapshot (by reference), and the entries whose copies must be
+     * remade in the next snapshot: those that have changed, and the folders containing them */
+    private transient Map<PasswordDatabaseEntry, PasswordDatabaseEntry> snapshotCopies = null;
+    private transient Set<PasswordDatabaseEntry> changedEntries = null;
+
+    // Default constructor for deserialization
     private JsonPasswordDatabase() {}
 
     /**
@@ -72,8 +115,14 @@ public class JsonPasswordDatabase implements PasswordDatabase {
     @Override
     public void addEntry(PasswordDatabaseEntry entry) {
         // Only add entry if we don't already have it
-        if (!this.entries.contains(entry))
+        EntryHierarchy hierarchy = getHierarchy();
+        if (!hierarchy.isMember(entry, null)) {
             this.entries.add(entry);
+            hierarchy.add(entry, null);
+            if (searchIndex != null)
+                searchIndex.add(entry);
+            markChanged(entry);
+        }
     }
 
     @Override
@@ -84,23 +133,53 @@ public class JsonPasswordDatabase implements PasswordDatabase {
         FolderEntry folder = (FolderEntry) parent;
 
         // Only add if we don't already have exactly the same entry (reference-wise)
-        if (!folder.children.contains(entry))
+        EntryHierarchy hierarchy = getHierarchy();
+        if (!hierarchy.isMember(entry, folder)) {
             folder.children.add(entry);
+            hierarchy.add(entry, folder);
+            if (searchIndex != null)
+                searchIndex.add(entry);
+            markChanged(entry);
+        }
     }
 
     @Override
     public boolean deleteEntry(PasswordDatabaseEntry entry) {
-        // If entry exists in root, remove it from here
-        if (entries.contains(entry))
-            return entries.remove(entry);
+        // If the tree has been changed other than through this class, our indices may not know
+        // where the entry is: rebuild them and try again before giving up
+        if (!removeFromParent(entry)) {
+            hierarchy = null;
+            searchIndex = null;
+            return removeFromParent(entry);
+        }
 
-        // Entry not in root: we need to find its parent
-        PasswordDatabaseEntry parent = findParent(entry);
-        if (parent == null)
-            return false;
+        if (searchIndex != null)
+            searchIndex.remove(entry);
 
-        FolderEntry folder = (FolderEntry) parent;
-        return folder.children.remove(entry);
+        return true;
+    }
+
+    @Override
+    public void updateEntry(PasswordDatabaseEntry entry) {
+        // The children of a folder may have been replaced (e.g. by FolderEntry#fromCopy), so
+        // bring our indices in line with its current children
+        if (entry instanceof FolderEntry && hierarchy != null) {
+            FolderEntry folder = (FolderEntry) entry;
+            for (PasswordDatabaseEntry removed : hierarchy.getRemovedChildren(folder)) {
+                hierarchy.remove(removed);
+                if (searchIndex != null)
+                    searchIndex.remove(removed);
+            }
+
+            for (PasswordDatabaseEntry child : folder.children) {
+                if (!hierarchy.isMember(child, folder))
+                    hierarchy.add(child, folder);
+            }
+        }
+
+        if (searchIndex != null)
+            searchIndex.update(entry);
+        markChanged(entry);
     }
 
     @Override
@@ -154,6 +233,40 @@ public class JsonPasswordDatabase implements PasswordDatabase {
     @Override
     public void setName(String name) {
         this.name = name;
+        snapshotStale = true;
+    }
+
+    @Override
+    public JsonPasswordDatabase snapshot() {
+        // Snapshots never change, and nor does the database if nothing has been marked
+        if (origin != null)
+            return this;
+        if (lastSnapshot != null && !snapshotStale)
+            return lastSnapshot;
+
+        if (snapshotCopies == null) {
+            snapshotCopies = new IdentityHashMap<>();
+            changedEntries = Collections.newSetFromMap(
+                    new IdentityHashMap<PasswordDatabaseEntry, Boolean>());
+        }
+
+        JsonPasswordDatabase snapshot = new JsonPasswordDatabase();
+        snapshot.name = name;
+        snapshot.entries = copyForSnapshot(entries);
+        snapshot.origin = this;
+
+        changedEntries.clear();
+        snapshotStale = false;
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Gets the database that this database is a snapshot of
+     * @return Database the snapshot was taken of, or this database if it is not a snapshot
+     */
+    public JsonPasswordDatabase getOrigin() {
+        return origin == null ? this : origin;
     }
 
     @Override
@@ -162,49 +275,352 @@ public class JsonPasswordDatabase implements PasswordDatabase {
         // sacrificing practicality (users likely do not care about case)
         keyword = keyword.toLowerCase();
 
-        // Retrieve all database entries, and construct a map of matching entries to their Lev dist
-        List<PasswordDatabaseEntry> allEntries = getAllEntries();
-        final Map<PasswordDatabaseEntry, Integer> matches = new HashMap<>();
-
-        // Add the entries that have a name containing the keyword to the matches, calculating their
-        // Levenshtein distance
-        for (PasswordDatabaseEntry entry : allEntries) {
-            if (entry.name.toLowerCase().contains(keyword)) {
-                int levDistance = Algorithms.levLimited(entry.name, keyword, false);
-                matches.put(entry, levDistance == -1 ? Integer.MAX_VALUE : levDistance);
-            }
+        // Find the entries with a name, username or website containing the keyword using our
+        // index, calculating the Levenshtein distance of each name from the keyword
+        List<PasswordDatabaseEntry> found = getSearchIndex().find(keyword);
+        List<SearchMatch> matches = new ArrayList<>(found.size());
+        for (PasswordDatabaseEntry entry : found) {
+            int levDistance = Algorithms.levLimited(entry.name, keyword, false);
+            matches.add(new SearchMatch(entry,
+                    levDistance == -1 ? Integer.MAX_VALUE : levDistance));
         }
 
-        // Form a list of matches and order them by their Levenshtein distance (ascending)
-        List<PasswordDatabaseEntry> orderedMatches = new ArrayList<>(matches.keySet());
-        Collections.sort(orderedMatches, new Comparator<PasswordDatabaseEntry>() {
+        // Order the matches by their Levenshtein distance (ascending)
+        Collections.sort(matches, new Comparator<SearchMatch>() {
             @Override
-            public int compare(PasswordDatabaseEntry o1, PasswordDatabaseEntry o2) {
-                return matches.get(o1).compareTo(matches.get(o2));
+            public int compare(SearchMatch o1, SearchMatch o2) {
+                return o1.distance < o2.distance ? -1 : (o1.distance == o2.distance ? 0 : 1);
             }
         });
 
+        List<PasswordDatabaseEntry> orderedMatches = new ArrayList<>(matches.size());
+        for (SearchMatch match : matches)
+            orderedMatches.add(match.entry);
+
         return orderedMatches;
     }
 
     @Override
     public byte[] serialize() {
+        // Encode straight to bytes, rather than building the JSON as a String first
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            return GSON.toJson(this).getBytes(CHARSET_NAME);
-        } catch (UnsupportedEncodingException e) {
-            throw new UnsupportedCharsetException(CHARSET_NAME);
+            serialize(out);
+        } catch (IOException e) {
+            // Never thrown when writing to memory
+            throw new IllegalStateException(e);
         }
+        return out.toByteArray();
     }
 
-    private PasswordDatabaseEntry findParent(final PasswordDatabaseEntry target) {
-        return Algorithms.breadthFirstSearch(this.entries, new Predicate<PasswordDatabaseEntry>() {
-            @Override
-            public boolean test(PasswordDatabaseEntry entry) {
-                // We have found a match if entry is a folder and contains the target
-                return (entry instanceof FolderEntry)
-                        && ((FolderEntry) entry).children.contains(target);
+    @Override
+    public void serialize(OutputStream out) throws IOException {
+        if (ParallelUtils.getParallelism() > 1 && entries != null && entries.size() > 1)
+            serialize(out, ParallelUtils.getComputeExecutor(), ParallelUtils.getParallelism() * 2);
+        else
+            serializeSerially(out);
+    }
+
+    /**
+     * Serializes the database to a stream as {@link #serialize(OutputStream)} does, encoding the
+     * top-level entries (along with their children) in parallel on an executor. The entries are
+     * split into runs of roughly equal numbers of entries, each of which is encoded to UTF-8 by a
+     * task; the runs are then written in order, so the output is identical to that of encoding the
+     * database serially.
+     * <p>
+     * Runs hold at most {@value #MAX_ENTRIES_PER_RUN} entries (counting the descendants of
+     * folders), so no more than `maxPending` times that many entries' JSON is held in memory at
+     * once, whatever the size of the database.
+     * <p>
+     * The database must not be changed until this returns (e.g. serialize a
+     * {@link #snapshot()}).
+     *
+     * @param out Stream to write to; it is not closed
+     * @param executor Executor to encode runs of entries on
+     * @param maxPending Maximum number of encoded runs to hold in memory at once
+     * @throws IOException If the stream could not be written to
+     */
+    public void serialize(OutputStream out, ExecutorService executor, int maxPending)
+            throws IOException {
+        if (maxPending <= 0)
+            throw new IllegalArgumentException("Max pending must be positive");
+        if (entries == null) {
+            serializeSerially(out);
+            return;
+        }
+
+        // Write the JSON around the entries as the database adapter would
+        out.write(ENTRIES_START);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            boolean first = true;
+            for (final List<PasswordDatabaseEntry> run : splitEntries(entries)) {
+                while (pending.size() >= maxPending)
+                    first = writeRun(out, pending.removeFirst(), first);
+
+                pending.addLast(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return encodeRun(run);
+                    }
+                }));
             }
-        }, GET_CHILDREN);
+            while (!pending.isEmpty())
+                first = writeRun(out, pending.removeFirst(), first);
+        } finally {
+            for (Future<byte[]> future : pending)
+                future.cancel(false);
+        }
+
+        out.write(']');
+        if (name != null) {
+            // As nulls are not serialized, a null name is omitted altogether
+            out.write(NAME_START);
+            out.write(GSON.toJson(name).getBytes(CHARSET));
+        }
+        out.write('}');
+    }
+
+    /** Serializes the database to a stream on this thread, as a single JSON document */
+    private void serializeSerially(OutputStream out) throws IOException {
+        // Write through a character encoder so that the JSON is never held as a single String
+        Writer writer = new OutputStreamWriter(out, CHARSET_NAME);
+        try {
+            GSON.toJson(this, JsonPasswordDatabase.class, writer);
+        } catch (JsonIOException e) {
+            throw new IOException("Failed to write JSON", e);
+        }
+
+        // Flush encoded characters to the stream, but leave closing the stream to the caller
+        writer.flush();
+    }
+
+    /**
+     * Splits top-level entries into consecutive runs, each of at least
+     * {@link #MIN_ENTRIES_PER_RUN} entries (counting the descendants of folders), aiming for a few
+     * runs per thread so that runs of differing sizes still balance across threads. Runs end once
+     * they reach {@link #MAX_ENTRIES_PER_RUN} entries; only a single folder may exceed this.
+     */
+    private static List<List<PasswordDatabaseEntry>> splitEntries(
+            List<PasswordDatabaseEntry> entries) {
+        int[] counts = new int[entries.size()];
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = countEntries(entries.get(i));
+            total += counts[i];
+        }
+
+        int target = Math.min(MAX_ENTRIES_PER_RUN, Math.max(MIN_ENTRIES_PER_RUN,
+                total / (ParallelUtils.getParallelism() * RUNS_PER_THREAD)));
+        List<List<PasswordDatabaseEntry>> runs = new ArrayList<>();
+        int start = 0;
+        int count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            // End the run before an entry that would take it over the maximum
+            if (count > 0 && count + counts[i] > MAX_ENTRIES_PER_RUN) {
+                runs.add(entries.subList(start, i));
+                start = i;
+                count = 0;
+            }
+
+            count += counts[i];
+            if (count >= target || i == counts.length - 1) {
+                runs.add(entries.subList(start, i + 1));
+                start = i + 1;
+                count = 0;
+            }
+        }
+
+        return runs;
+    }
+
+    /** Counts an entry and, if it is a folder, all of its descendants */
+    private static int countEntries(PasswordDatabaseEntry entry) {
+        int count = 1;
+        if (entry instanceof FolderEntry) {
+            List<PasswordDatabaseEntry> children = ((FolderEntry) entry).children;
+            for (int i = 0, size = children.size(); i < size; i++)
+                count += countEntries(children.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Encodes a run of top-level entries to UTF-8 JSON, separated by commas as they are within the
+     * array of entries
+     */
+    private static byte[] encodeRun(List<PasswordDatabaseEntry> run) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, CHARSET_NAME);
+        TypeAdapter<PasswordDatabaseEntry> entryAdapter =
+                PasswordDatabaseEntryTypeAdapterFactory.getEntryAdapter();
+        for (int i = 0, size = run.size(); i < size; i++) {
+            if (i > 0)
+                writer.write(',');
+
+            // Configure each writer as Gson does when serializing the whole database
+            JsonWriter jsonWriter = GSON.newJsonWriter(writer);
+            jsonWriter.setLenient(true);
+            entryAdapter.write(jsonWriter, run.get(i));
+        }
+
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Waits for a run of entries to be encoded and writes it, preceded by a comma unless it is the
+     * first
+     * @return False, as any following run is not the first
+     */
+    private static boolean writeRun(OutputStream out, Future<byte[]> run, boolean first)
+            throws IOException {
+        try {
+            byte[] json = run.get();
+            if (!first)
+                out.write(',');
+            out.write(json);
+            return false;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while serializing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write JSON", e.getCause());
+        }
+    }
+
+    /**
+     * Serializes a single entry to JSON, in the same form as entries take within a serialized
+     * database. Children of folders are serialized along with the folder.
+     *
+     * @param entry Entry to serialize
+     * @return JSON of the entry
+     */
+    static String entryToJson(PasswordDatabaseEntry entry) {
+        return GSON.toJson(entry, PasswordDatabaseEntry.class);
+    }
+
+    /**
+     * Deserializes a single entry from JSON produced by {@link #entryToJson(PasswordDatabaseEntry)}
+     *
+     * @param json JSON of the entry
+     * @return Deserialized entry
+     * @throws JsonSyntaxException If the JSON is not a valid entry
+     */
+    static PasswordDatabaseEntry entryFromJson(String json) throws JsonSyntaxException {
+        return GSON.fromJson(json, PasswordDatabaseEntry.class);
+    }
+
+    /**
+     * Gets the search index of this database, building it if it has not yet been built (e.g. as
+     * the database has just been deserialized)
+     */
+    private TrigramIndex getSearchIndex() {
+        if (searchIndex == null) {
+            // The hierarchy is needed to keep the index in sync with folders (see updateEntry)
+            getHierarchy();
+
+            TrigramIndex index = new TrigramIndex();
+            for (PasswordDatabaseEntry entry : entries)
+                index.add(entry);
+            searchIndex = index;
+        }
+
+        return searchIndex;
+    }
+
+    /**
+     * Gets the hierarchy of this database, building it if it has not yet been built (e.g. as the
+     * database has just been deserialized)
+     */
+    private EntryHierarchy getHierarchy() {
+        if (hierarchy == null)
+            hierarchy = new EntryHierarchy(entries);
+
+        return hierarchy;
+    }
+
+    /**
+     * Marks an entry as changed since the last snapshot, along with the folders containing it, so
+     * that the next snapshot copies it again
+     * @param entry Entry that has changed, or null if only the root entries have changed
+     */
+    private void markChanged(PasswordDatabaseEntry entry) {
+        snapshotStale = true;
+        if (changedEntries == null)
+            return;
+
+        // An entry already marked has had its folders marked too
+        EntryHierarchy hierarchy = getHierarchy();
+        while (entry != null && changedEntries.add(entry))
+            entry = hierarchy.getParent(entry);
+    }
+
+    /**
+     * Copies a list of entries for a snapshot, reusing the copies in the last snapshot of entries
+     * that have not changed since. The copied lists cannot be modified.
+     * @param entries Entries to copy
+     * @return Unmodifiable list of copies
+     */
+    private List<PasswordDatabaseEntry> copyForSnapshot(List<PasswordDatabaseEntry> entries) {
+        List<PasswordDatabaseEntry> copies = new ArrayList<>(entries.size());
+        for (int i = 0, size = entries.size(); i < size; i++) {
+            PasswordDatabaseEntry entry = entries.get(i);
+            PasswordDatabaseEntry copy = snapshotCopies.get(entry);
+            if (copy == null || changedEntries.contains(entry)) {
+                if (entry instanceof FolderEntry) {
+                    FolderEntry folder = new FolderEntry(null);
+                    folder.fromCopy(entry);
+                    folder.children = copyForSnapshot(((FolderEntry) entry).children);
+                    copy = folder;
+                } else {
+                    // Clones do not keep the timestamps of the entry, so copy those too
+                    copy = (PasswordDatabaseEntry) entry.clone();
+                    copy.fromCopy(entry);
+                }
+
+                copy.setOriginal(entry);
+                snapshotCopies.put(entry, copy);
+            }
+            copies.add(copy);
+        }
+
+        return Collections.unmodifiableList(copies);
+    }
+
+    /**
+     * Forgets the snapshot copies of an entry that has been removed, along with its children
+     * @param entry Entry that has been removed
+     */
+    private void forgetCopies(PasswordDatabaseEntry entry) {
+        if (snapshotCopies.remove(entry) == null && !changedEntries.remove(entry))
+            return;
+
+        if (entry instanceof FolderEntry) {
+            for (PasswordDatabaseEntry child : ((FolderEntry) entry).children)
+                forgetCopies(child);
+        }
+    }
+
+    /**
+     * Removes an entry from the list of entries of its parent (or the root)
+     * @param entry Entry to remove
+     * @return Whether the entry was found and removed
+     */
+    private boolean removeFromParent(PasswordDatabaseEntry entry) {
+        EntryHierarchy hierarchy = getHierarchy();
+        if (!hierarchy.contains(entry))
+            return false;
+
+        FolderEntry parent = hierarchy.getParent(entry);
+        List<PasswordDatabaseEntry> siblings = parent == null ? entries : parent.children;
+        if (!siblings.remove(entry))
+            return false;
+
+        hierarchy.remove(entry);
+        markChanged(parent);
+        if (snapshotCopies != null)
+            forgetCopies(entry);
+        return true;
     }
 
     /**
@@ -223,8 +639,25 @@ public class JsonPasswordDatabase implements PasswordDatabase {
      */
     public static JsonPasswordDatabase deserialize(byte[] data, boolean gzipped)
             throws IOException, JsonSyntaxException, JsonIOException {
-        // Form input stream from our byte array, wrapping in GZIP input stream if gzipped
-        InputStream input = new ByteArrayInputStream(data);
+        return deserialize(new ByteArrayInputStream(data), gzipped);
+    }
+
+    /**
+     * Deserializes a database from a stream of its byte representation, as with
+     * {@link #deserialize(byte[], boolean)}. The stream is read as far as the end of the JSON
+     * document, and is not closed.
+     *
+     * @param input Stream of data to deserialize
+     * @param gzipped Whether the data is gzipped
+     * @return JsonPasswordDatabase of the given data
+     * @throws IOException If the GZIP stream could not be decoded or there was an error processing
+     *                     the input stream.
+     * @throws JsonSyntaxException If the provided JSON contained syntactical errors.
+     * @throws JsonIOException If there was a problem reading the data
+     */
+    public static JsonPasswordDatabase deserialize(InputStream input, boolean gzipped)
+            throws IOException, JsonSyntaxException, JsonIOException {
+        // Wrap in GZIP input stream if gzipped
         if (gzipped)
             input = new GZIPInputStream(input);
 
@@ -234,4 +667,82 @@ public class JsonPasswordDatabase implements PasswordDatabase {
         // Parse the JSON using the Gson library.
         return GSON.fromJson(inputReader, JsonPasswordDatabase.class);
     }
+
+    /**
+     * A TypeAdapter for the database, reading and writing its fields directly rather than through
+     * Gson's reflection. The JSON is the same as reflection would produce: the entries, then the
+     * name, with null fields omitted.
+     */
+    private static class DatabaseAdapter extends TypeAdapter<JsonPasswordDatabase> {
+
+        @Override
+        public void write(JsonWriter out, JsonPasswordDatabase value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            TypeAdapter<PasswordDatabaseEntry> entryAdapter =
+                    PasswordDatabaseEntryTypeAdapterFactory.getEntryAdapter();
+            out.beginObject();
+            if (value.entries != null) {
+                out.name("entries");
+                out.beginArray();
+                for (int i = 0, size = value.entries.size(); i < size; i++)
+                    entryAdapter.write(out, value.entries.get(i));
+                out.endArray();
+            }
+            out.name("name").value(value.name);
+            out.endObject();
+        }
+
+        @Override
+        public JsonPasswordDatabase read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            TypeAdapter<PasswordDatabaseEntry> entryAdapter =
+                    PasswordDatabaseEntryTypeAdapterFactory.getEntryAdapter();
+            JsonPasswordDatabase db = new JsonPasswordDatabase();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "entries":
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            break;
+                        }
+
+                        in.beginArray();
+                        while (in.hasNext())
+                            db.entries.add(entryAdapter.read(in));
+                        in.endArray();
+                        break;
+                    case "name":
+                        db.name = PasswordDatabaseEntryTypeAdapterFactory.readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return db;
+        }
+
+    }
+
+    /** An entry matching a search, along with its distance from the keyword */
+    private static class SearchMatch {
+        final PasswordDatabaseEntry entry;
+        final int distance;
+
+        SearchMatch(PasswordDatabaseEntry entry, int distance) {
+            this.entry = entry;
+            this.distance = distance;
+        }
+    }
+
 }
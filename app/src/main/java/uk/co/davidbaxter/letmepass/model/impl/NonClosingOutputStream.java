@@ -0,0 +1,28 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that passes everything through to the wrapped stream, except for
+ * {@link #close()}, which only flushes it. This allows a chain of streams to be closed (e.g. to
+ * finalize compression or encryption) without closing a stream owned by the caller.
+ */
+class NonClosingOutputStream extends FilterOutputStream {
+
+    NonClosingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+}
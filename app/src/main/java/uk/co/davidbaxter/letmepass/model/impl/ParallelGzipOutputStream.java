@@ -0,0 +1,256 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+/**
+ * An output stream that gzips everything written to it, compressing fixed-size blocks in parallel
+ * on an executor, in the manner of pigz. The output is a single, standard gzip member, which can
+ * be read with {@link java.util.zip.GZIPInputStream}.
+ * <p>
+ * Each block is deflated independently, with the last 32KiB of the previous block (the most that
+ * deflate can refer back to) as its preset dictionary, so compression is almost as good as
+ * deflating the data as a whole. Every block but the last ends with a sync flush, which
+ * byte-aligns it without ending the deflate stream, so the compressed blocks can simply be
+ * concatenated. The CRC of the data is computed on the writing thread.
+ * <p>
+ * Sync flushing is only available from Android 4.4 (API 19); see {@link #isSupported()}, or use
+ * {@link #create(OutputStream)} to fall back to a {@link GZIPOutputStream} where it is not.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /** Number of bytes of uncompressed data in each block */
+    public static final int DEFAULT_BLOCK_SIZE = 131072; // 128KiB
+
+    private static final int DICTIONARY_SIZE = 32768; // deflate window size
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final boolean SUPPORTED = isSyncFlushSupported();
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int blockLength = 0;
+    /** Previous (full) block, whose end is the dictionary of the next */
+    private byte[] previousBlock = null;
+    private long totalLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new parallel gzip stream, writing the gzip header immediately
+     *
+     * @param out Stream to write compressed data to
+     * @param level Compression level, from {@link Deflater}
+     * @param blockSize Number of bytes of uncompressed data in each block (at least 32KiB)
+     * @param executor Executor to compress blocks on
+     * @param maxPending Maximum number of blocks to hold in memory while they are compressed
+     * @throws IOException If the header could not be written
+     * @throws UnsupportedOperationException If sync flushing is not supported on this platform
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int blockSize,
+                                    ExecutorService executor, int maxPending) throws IOException {
+        if (!SUPPORTED)
+            throw new UnsupportedOperationException("Deflater does not support sync flushing");
+        if (blockSize < DICTIONARY_SIZE || maxPending <= 0)
+            throw new IllegalArgumentException(
+                    "Block size must be at least 32KiB and max pending must be positive");
+
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.block = new byte[blockSize];
+
+        // Header: magic, deflate, no flags, no modification time, no extra flags, unknown OS
+        byte[] header = new byte[GZIP_HEADER_LENGTH];
+        header[0] = (byte) GZIP_MAGIC;
+        header[1] = (byte) (GZIP_MAGIC >> 8);
+        header[2] = Deflater.DEFLATED;
+        out.write(header);
+    }
+
+    /**
+     * Checks whether parallel gzip streams can be created on this platform
+     * @return Whether sync flushing is supported
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Creates a stream that gzips everything written to it, in parallel on the shared compute
+     * executor if supported, and otherwise with a {@link GZIPOutputStream}
+     *
+     * @param out Stream to write compressed data to
+     * @return Gzip stream
+     * @throws IOException If the header could not be written
+     */
+    public static OutputStream create(OutputStream out) throws IOException {
+        if (!SUPPORTED)
+            return new GZIPOutputStream(out, STREAM_BUFFER_SIZE);
+
+        return new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE,
+                ParallelUtils.getComputeExecutor(), ParallelUtils.getParallelism() * 2);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+
+        while (len > 0) {
+            // Submit the current block once full; we never know whether it is the last until close
+            if (blockLength == block.length)
+                submitBlock(false);
+
+            int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only completed blocks can be written, so we can only flush what has been compressed
+        out.flush();
+    }
+
+    /**
+     * Compresses and writes the last block and any blocks still being compressed, followed by
+     * the gzip trailer, then closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        submitBlock(true);
+        while (!pending.isEmpty())
+            writeNextBlock();
+
+        // Trailer: CRC-32 and uncompressed length (mod 2^32), both little-endian
+        long checksum = crc.getValue();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (checksum >> (i * 8));
+            trailer[4 + i] = (byte) (totalLength >> (i * 8));
+        }
+        out.write(trailer);
+
+        closed = true;
+        out.close();
+    }
+
+    /** Submits the current block for compression, writing out completed blocks to make room */
+    private void submitBlock(final boolean last) throws IOException {
+        while (pending.size() >= maxPending)
+            writeNextBlock();
+
+        crc.update(block, 0, blockLength);
+        totalLength += blockLength;
+
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        pending.addLast(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return deflateBlock(input, length, dictionary, last);
+            }
+        }));
+
+        // The submitted buffer now belongs to the task, and is only read from here on
+        previousBlock = block;
+        block = new byte[block.length];
+        blockLength = 0;
+    }
+
+    /**
+     * Deflates a block of data as part of a larger deflate stream
+     *
+     * @param input Buffer containing the block
+     * @param length Length of the block
+     * @param dictionary Previous block, whose last 32KiB are the dictionary; null if first
+     * @param last Whether this is the last block, which ends the deflate stream
+     * @return Compressed block
+     */
+    @SuppressWarnings("NewApi") // Instances are only created where sync flushing is supported
+    private byte[] deflateBlock(byte[] input, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true); // true = raw deflate (no zlib wrapper)
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE,
+                        DICTIONARY_SIZE);
+            }
+            deflater.setInput(input, 0, length);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    result.write(buffer, 0, n);
+                }
+            } else {
+                // A sync flush is complete once it no longer fills the buffer
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Waits for the oldest pending block to be compressed and writes it */
+    private void writeNextBlock() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    /** Checks whether the platform's Deflater supports flush modes (Android API 19+) */
+    private static boolean isSyncFlushSupported() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+}
@@ -1,13 +1,16 @@
 package uk.co.davidbaxter.letmepass.model.impl;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.TypeAdapter;
 import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
+import java.util.List;
 
 import uk.co.davidbaxter.letmepass.model.DataEntry;
 import uk.co.davidbaxter.letmepass.model.FolderEntry;
@@ -21,89 +24,315 @@ import uk.co.davidbaxter.letmepass.model.PasswordEntry;
  * classes must be such that they are deserialized correctly into the appropriate subclass. The
  * class also adds a type in the JSON to identify the subclass (since this information is not
  * encoded otherwise).
+ * <p>
+ * The adapters read and write the fields of each subclass directly, rather than through Gson's
+ * reflection, but produce the same JSON as reflection would: the fields of the subclass followed
+ * by those of PasswordDatabaseEntry, with null fields omitted.
  */
 public class PasswordDatabaseEntryTypeAdapterFactory implements TypeAdapterFactory {
 
+    private static final TypeAdapter<PasswordDatabaseEntry> ENTRY_ADAPTER = new EntryAdapter();
+    private static final TypeAdapter<FolderEntry> FOLDER_ADAPTER = new FolderAdapter();
+    private static final TypeAdapter<DataEntry> DATA_ADAPTER = new DataAdapter();
+    private static final TypeAdapter<PasswordEntry> PASSWORD_ADAPTER = new PasswordAdapter();
+
     @Override
+    @SuppressWarnings("unchecked")
     public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
-        TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+        Class<? super T> rawType = type.getRawType();
+
+        // Subclasses are (de)serialized without their type, as Gson would by default
+        if (rawType == FolderEntry.class)
+            return (TypeAdapter<T>) FOLDER_ADAPTER;
+        if (rawType == DataEntry.class)
+            return (TypeAdapter<T>) DATA_ADAPTER;
+        if (rawType == PasswordEntry.class)
+            return (TypeAdapter<T>) PASSWORD_ADAPTER;
 
-        // If this is not a PDE, we delegate to Gson
-        if (!type.getRawType().isAssignableFrom(PasswordDatabaseEntry.class))
-            return delegate;
+        // If this is not a PDE, we leave it to Gson
+        if (!rawType.isAssignableFrom(PasswordDatabaseEntry.class))
+            return null;
 
-        return (TypeAdapter<T>) newPdeAdapter(gson);
+        return (TypeAdapter<T>) ENTRY_ADAPTER;
     }
 
     /**
-     * Creates a PasswordDatabaseEntry {@link com.google.gson.TypeAdapter} for the given Gson.
-     * <p>
-     * This TypeAdapter writes and reads JSON for PasswordDatabaseEntry classes. An array is used
-     * to store first the type of the entry and next the entry itself. Reading and writing of the
-     * JSON itself for the subclasses of PDE is done by delegation to Gson.
-     *
-     * @param gson Gson instance for which to create the adapter
+     * Gets the adapter for PasswordDatabaseEntry classes, which writes and reads an entry along
+     * with its type
      * @return TypeAdapter for PDEs
      */
-    private TypeAdapter<PasswordDatabaseEntry> newPdeAdapter(Gson gson) {
-        // Get all of the delegates for each type
-        final TypeAdapter<FolderEntry> folderDelegate = gson.getDelegateAdapter(this,
-                TypeToken.get(FolderEntry.class));
-        final TypeAdapter<DataEntry> dataDelegate = gson.getDelegateAdapter(this,
-                TypeToken.get(DataEntry.class));
-        final TypeAdapter<PasswordEntry> passwordDelegate = gson.getDelegateAdapter(this,
-                TypeToken.get(PasswordEntry.class));
-
-        return new TypeAdapter<PasswordDatabaseEntry>() {
-            @Override
-            public void write(JsonWriter out, PasswordDatabaseEntry value) throws IOException {
-                out.beginArray(); // Start writing an array
-                out.value(value.getType()); // Write first value in array (type name)
-
-                // Deduce the correct delegate TypeAdapter to use
-                TypeAdapter delegate = null;
-                switch (value.getType()) {
-                    case FolderEntry.TYPE:
-                        delegate = folderDelegate;
-                        break;
-                    case DataEntry.TYPE:
-                        delegate = dataDelegate;
-                        break;
-                    case PasswordEntry.TYPE:
-                        delegate = passwordDelegate;
-                        break;
-                }
+    static TypeAdapter<PasswordDatabaseEntry> getEntryAdapter() {
+        return ENTRY_ADAPTER;
+    }
+
+    /**
+     * Reads a string as Gson would, allowing nulls and other primitives in place of strings
+     */
+    static String readString(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return null;
+            case BOOLEAN:
+                return Boolean.toString(in.nextBoolean());
+            default:
+                return in.nextString();
+        }
+    }
+
+    /**
+     * A PasswordDatabaseEntry TypeAdapter. An array is used to store first the type of the entry
+     * and next the entry itself, which is written and read by the adapter of its subclass.
+     */
+    private static class EntryAdapter extends TypeAdapter<PasswordDatabaseEntry> {
+
+        @Override
+        public void write(JsonWriter out, PasswordDatabaseEntry value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray(); // Start writing an array
+            out.value(value.getType()); // Write first value in array (type name)
+
+            // Write the entry's fields with the adapter of its type
+            if (value instanceof FolderEntry)
+                FOLDER_ADAPTER.write(out, (FolderEntry) value);
+            else if (value instanceof DataEntry)
+                DATA_ADAPTER.write(out, (DataEntry) value);
+            else if (value instanceof PasswordEntry)
+                PASSWORD_ADAPTER.write(out, (PasswordEntry) value);
+            else
+                throw new IllegalArgumentException("Unknown entry type");
+
+            out.endArray();
+        }
+
+        @Override
+        public PasswordDatabaseEntry read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            in.beginArray(); // Begin reading an array
+            String type = in.nextString(); // Read type of entry
+
+            // Read the entry with the adapter of the found type
+            PasswordDatabaseEntry entry;
+            switch (type) {
+                case FolderEntry.TYPE:
+                    entry = FOLDER_ADAPTER.read(in);
+                    break;
+                case DataEntry.TYPE:
+                    entry = DATA_ADAPTER.read(in);
+                    break;
+                case PasswordEntry.TYPE:
+                    entry = PASSWORD_ADAPTER.read(in);
+                    break;
+                default:
+                    throw new JsonParseException("Unknown entry type: " + type);
+            }
+
+            in.endArray();
+            return entry;
+        }
+
+    }
+
+    /**
+     * A TypeAdapter for a subclass of PasswordDatabaseEntry, writing its own fields followed by
+     * those common to all entries. Fields missing from the JSON are left null, zero or false.
+     */
+    private static abstract class BaseAdapter<T extends PasswordDatabaseEntry>
+            extends TypeAdapter<T> {
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeFields(out, value);
+            out.name("name").value(value.name);
+            out.name("created").value(value.created);
+            out.name("updated").value(value.updated);
+            out.name("favorite").value(value.favorite);
+            out.endObject();
+        }
 
-                // Delegate writing the entry's fields to the delegate adapter
-                delegate.write(out, value);
-                out.endArray();
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
             }
 
-            @Override
-            public PasswordDatabaseEntry read(JsonReader in) throws IOException {
-                in.beginArray(); // Begin reading an array
-                String type = in.nextString(); // Read type of entry
+            T entry = newEntry();
+            entry.created = 0;
+            entry.updated = 0;
 
-                // Deduce delegate to use from found type
-                TypeAdapter delegate = null;
-                switch (type) {
-                    case FolderEntry.TYPE:
-                        delegate = folderDelegate;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case "name":
+                        entry.name = readString(in);
                         break;
-                    case DataEntry.TYPE:
-                        delegate = dataDelegate;
+                    case "created":
+                        entry.created = readLong(in, entry.created);
                         break;
-                    case PasswordEntry.TYPE:
-                        delegate = passwordDelegate;
+                    case "updated":
+                        entry.updated = readLong(in, entry.updated);
                         break;
+                    case "favorite":
+                        entry.favorite = readBoolean(in, entry.favorite);
+                        break;
+                    default:
+                        if (!readField(in, name, entry))
+                            in.skipValue();
                 }
+            }
+            in.endObject();
+
+            return entry;
+        }
+
+        /** Creates an entry with no fields set, to read fields into */
+        abstract T newEntry();
+
+        /** Writes the fields specific to the subclass */
+        abstract void writeFields(JsonWriter out, T value) throws IOException;
 
-                // Read entry using delegate TypeAdapter
-                PasswordDatabaseEntry entry = (PasswordDatabaseEntry) delegate.read(in);
-                in.endArray();
+        /**
+         * Reads a field specific to the subclass
+         * @return Whether the field was read, or false if it is not a field of the subclass
+         */
+        abstract boolean readField(JsonReader in, String name, T entry) throws IOException;
 
-                return entry;
+        private static long readLong(JsonReader in, long defaultValue) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return defaultValue;
             }
-        };
+            return in.nextLong();
+        }
+
+        private static boolean readBoolean(JsonReader in, boolean defaultValue)
+                throws IOException {
+            switch (in.peek()) {
+                case NULL:
+                    in.nextNull();
+                    return defaultValue;
+                case STRING:
+                    return Boolean.parseBoolean(in.nextString());
+                default:
+                    return in.nextBoolean();
+            }
+        }
+
     }
+
+    private static class FolderAdapter extends BaseAdapter<FolderEntry> {
+
+        @Override
+        FolderEntry newEntry() {
+            return new FolderEntry(null);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, FolderEntry value) throws IOException {
+            List<PasswordDatabaseEntry> children = value.children;
+            if (children == null)
+                return;
+
+            out.name("children");
+            out.beginArray();
+            for (int i = 0, size = children.size(); i < size; i++)
+                ENTRY_ADAPTER.write(out, children.get(i));
+            out.endArray();
+        }
+
+        @Override
+        boolean readField(JsonReader in, String name, FolderEntry entry) throws IOException {
+            if (!name.equals("children"))
+                return false;
+
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return true;
+            }
+
+            in.beginArray();
+            while (in.hasNext())
+                entry.children.add(ENTRY_ADAPTER.read(in));
+            in.endArray();
+            return true;
+        }
+
+    }
+
+    private static class DataAdapter extends BaseAdapter<DataEntry> {
+
+        @Override
+        DataEntry newEntry() {
+            return new DataEntry(null, null);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, DataEntry value) throws IOException {
+            out.name("data").value(value.getData());
+        }
+
+        @Override
+        boolean readField(JsonReader in, String name, DataEntry entry) throws IOException {
+            if (!name.equals("data"))
+                return false;
+
+            entry.data = readString(in);
+            return true;
+        }
+
+    }
+
+    private static class PasswordAdapter extends BaseAdapter<PasswordEntry> {
+
+        @Override
+        PasswordEntry newEntry() {
+            return new PasswordEntry(null, null, null, null, null);
+        }
+
+        @Override
+        void writeFields(JsonWriter out, PasswordEntry value) throws IOException {
+            out.name("username").value(value.username);
+            out.name("password").value(value.getPassword());
+            out.name("website").value(value.website);
+            out.name("description").value(value.description);
+        }
+
+        @Override
+        boolean readField(JsonReader in, String name, PasswordEntry entry) throws IOException {
+            switch (name) {
+                case "username":
+                    entry.username = readString(in);
+                    return true;
+                case "password":
+                    entry.password = readString(in);
+                    return true;
+                case "website":
+                    entry.website = readString(in);
+                    return true;
+                case "description":
+                    entry.description = readString(in);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+    }
+
 }
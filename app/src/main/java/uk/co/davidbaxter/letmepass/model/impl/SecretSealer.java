@@ -0,0 +1,104 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
+import uk.co.davidbaxter.letmepass.crypto.impl.NonceSequence;
+import uk.co.davidbaxter.letmepass.model.SealedSecret;
+
+/**
+ * Seals and unseals the secret fields of entries with the key of a database, for
+ * {@link V6EncryptedDatabaseSerializer}. A sealed secret is a nonce followed by the AES-GCM
+ * ciphertext of the UTF-8 secret.
+ * <p>
+ * The key is derived through the given encrypter each time it is needed, so the encrypter should
+ * derive keys through a {@link uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache}.
+ */
+class SecretSealer implements SealedSecret.Unsealer {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final byte[] NO_ASSOCIATED_DATA = new byte[0];
+
+    private final Argon2KeyDerivationFunction kdf;
+    private final String mp;
+    private final AesGcmEncrypter encrypter;
+    private final NonceSequence nonces = new NonceSequence();
+
+    /**
+     * Creates a sealer
+     * @param kdf KDF that the key is derived with
+     * @param mp Master password that the key is derived from
+     * @param encrypter Encrypter deriving the key from the KDF and master password
+     */
+    SecretSealer(Argon2KeyDerivationFunction kdf, String mp, AesGcmEncrypter encrypter) {
+        this.kdf = kdf;
+        this.mp = mp;
+        this.encrypter = encrypter;
+    }
+
+    /**
+     * Checks whether this sealer seals with the key derived by the given KDF and master password
+     */
+    boolean matches(Argon2KeyDerivationFunction kdf, String mp) {
+        return this.kdf == kdf && this.mp.equals(mp);
+    }
+
+    /**
+     * Seals a secret
+     * @param key Key of this sealer (see {@link #deriveKey()})
+     * @param secret Secret to seal
+     * @return Sealed secret
+     */
+    byte[] seal(byte[] key, String secret) {
+        byte[] nonce = nonces.next();
+
+        // Encrypt straight into the sealed secret, after the nonce
+        byte[] plaintext = secret.getBytes(CHARSET);
+        byte[] sealed = Arrays.copyOf(nonce,
+                nonce.length + encrypter.getOutputSize(plaintext.length, true));
+        try {
+            encrypter.crypt(key, nonce, NO_ASSOCIATED_DATA, plaintext, 0, plaintext.length, sealed,
+                    nonce.length, true);
+        } catch (DecryptionException e) {
+            // This is never thrown when encrypting
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        return sealed;
+    }
+
+    /**
+     * Derives the key of this sealer, which should be zeroed once it is no longer needed
+     * @return Key
+     */
+    byte[] deriveKey() {
+        return encrypter.deriveKey();
+    }
+
+    @Override
+    public String unseal(byte[] sealed) {
+        if (sealed.length < HybridIvFactory.IV_LENGTH)
+            throw new IllegalStateException("Sealed secret too short");
+
+        byte[] nonce = Arrays.copyOf(sealed, HybridIvFactory.IV_LENGTH);
+        byte[] key = deriveKey();
+        try {
+            byte[] plaintext = encrypter.crypt(key, nonce, NO_ASSOCIATED_DATA, sealed,
+                    nonce.length, sealed.length - nonce.length, false);
+            String secret = new String(plaintext, CHARSET);
+            Arrays.fill(plaintext, (byte) 0);
+            return secret;
+        } catch (DecryptionException e) {
+            throw new IllegalStateException("Failed to unseal secret", e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+
+/**
+ * An inverted index of the trigrams (3-character substrings) of the searchable text of entries:
+ * their names, and the usernames and websites of password entries. Text is indexed in lowercase.
+ * <p>
+ * Finding the entries whose text contains a keyword of at least three characters only involves
+ * the entries containing every trigram of the keyword, rather than every entry; shorter keywords
+ * are matched against the indexed text of every entry, but without re-lowercasing it.
+ * <p>
+ * Entries are indexed by reference, and must be updated with {@link #update(PasswordDatabaseEntry)}
+ * when modified in place. Candidates found through trigrams are checked against the current text
+ * of the entry, so an out-of-date index does not return entries that no longer match, though it
+ * may miss entries that have been changed to match.
+ */
+class TrigramIndex {
+
+    private static final int N = 3;
+
+    private final Map<String, Set<PasswordDatabaseEntry>> postings = new HashMap<>();
+    private final Map<PasswordDatabaseEntry, String[]> indexedText = new IdentityHashMap<>();
+
+    /**
+     * Adds an entry (and its children, if it is a folder) to the index
+     * @param entry Entry to add
+     */
+    synchronized void add(PasswordDatabaseEntry entry) {
+        if (!indexedText.containsKey(entry)) {
+            String[] text = getSearchableText(entry);
+            indexedText.put(entry, text);
+            for (String field : text) {
+                for (int i = 0; i + N <= field.length(); i++)
+                    getPostings(field.substring(i, i + N), true).add(entry);
+            }
+        }
+
+        if (entry instanceof FolderEntry) {
+            for (PasswordDatabaseEntry child : ((FolderEntry) entry).children)
+                add(child);
+        }
+    }
+
+    /**
+     * Removes an entry (and its children, if it is a folder) from the index
+     * @param entry Entry to remove
+     */
+    synchronized void remove(PasswordDatabaseEntry entry) {
+        String[] text = indexedText.remove(entry);
+        if (text != null)
+            removePostings(entry, text);
+
+        if (entry instanceof FolderEntry) {
+            for (PasswordDatabaseEntry child : ((FolderEntry) entry).children)
+                remove(child);
+        }
+    }
+
+    /**
+     * Re-indexes an entry that has been modified in place, e.g. with
+     * {@link PasswordDatabaseEntry#fromCopy(PasswordDatabaseEntry)}. If the entry is a folder, this
+     * also indexes any children added to it.
+     *
+     * @param entry Entry to re-index
+     */
+    synchronized void update(PasswordDatabaseEntry entry) {
+        // Only the entry itself may have changed text; its children are indexed if not already
+        String[] text = indexedText.get(entry);
+        if (text != null && !Arrays.equals(text, getSearchableText(entry))) {
+            removePostings(entry, text);
+            indexedText.remove(entry);
+        }
+
+        add(entry);
+    }
+
+    /**
+     * Finds the entries whose searchable text contains the given keyword, ignoring case
+     * @param keyword Keyword to search for
+     * @return Matching entries, in no particular order
+     */
+    synchronized List<PasswordDatabaseEntry> find(String keyword) {
+        keyword = keyword.toLowerCase();
+
+        // Keywords too short to have trigrams can only be checked against every entry
+        boolean scanAll = keyword.length() < N;
+        Collection<PasswordDatabaseEntry> candidates;
+        if (scanAll) {
+            candidates = indexedText.keySet();
+        } else {
+            // Gather the postings of each trigram of the keyword, smallest first
+            List<Set<PasswordDatabaseEntry>> sets = new ArrayList<>();
+            for (int i = 0; i + N <= keyword.length(); i++) {
+                Set<PasswordDatabaseEntry> entries =
+                        getPostings(keyword.substring(i, i + N), false);
+                if (entries == null)
+                    return new ArrayList<>();
+                sets.add(entries);
+            }
+            Collections.sort(sets, new Comparator<Set<PasswordDatabaseEntry>>() {
+                @Override
+                public int compare(Set<PasswordDatabaseEntry> o1, Set<PasswordDatabaseEntry> o2) {
+                    return o1.size() - o2.size();
+                }
+            });
+
+            // Candidates must contain every trigram
+            List<PasswordDatabaseEntry> intersection = new ArrayList<>(sets.get(0));
+            for (int i = 1; i < sets.size(); i++) {
+                Iterator<PasswordDatabaseEntry> iter = intersection.iterator();
+                while (iter.hasNext()) {
+                    if (!sets.get(i).contains(iter.next()))
+                        iter.remove();
+                }
+            }
+            candidates = intersection;
+        }
+
+        // Containing every trigram does not mean containing the keyword, so check each candidate.
+        // We check against the current text, in case the entry has been modified since indexing,
+        // unless we are checking every entry (where we avoid lowercasing the text of each).
+        List<PasswordDatabaseEntry> matches = new ArrayList<>();
+        for (PasswordDatabaseEntry entry : candidates) {
+            String[] text = scanAll ? indexedText.get(entry) : getSearchableText(entry);
+            for (String field : text) {
+                if (field.contains(keyword)) {
+                    matches.add(entry);
+                    break;
+                }
+            }
+        }
+
+        return matches;
+    }
+
+    /** Removes an entry from the postings of each trigram of its text */
+    private void removePostings(PasswordDatabaseEntry entry, String[] text) {
+        for (String field : text) {
+            for (int i = 0; i + N <= field.length(); i++) {
+                String trigram = field.substring(i, i + N);
+                Set<PasswordDatabaseEntry> entries = getPostings(trigram, false);
+                if (entries != null) {
+                    entries.remove(entry);
+                    if (entries.isEmpty())
+                        postings.remove(trigram);
+                }
+            }
+        }
+    }
+
+    private Set<PasswordDatabaseEntry> getPostings(String trigram, boolean create) {
+        Set<PasswordDatabaseEntry> entries = postings.get(trigram);
+        if (entries == null && create) {
+            entries = Collections.newSetFromMap(
+                    new IdentityHashMap<PasswordDatabaseEntry, Boolean>());
+            postings.put(trigram, entries);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Gets the searchable text of an entry, in lowercase
+     * @param entry Entry to get the text of
+     * @return Searchable fields of the entry
+     */
+    private static String[] getSearchableText(PasswordDatabaseEntry entry) {
+        if (entry instanceof PasswordEntry) {
+            PasswordEntry passwordEntry = (PasswordEntry) entry;
+            return new String[] {
+                    toLowerCase(entry.name),
+                    toLowerCase(passwordEntry.username),
+                    toLowerCase(passwordEntry.website)
+            };
+        }
+
+        return new String[] { toLowerCase(entry.name) };
+    }
+
+    private static String toLowerCase(String text) {
+        return text == null ? "" : text.toLowerCase();
+    }
+
+}
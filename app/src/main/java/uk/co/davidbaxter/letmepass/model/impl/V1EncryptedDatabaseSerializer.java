@@ -1,21 +1,34 @@
 package uk.co.davidbaxter.letmepass.model.impl;
 
+import android.support.annotation.Nullable;
+
 import com.google.android.gms.common.util.IOUtils;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.GZIPInputStream;
 
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
 import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
 import uk.co.davidbaxter.letmepass.crypto.impl.Argon2KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.crypto.impl.CachingKeyDerivationFunction;
 import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
 import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
@@ -23,6 +36,14 @@ import uk.co.davidbaxter.letmepass.model.SerializationException;
 
 /**
  * An {@link EncryptedDatabaseSerializer} for version 1 of the DB format
+ * <p>
+ * Serialization is streamed: the JSON is written through gzip compression and GCM encryption
+ * straight to the output, and read back the same way, so only fixed-size buffers are held in
+ * memory rather than copies of the whole database.
+ * <p>
+ * Once a database has been deserialized, its KDF parameters and salt are reused for subsequent
+ * serialization. Together with a {@link DerivedKeyCache} (see {@link #setKeyCache(DerivedKeyCache)}),
+ * this means the key is derived once on opening the database, rather than on every save.
  */
 public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerializer {
 
@@ -32,9 +53,12 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
     private static final int ARGON_PARALLELISM = 2;  // 2 threads
     private static final int ARGON_SALT_LEN = 16;    // 128-bit salt
     private static final int AES_KEY_LEN_BYTES = 32; // 256-bit hash length (for AES-256)
+    private static final int HEADER_DIGEST_LEN = 32; // SHA-256 digest length
+    private static final int STREAM_BUFFER_SIZE = 8192;
 
     private HybridIvFactory newIvFactory;
     private Argon2KeyDerivationFunction kdf;
+    private DerivedKeyCache keyCache = null;
 
     /**
      * Constructs a new V1EncryptedDatabaseSerializer
@@ -47,55 +71,71 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
 
     @Override
     public byte[] serialize(PasswordDatabase db, String mp) throws SerializationException {
-        if (!(db instanceof JsonPasswordDatabase))
-            throw new IllegalArgumentException("Database is not of correct type");
-
-        byte[] payload = db.serialize();
-
-        // GZIP the payload
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            payload = gzip(payload);
+            serialize(db, mp, out);
         } catch (IOException e) {
-            throw new SerializationException("Failed to GZIP payload", e);
+            // We are writing to memory, so this can only be a failure to serialize the payload
+            throw new SerializationException("Failed to serialize payload", e);
         }
 
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        if (!(db instanceof JsonPasswordDatabase))
+            throw new IllegalArgumentException("Database is not of correct type");
+
         // Re-generate IV now, so we can use it in encryption AND store it in our header before
         // we encrypt: we cannot encrypt now because we don't have the header to hash & encrypt!
         newIvFactory.generateNewIv();
 
-        // Generate header
-        byte[] header = new Header(this, payload.length).toByteArray();
-
-        // Get a digest of the header
-        byte[] headerHash = getSha256Hash(header);
-
-        // Copy the header hash & payload to the text to be encrypted
-        byte[] textToEncrypt = new byte[headerHash.length + payload.length];
-        System.arraycopy(headerHash, 0, textToEncrypt, 0, headerHash.length);
-        System.arraycopy(payload, 0, textToEncrypt, headerHash.length, payload.length);
+        // Generate and write the header. The payload is compressed as it is streamed, so its
+        // length is not known until after the header has been written (and hashed).
+        byte[] header = new Header(this, Header.PAYLOAD_LENGTH_UNKNOWN).toByteArray();
+        out.write(header);
 
-        // Encrypt what needs to be encrypted
-        AesGcmEncrypter encrypter = new AesGcmEncrypter(kdf, newIvFactory);
+        // Chain: JSON -> GZIP -> AES-GCM -> out. We shield `out` from being closed, as closing the
+        // chain is what finalizes the gzip trailer and GCM MAC.
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(getKeyFunction(kdf), newIvFactory);
         encrypter.setMasterPassword(mp);
-        byte[] encrypted = encrypter.encrypt(textToEncrypt);
-
-        // Finally, copy the header and encrypted text to a single array and return
-        byte[] out = new byte[header.length + encrypted.length];
-        System.arraycopy(header, 0, out, 0, header.length);
-        System.arraycopy(encrypted, 0, out, header.length, encrypted.length);
-        return out;
+        OutputStream cipherOut = encrypter.encryptingStream(new NonClosingOutputStream(out));
+        OutputStream gzipOut = null;
+        try {
+            // The header digest is encrypted first, followed by the compressed payload
+            cipherOut.write(getSha256Hash(header));
+            gzipOut = ParallelGzipOutputStream.create(cipherOut);
+            db.serialize(gzipOut);
+            gzipOut.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(gzipOut != null ? gzipOut : cipherOut);
+            throw e;
+        }
     }
 
     @Override
     public PasswordDatabase deserialize(byte[] data, String mp) throws SerializationException,
             DecryptionException {
-        // Create buffer of data and read header
-        ByteBuffer encBuff = ByteBuffer.wrap(data);
-        Header header = new Header(encBuff);
+        try {
+            return deserialize(new ByteArrayInputStream(data), mp);
+        } catch (IOException e) {
+            // We are reading from memory, so this can only be a malformed payload
+            throw new SerializationException("Failed to read payload", e);
+        }
+    }
 
-        // Read remainder of buffer into an encrypted buffer
-        byte[] encrypted = new byte[encBuff.remaining()];
-        encBuff.get(encrypted);
+    @Override
+    public PasswordDatabase deserialize(InputStream in, String mp) throws SerializationException,
+            DecryptionException, IOException {
+        // Read header from the start of the data
+        Header header;
+        try {
+            header = new Header(new DataInputStream(in));
+        } catch (IOException e) {
+            throw new SerializationException("Failed to read header", e);
+        }
 
         // Use an IV factory based on the data's stored IV, so we can decrypt and increment
         // correctly in future
@@ -114,60 +154,99 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
         // Decrypt the encrypted payload using the KDF and IV factory for it;
         // we don't use our stored KDF because this has different params; same for IV factory, but
         // we do update our IV factory so that we can generate new IVs sequentially
-        AesGcmEncrypter encrypter = new AesGcmEncrypter(kdf, decIv);
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(getKeyFunction(kdf), decIv);
         encrypter.setMasterPassword(mp);
-        byte[] decrypted;
-        try {
-            decrypted = encrypter.decrypt(encrypted);
-        } catch (DecryptionException e) {
-            throw e;
-        }
-
-        // Get the decrypted header digest, then get the actual header digest and compare
-        byte[] digest = new byte[32];
-        ByteBuffer decBuff = ByteBuffer.wrap(decrypted)
-                .get(digest);
-        byte[] actualDigest = getSha256Hash(header.toByteArray());
+        InputStream decIn = encrypter.decryptingStream(in);
 
-        // Ensure that the header has not been tampered with or corrupted
-        if (!Arrays.equals(digest, actualDigest))
-            throw new DecryptionException(new Exception("Header digest invalid"));
-
-        // Get the payload and decompress
-        byte[] payload = new byte[decBuff.remaining()];
-        decBuff.get(payload);
+        JsonPasswordDatabase db;
         try {
-            return JsonPasswordDatabase.deserialize(payload, true); // true = should gunzip
+            // Get the decrypted header digest, then get the actual header digest and compare
+            byte[] digest = new byte[HEADER_DIGEST_LEN];
+            new DataInputStream(decIn).readFully(digest);
+            byte[] actualDigest = getSha256Hash(header.toByteArray());
+
+            // Ensure that the header has not been tampered with or corrupted
+            if (!Arrays.equals(digest, actualDigest))
+                throw new DecryptionException(new Exception("Header digest invalid"));
+
+            // Decompress and parse the payload, then read to the end of both streams: the gzip
+            // trailer is only checked at the end of its stream, and likewise the GCM MAC
+            GZIPInputStream gzipIn = new GZIPInputStream(decIn, STREAM_BUFFER_SIZE);
+            db = JsonPasswordDatabase.deserialize(gzipIn, false); // false = already gunzipping
+            drain(gzipIn);
+            drain(decIn);
+        } catch (InvalidCipherTextIOException e) {
+            throw new DecryptionException(e);
         } catch (JsonIOException | JsonSyntaxException e) {
+            verifyRemaining(decIn);
             throw new SerializationException("Failed to deserialize JSON", e);
         } catch (IOException e) {
+            verifyRemaining(decIn);
             throw new SerializationException("Failed to deflate GZIP payload", e);
         }
+
+        // Keep using the database's KDF parameters (and so its cached key) for future saves
+        this.kdf = kdf;
+
+        // Only return the database once the entire payload has been authenticated
+        return db;
+    }
+
+    @Override
+    public void setKeyCache(@Nullable DerivedKeyCache cache) {
+        this.keyCache = cache;
+    }
+
+    @Override
+    public void setKdfParameters(Argon2Parameters parameters) {
+        this.kdf = new Argon2KeyDerivationFunction(parameters, ARGON_SALT_LEN, AES_KEY_LEN_BYTES);
+    }
+
+    @Override
+    public boolean canSerializeChanges(PasswordDatabase db) {
+        // The payload is a single encrypted message, so it can only be written in full
+        return false;
+    }
+
+    @Override
+    public void serializeChanges(PasswordDatabase db, String mp, OutputStream out) {
+        throw new IllegalStateException("Version 1 data can only be serialized in full");
     }
 
     /**
-     * Attempts to gzip a payload
-     * @param payload Payload to gzip
-     * @return Gzipped payload
-     * @throws IOException If the payload could not be gzipped
+     * Gets the function to derive keys with for the given KDF, which goes through our key cache if
+     * we have one
      */
-    private byte[] gzip(byte[] payload) throws IOException {
-        GZIPOutputStream gzipOut = null;
+    private KeyDerivationFunction getKeyFunction(Argon2KeyDerivationFunction kdf) {
+        return keyCache == null ? kdf : new CachingKeyDerivationFunction(kdf, keyCache);
+    }
+
+    /**
+     * Reads a decrypting stream to its end after the payload failed to parse. If the MAC is
+     * invalid, the failure was due to tampering, corruption or a wrong key rather than a malformed
+     * payload, and so a {@link DecryptionException} is thrown instead.
+     *
+     * @param decIn Decrypting stream to check
+     * @throws DecryptionException If the payload could not be authenticated
+     */
+    private void verifyRemaining(InputStream decIn) throws DecryptionException {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            gzipOut = new GZIPOutputStream(out);
-            gzipOut.write(payload, 0, payload.length);
-            gzipOut.finish();
-            payload = out.toByteArray();
+            drain(decIn);
+        } catch (InvalidCipherTextIOException e) {
+            throw new DecryptionException(e);
         } catch (IOException e) {
-            throw e;
-        } finally {
-            if (gzipOut != null)
-                IOUtils.closeQuietly(gzipOut);
+            // Underlying read failure: report the original parsing failure instead
         }
+    }
 
-        // Return payload (we've set it to the ByteArrayOutputStream output)
-        return payload;
+    /**
+     * Reads and discards the remainder of a stream
+     * @param in Stream to read to the end
+     * @throws IOException If the stream could not be read
+     */
+    private void drain(InputStream in) throws IOException {
+        byte[] buff = new byte[STREAM_BUFFER_SIZE];
+        while (in.read(buff) != -1);
     }
 
     private byte[] getSha256Hash(byte[] message) {
@@ -185,7 +264,7 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
      * Header with the following structure:
      * <pre>
      * uint16_t version;
-     * uint32_t payload_length;
+     * uint32_t payload_length; // 0 if not known when the header was written (streamed)
      * [uint16_t iv_length: fixed at 96 bits]
      * uint8_t iv[12];
      * uint32_t argon_iterations;
@@ -200,6 +279,7 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
 
         private static final short IV_LENGTH = HybridIvFactory.IV_LENGTH; // 96 bits
         private static final int LENGTH_EXCEPT_SALT = 20 + IV_LENGTH;
+        static final int PAYLOAD_LENGTH_UNKNOWN = 0;
 
         short version;
         int payloadLength;
@@ -223,39 +303,38 @@ public class V1EncryptedDatabaseSerializer implements EncryptedDatabaseSerialize
                 throw new IllegalArgumentException("KDF salt too long");
         }
 
-        /** Constructs a header, deserializing the given buffer into the class */
-        Header(ByteBuffer buff) throws SerializationException {
-            // Read from the Buffer into the class
-            buff.order(ByteOrder.BIG_ENDIAN);
-            this.version = buff.getShort();
+        /** Constructs a header, deserializing the given (big-endian) input into the class */
+        Header(DataInput buff) throws SerializationException, IOException {
+            // Read from the input into the class
+            this.version = buff.readShort();
             if (this.version != VERSION)
                 throw new SerializationException("Invalid version");
 
-            this.payloadLength = buff.getInt();
+            this.payloadLength = buff.readInt();
             if (this.payloadLength < 0)
                 throw new SerializationException("Payload length negative");
 
             this.iv = new byte[IV_LENGTH];
-            buff.get(this.iv);
+            buff.readFully(this.iv);
 
-            this.argonIterations = buff.getInt();
+            this.argonIterations = buff.readInt();
             if (this.argonIterations < 0)
                 throw new SerializationException("Invalid KDF parameters (iterations)");
 
-            this.argonMemory = buff.getInt();
+            this.argonMemory = buff.readInt();
             if (this.argonMemory <= 0)
                 throw new SerializationException("Invalid KDF parameters (memory)");
 
-            this.argonParallelism = buff.getInt();
+            this.argonParallelism = buff.readInt();
             if (this.argonParallelism <= 0)
                 throw new SerializationException("Invalid KDF parameters (parallelism)");
 
-            short len = buff.getShort();
+            short len = buff.readShort();
             if (len <= 0)
                 throw new SerializationException("Invalid salt length");
 
             this.argonSalt = new byte[len];
-            buff.get(this.argonSalt);
+            buff.readFully(this.argonSalt);
         }
 
         /** Serializes this header to a byte array */
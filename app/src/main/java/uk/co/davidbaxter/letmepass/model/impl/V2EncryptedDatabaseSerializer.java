@@ -0,0 +1,326 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.common.util.IOUtils;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.crypto.impl.CachingKeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.ChunkedGcmInputStream;
+import uk.co.davidbaxter.letmepass.crypto.impl.ChunkedGcmOutputStream;
+import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.SerializationException;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+/**
+ * An {@link EncryptedDatabaseSerializer} for version 2 of the DB format
+ * <p>
+ * Version 2 differs from version 1 in that the compressed payload is split into fixed-size
+ * chunks, each encrypted and authenticated separately (see {@link ChunkedGcmOutputStream}). This
+ * means that:
+ * <ul>
+ *     <li>Chunks are encrypted and decrypted in parallel</li>
+ *     <li>Decrypted data is authenticated one chunk at a time, so it can be decompressed and
+ *     parsed as it arrives, rather than only being trusted once the whole payload has been
+ *     read</li>
+ *     <li>The header is authenticated as the associated data of every chunk, rather than by a
+ *     digest in the payload</li>
+ * </ul>
+ * The key is derived once per serialization, rather than once per chunk. As with version 1, the
+ * KDF parameters and salt of a deserialized database are reused for subsequent serialization.
+ */
+public class V2EncryptedDatabaseSerializer implements EncryptedDatabaseSerializer {
+
+    private static final short VERSION = 2;
+    private static final int ARGON_ITERATIONS = 10;  // 10 iterations
+    private static final int ARGON_MEMORY = 65536;   // 65MiB
+    private static final int ARGON_PARALLELISM = 2;  // 2 threads
+    private static final int ARGON_SALT_LEN = 16;    // 128-bit salt
+    private static final int AES_KEY_LEN_BYTES = 32; // 256-bit hash length (for AES-256)
+    private static final int CHUNK_SIZE = 65536;     // 64KiB of plaintext per chunk
+    private static final int MAX_CHUNK_SIZE = 16777216; // 16MiB
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    private HybridIvFactory newIvFactory;
+    private Argon2KeyDerivationFunction kdf;
+    private DerivedKeyCache keyCache = null;
+
+    /**
+     * Constructs a new V2EncryptedDatabaseSerializer
+     */
+    public V2EncryptedDatabaseSerializer() {
+        this.newIvFactory = new HybridIvFactory();
+        this.kdf = new Argon2KeyDerivationFunction(ARGON_ITERATIONS, ARGON_MEMORY,
+                ARGON_PARALLELISM, ARGON_SALT_LEN, AES_KEY_LEN_BYTES);
+    }
+
+    @Override
+    public byte[] serialize(PasswordDatabase db, String mp) throws SerializationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(db, mp, out);
+        } catch (IOException e) {
+            // We are writing to memory, so this can only be a failure to serialize the payload
+            throw new SerializationException("Failed to serialize payload", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        if (!(db instanceof JsonPasswordDatabase))
+            throw new IllegalArgumentException("Database is not of correct type");
+
+        // Each chunk uses a nonce offset from this IV, so we need a fresh one for every save
+        newIvFactory.generateNewIv();
+
+        byte[] header = new Header(this, CHUNK_SIZE).toByteArray();
+        out.write(header);
+
+        // Chain: JSON -> GZIP -> chunked AES-GCM -> out. Closing the chain writes the last chunk,
+        // but we shield `out` from being closed.
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(getKeyFunction(kdf), newIvFactory);
+        encrypter.setMasterPassword(mp);
+        byte[] key = encrypter.deriveKey();
+        OutputStream chunkOut = new ChunkedGcmOutputStream(new NonClosingOutputStream(out),
+                encrypter, key, newIvFactory.getCurrentIv(), header, CHUNK_SIZE,
+                ParallelUtils.getComputeExecutor(), getMaxPendingChunks());
+        OutputStream gzipOut = null;
+        try {
+            gzipOut = ParallelGzipOutputStream.create(chunkOut);
+            db.serialize(gzipOut);
+            gzipOut.close();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(gzipOut != null ? gzipOut : chunkOut);
+            throw e;
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    @Override
+    public PasswordDatabase deserialize(byte[] data, String mp) throws SerializationException,
+            DecryptionException {
+        try {
+            return deserialize(new ByteArrayInputStream(data), mp);
+        } catch (IOException e) {
+            // We are reading from memory, so this can only be a malformed payload
+            throw new SerializationException("Failed to read payload", e);
+        }
+    }
+
+    @Override
+    public PasswordDatabase deserialize(InputStream in, String mp) throws SerializationException,
+            DecryptionException, IOException {
+        // Read header from the start of the data
+        Header header;
+        try {
+            header = new Header(new DataInputStream(in));
+        } catch (IOException e) {
+            throw new SerializationException("Failed to read header", e);
+        }
+
+        // Use an IV factory based on the data's stored IV, so we can increment correctly in future
+        this.newIvFactory = new HybridIvFactory(header.iv);
+
+        // Create a KDF from the parameters
+        Argon2KeyDerivationFunction kdf = new Argon2KeyDerivationFunction(
+                header.argonIterations,
+                header.argonMemory,
+                header.argonParallelism,
+                header.argonSalt,
+                AES_KEY_LEN_BYTES
+        );
+
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(getKeyFunction(kdf), newIvFactory);
+        encrypter.setMasterPassword(mp);
+        byte[] key = encrypter.deriveKey();
+        InputStream chunkIn = new ChunkedGcmInputStream(in, encrypter, key, header.iv,
+                header.toByteArray(), header.chunkSize, ParallelUtils.getComputeExecutor(),
+                getMaxPendingChunks());
+
+        JsonPasswordDatabase db;
+        try {
+            // Every chunk is authenticated before we see it, so we can parse as we decrypt. We
+            // still read to the end, to check for trailing data and truncation.
+            GZIPInputStream gzipIn = new GZIPInputStream(chunkIn, STREAM_BUFFER_SIZE);
+            db = JsonPasswordDatabase.deserialize(gzipIn, false); // false = already gunzipping
+            drain(gzipIn);
+            drain(chunkIn);
+        } catch (InvalidCipherTextIOException e) {
+            throw new DecryptionException(e);
+        } catch (JsonIOException | JsonSyntaxException e) {
+            // Gson wraps read failures, which may be authentication failures
+            if (e.getCause() instanceof InvalidCipherTextIOException)
+                throw new DecryptionException(e.getCause());
+            throw new SerializationException("Failed to deserialize JSON", e);
+        } catch (IOException e) {
+            throw new SerializationException("Failed to deflate GZIP payload", e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            IOUtils.closeQuietly(chunkIn);
+        }
+
+        // Keep using the database's KDF parameters (and so its cached key) for future saves
+        this.kdf = kdf;
+        return db;
+    }
+
+    @Override
+    public void setKeyCache(@Nullable DerivedKeyCache cache) {
+        this.keyCache = cache;
+    }
+
+    @Override
+    public void setKdfParameters(Argon2Parameters parameters) {
+        this.kdf = new Argon2KeyDerivationFunction(parameters, ARGON_SALT_LEN, AES_KEY_LEN_BYTES);
+    }
+
+    @Override
+    public boolean canSerializeChanges(PasswordDatabase db) {
+        // The payload is a single encrypted message, so it can only be written in full
+        return false;
+    }
+
+    @Override
+    public void serializeChanges(PasswordDatabase db, String mp, OutputStream out) {
+        throw new IllegalStateException("Version 2 data can only be serialized in full");
+    }
+
+    /**
+     * Gets the function to derive keys with for the given KDF, which goes through our key cache if
+     * we have one
+     */
+    private KeyDerivationFunction getKeyFunction(Argon2KeyDerivationFunction kdf) {
+        return keyCache == null ? kdf : new CachingKeyDerivationFunction(kdf, keyCache);
+    }
+
+    /** Gets the number of chunks to hold in memory at once: enough to keep every thread busy */
+    private int getMaxPendingChunks() {
+        return ParallelUtils.getParallelism() * 2;
+    }
+
+    /**
+     * Reads and discards the remainder of a stream
+     * @param in Stream to read to the end
+     * @throws IOException If the stream could not be read
+     */
+    private void drain(InputStream in) throws IOException {
+        byte[] buff = new byte[STREAM_BUFFER_SIZE];
+        while (in.read(buff) != -1);
+    }
+
+    /**
+     * Header with the following structure:
+     * <pre>
+     * uint16_t version;
+     * uint32_t chunk_size; // bytes of plaintext per chunk, excluding MAC
+     * [uint16_t iv_length: fixed at 96 bits]
+     * uint8_t iv[12]; // base IV: chunk i uses this IV with i added to its counter
+     * uint32_t argon_iterations;
+     * uint32_t argon_memory;
+     * uint32_t argon_parallelism;
+     * [uint16_t argon_hash_len: fixed at 256 bits];
+     * uint16_t argon_salt_len;
+     * uint8_t* argon_salt; // salt_len bytes
+     * </pre>
+     */
+    private static class Header {
+
+        private static final short IV_LENGTH = HybridIvFactory.IV_LENGTH; // 96 bits
+        private static final int LENGTH_EXCEPT_SALT = 20 + IV_LENGTH;
+
+        int chunkSize;
+        byte[] iv;
+        int argonIterations;
+        int argonMemory;
+        int argonParallelism;
+        byte[] argonSalt;
+
+        /** Constructs a header, setting parameters based on the given serializer & chunk size */
+        Header(V2EncryptedDatabaseSerializer serializer, int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.iv = serializer.newIvFactory.getCurrentIv();
+            this.argonIterations = serializer.kdf.getIterations();
+            this.argonMemory = serializer.kdf.getMemory();
+            this.argonParallelism = serializer.kdf.getParallelism();
+            this.argonSalt = serializer.kdf.getSalt();
+            if (this.argonSalt.length > Short.MAX_VALUE)
+                throw new IllegalArgumentException("KDF salt too long");
+        }
+
+        /** Constructs a header, deserializing the given (big-endian) input into the class */
+        Header(DataInput buff) throws SerializationException, IOException {
+            if (buff.readShort() != VERSION)
+                throw new SerializationException("Invalid version");
+
+            this.chunkSize = buff.readInt();
+            if (this.chunkSize <= 0 || this.chunkSize > MAX_CHUNK_SIZE)
+                throw new SerializationException("Invalid chunk size");
+
+            this.iv = new byte[IV_LENGTH];
+            buff.readFully(this.iv);
+
+            this.argonIterations = buff.readInt();
+            if (this.argonIterations < 0)
+                throw new SerializationException("Invalid KDF parameters (iterations)");
+
+            this.argonMemory = buff.readInt();
+            if (this.argonMemory <= 0)
+                throw new SerializationException("Invalid KDF parameters (memory)");
+
+            this.argonParallelism = buff.readInt();
+            if (this.argonParallelism <= 0)
+                throw new SerializationException("Invalid KDF parameters (parallelism)");
+
+            short len = buff.readShort();
+            if (len <= 0)
+                throw new SerializationException("Invalid salt length");
+
+            this.argonSalt = new byte[len];
+            buff.readFully(this.argonSalt);
+        }
+
+        /** Serializes this header to a byte array */
+        byte[] toByteArray() {
+            return ByteBuffer.allocate(LENGTH_EXCEPT_SALT + argonSalt.length)
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .putShort(VERSION)
+                    .putInt(this.chunkSize)
+                    .put(this.iv)
+                    .putInt(this.argonIterations)
+                    .putInt(this.argonMemory)
+                    .putInt(this.argonParallelism)
+                    .putShort((short) this.argonSalt.length)
+                    .put(this.argonSalt)
+                    .array();
+        }
+
+    }
+
+}
@@ -0,0 +1,1178 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import android.support.annotation.Nullable;
+
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.crypto.impl.CachingKeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
+import uk.co.davidbaxter.letmepass.crypto.impl.NonceSequence;
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.SealedSecret;
+import uk.co.davidbaxter.letmepass.model.SerializationException;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+/**
+ * An {@link EncryptedDatabaseSerializer} for version 3 of the DB format
+ * <p>
+ * Version 3 is a container of separately encrypted records, rather than a single encrypted
+ * payload: each entry in the database is sealed in its own record, as is the name of the database.
+ * The data is an append-only log of these records, so that changes to a database can be saved by
+ * appending records for only the entries that have changed (see
+ * {@link #serializeChanges(PasswordDatabase, String, OutputStream)}), rather than by re-encrypting
+ * and rewriting the whole database.
+ * <p>
+ * Records are written in batches, each ending with a commit record; anything after the last commit
+ * (e.g. records, zeros or garbage left by an interrupted append) is ignored. Superseded records
+ * accumulate in the log as changes are appended, so once the log has grown too large relative to
+ * the database, {@link #canSerializeChanges(PasswordDatabase)} returns false, and the database
+ * should be serialized in full to compact it.
+ * <p>
+ * When the database is serialized in full, runs of records are encoded, compressed and encrypted
+ * in parallel (see {@link #setExecutor(ExecutorService)}), and written in order. Likewise, runs
+ * of records are decrypted and decoded in parallel when the database is deserialized.
+ * <p>
+ * Changes are detected by comparing each entry with a digest of the record last written for it.
+ * Entries are identified by reference, so they must be modified in place (e.g. with
+ * {@link PasswordDatabaseEntry#fromCopy(PasswordDatabaseEntry)}) to be saved as changes to the
+ * same entry. Snapshots of a database (see {@link PasswordDatabase#snapshot()}) may be serialized
+ * in its place, their entries being identified by the entries they are copies of; as snapshots
+ * share the copies of unchanged entries, a copy that was written before has not changed and need
+ * not be compared again.
+ * <p>
+ * Version 4 of the format differs only in that records are compressed, version 5 in that
+ * entries are also encoded in binary rather than JSON, and version 6 in that the secrets of
+ * entries are also sealed within their records, so these are also implemented here; see
+ * {@link V4EncryptedDatabaseSerializer}, {@link V5EncryptedDatabaseSerializer} and
+ * {@link V6EncryptedDatabaseSerializer}.
+ */
+public class V3EncryptedDatabaseSerializer implements EncryptedDatabaseSerializer {
+
+    private static final short VERSION = 3;
+    private static final short VERSION_COMPRESSED = 4; // First version with compressed records
+    private static final short VERSION_BINARY = 5; // First version with binary entries
+    private static final short VERSION_SEALED = 6; // First version with sealed secrets
+    private static final int ARGON_ITERATIONS = 10;  // 10 iterations
+    private static final int ARGON_MEMORY = 65536;   // 65MiB
+    private static final int ARGON_PARALLELISM = 2;  // 2 threads
+    private static final int ARGON_SALT_LEN = 16;    // 128-bit salt
+    private static final int AES_KEY_LEN_BYTES = 32; // 256-bit hash length (for AES-256)
+    private static final int MAX_RECORD_LENGTH = 16777216; // 16MiB
+    private static final int COMPACTION_MIN_RECORDS = 64; // Never compact logs smaller than this
+    private static final int COMPACTION_RATIO = 2; // Compact once log is 2x the live records
+    private static final int RECORDS_PER_RUN = 64; // Records encrypted or decrypted by a task
+    private static final int RUNS_PER_THREAD = 2; // Runs held in memory at once, per thread
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final byte RECORD_NAME = 1;
+    private static final byte RECORD_PUT = 2;
+    private static final byte RECORD_DELETE = 3;
+    private static final byte RECORD_COMMIT = 4;
+    private static final int NO_ID = 0;
+
+    private final short version;
+    private final CompressionCodec codec;
+    private Argon2KeyDerivationFunction kdf;
+    private DerivedKeyCache keyCache = null;
+    private ExecutorService executor = ParallelUtils.getParallelism() > 1
+            ? ParallelUtils.getComputeExecutor() : null;
+
+    // State of the data last serialized or deserialized, used to serialize changes to it
+    private PasswordDatabase database = null;
+    private byte[] header = null;
+    private CompressionCodec logCodec = null;
+    private SecretSealer sealer = null;
+    private int recordCount = 0;
+    private int nextId = NO_ID + 1;
+    private byte[] nameDigest = null;
+    private Map<PasswordDatabaseEntry, Integer> ids = new IdentityHashMap<>();
+    private Map<Integer, byte[]> digests = new HashMap<>();
+    private Map<Integer, EntryRecord> writtenCopies = new HashMap<>(); // Records of snapshot copies
+    private boolean appendable = false;
+
+    /**
+     * Constructs a new V3EncryptedDatabaseSerializer
+     */
+    public V3EncryptedDatabaseSerializer() {
+        this(VERSION, null);
+    }
+
+    /**
+     * Constructs a new serializer for the given version of the format
+     * @param version Version of the format, 3 or later
+     * @param codec Codec to compress the records of new logs with; null for version 3, which does
+     *              not compress records
+     */
+    V3EncryptedDatabaseSerializer(short version, @Nullable CompressionCodec codec) {
+        if ((version >= VERSION_COMPRESSED) != (codec != null))
+            throw new IllegalArgumentException("Only versions from 4 compress records");
+
+        this.version = version;
+        this.codec = codec;
+        this.kdf = new Argon2KeyDerivationFunction(ARGON_ITERATIONS, ARGON_MEMORY,
+                ARGON_PARALLELISM, ARGON_SALT_LEN, AES_KEY_LEN_BYTES);
+    }
+
+    @Override
+    public byte[] serialize(PasswordDatabase db, String mp) throws SerializationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(db, mp, out);
+        } catch (IOException e) {
+            // We are writing to memory, so this can only be a failure to serialize the payload
+            throw new SerializationException("Failed to serialize payload", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        if (!(db instanceof JsonPasswordDatabase))
+            throw new IllegalArgumentException("Database is not of correct type");
+
+        // Forget the previous data: we are starting a new log. Entries keep their IDs, however,
+        // as the IDs only need to be unique within the log.
+        this.appendable = false;
+        this.header = new Header(kdf, version, codec).toByteArray();
+        this.logCodec = codec;
+        this.recordCount = 0;
+        out.write(header);
+
+        // Secrets sealed for the previous log can be kept as they are if they have the same key
+        SecretSealer newSealer = null;
+        if (version >= VERSION_SEALED)
+            newSealer = sealer != null && sealer.matches(kdf, mp) ? sealer : newSealer(kdf, mp);
+
+        List<EntryRecord> records = getEntryRecords(db);
+        Map<Integer, byte[]> newDigests = new HashMap<>();
+
+        AesGcmEncrypter encrypter = newEncrypter(kdf, mp);
+        byte[] key = encrypter.deriveKey();
+        CompressionCodec.Compressor compressor = newCompressor(logCodec);
+        try {
+            // Write every record, in order of the tree so that parents precede their children
+            NonceSequence nonces = new NonceSequence();
+            byte[] name = encodeName(db.getName());
+            writeRecord(out, encrypter, key, nonces, compressor, name);
+            if (executor != null && records.size() > RECORDS_PER_RUN) {
+                writeRecordsInParallel(out, records, newSealer, encrypter, key, nonces,
+                        newDigests);
+            } else {
+                for (EntryRecord record : records) {
+                    byte[] put = encodePut(record, newSealer, key);
+                    writeRecord(out, encrypter, key, nonces, compressor, put);
+                    newDigests.put(record.id, newSealer == null ? getSha256Hash(put)
+                            : getSha256Hash(encodePut(record, newSealer, null)));
+                }
+            }
+            writeRecord(out, encrypter, key, nonces, compressor, new byte[] { RECORD_COMMIT });
+
+            this.nameDigest = getSha256Hash(name);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            endCompressor(compressor);
+        }
+
+        this.sealer = newSealer;
+        this.digests = newDigests;
+        this.writtenCopies = getSnapshotCopies(records);
+        this.ids.values().retainAll(newDigests.keySet());
+        this.database = getOrigin(db);
+        this.appendable = true;
+    }
+
+    @Override
+    public PasswordDatabase deserialize(byte[] data, String mp) throws SerializationException,
+            DecryptionException {
+        try {
+            return deserialize(new ByteArrayInputStream(data), mp);
+        } catch (IOException e) {
+            // We are reading from memory, so this can only be a malformed payload
+            throw new SerializationException("Failed to read payload", e);
+        }
+    }
+
+    @Override
+    public PasswordDatabase deserialize(InputStream in, String mp) throws SerializationException,
+            DecryptionException, IOException {
+        // Read header from the start of the data
+        DataInputStream dataIn = new DataInputStream(in);
+        Header header;
+        try {
+            header = new Header(dataIn, version);
+        } catch (IOException e) {
+            throw new SerializationException("Failed to read header", e);
+        }
+        final byte[] headerBytes = header.toByteArray();
+
+        // Create a KDF from the parameters
+        Argon2KeyDerivationFunction kdf = new Argon2KeyDerivationFunction(
+                header.argonIterations,
+                header.argonMemory,
+                header.argonParallelism,
+                header.argonSalt,
+                AES_KEY_LEN_BYTES
+        );
+
+        // Replay the log, applying each batch of records once we reach its commit record. Runs of
+        // records are decrypted (and decompressed) in parallel as they are read, and applied in
+        // order; only a few runs per thread are held in memory at once.
+        LogReplay replay = new LogReplay();
+        int sequence = 0;
+        int maxPending = ParallelUtils.getParallelism() * RUNS_PER_THREAD;
+        Deque<Future<DecryptedRun>> pending = new ArrayDeque<>();
+
+        final AesGcmEncrypter encrypter = newEncrypter(kdf, mp);
+        final byte[] key = encrypter.deriveKey();
+        final CompressionCodec codec = header.codec;
+        try {
+            boolean reading = true;
+            while (reading || !pending.isEmpty()) {
+                if (reading && pending.size() < maxPending) {
+                    final List<byte[]> records = new ArrayList<>(RECORDS_PER_RUN);
+                    Exception error = null;
+                    try {
+                        byte[] record = null;
+                        while (records.size() < RECORDS_PER_RUN
+                                && (record = readRecord(dataIn)) != null)
+                            records.add(record);
+                        reading = record != null;
+                    } catch (EOFException | SerializationException e) {
+                        // Handled once the records before it have been applied
+                        error = e;
+                        reading = false;
+                    }
+
+                    final int first = sequence;
+                    final Exception readError = error;
+                    sequence += records.size();
+                    pending.addLast(submit(new Callable<DecryptedRun>() {
+                        @Override
+                        public DecryptedRun call() throws Exception {
+                            return decryptRun(records, encrypter, key, codec, headerBytes, first,
+                                    readError);
+                        }
+                    }));
+                    continue;
+                }
+
+                if (!replay.apply(getResult(pending.removeFirst())))
+                    break;
+            }
+        } finally {
+            for (Future<DecryptedRun> run : pending)
+                run.cancel(false);
+            Arrays.fill(key, (byte) 0);
+        }
+
+        if (replay.name == null)
+            throw new SerializationException("No committed records");
+
+        // Rebuild the tree of entries from the records, leaving their secrets sealed (if they are).
+        // Digests of the records as read match those of unchanged entries, which keep their seals.
+        // Runs of records are decoded in parallel.
+        final SecretSealer newSealer = version >= VERSION_SEALED ? newSealer(kdf, mp) : null;
+        Map<PasswordDatabaseEntry, Integer> newIds = new IdentityHashMap<>();
+        Map<Integer, byte[]> newDigests = new HashMap<>();
+        Map<Integer, List<EntryRecord>> children = new HashMap<>();
+        int maxId = NO_ID;
+        List<byte[]> puts = new ArrayList<>(replay.puts.values());
+        List<Future<DecodedRun>> decoded = new ArrayList<>();
+        try {
+            for (int start = 0; start < puts.size(); start += RECORDS_PER_RUN) {
+                final List<byte[]> run = puts.subList(start,
+                        Math.min(puts.size(), start + RECORDS_PER_RUN));
+                decoded.add(submit(new Callable<DecodedRun>() {
+                    @Override
+                    public DecodedRun call() throws Exception {
+                        return decodeRun(run, newSealer);
+                    }
+                }));
+            }
+
+            for (Future<DecodedRun> run : decoded) {
+                DecodedRun decodedRun = getResult(run);
+                for (EntryRecord record : decodedRun.records) {
+                    if (!children.containsKey(record.parentId))
+                        children.put(record.parentId, new ArrayList<EntryRecord>());
+                    children.get(record.parentId).add(record);
+
+                    newIds.put(record.entry, record.id);
+                    maxId = Math.max(maxId, record.id);
+                }
+                newDigests.putAll(decodedRun.digests);
+            }
+        } finally {
+            for (Future<DecodedRun> run : decoded)
+                run.cancel(false);
+        }
+
+        List<PasswordDatabaseEntry> entries = buildChildren(NO_ID, children);
+        if (!children.isEmpty())
+            throw new SerializationException("Records have missing parents");
+
+        String name = replay.name;
+        JsonPasswordDatabase db = new JsonPasswordDatabase(name, entries);
+
+        // Keep the state of the log, so that we can append changes to it. If the log has any
+        // uncommitted records at its end, we cannot append to it: they would be committed too.
+        this.kdf = kdf;
+        this.header = headerBytes;
+        this.logCodec = header.codec;
+        this.sealer = newSealer;
+        this.recordCount = sequence;
+        this.nextId = maxId + 1;
+        this.nameDigest = getSha256Hash(encodeName(name));
+        this.ids = newIds;
+        this.digests = newDigests;
+        this.writtenCopies = new HashMap<>();
+        this.database = db;
+        this.appendable = !replay.torn && replay.batch.isEmpty();
+
+        return db;
+    }
+
+    @Override
+    public void setKdfParameters(Argon2Parameters parameters) {
+        // Changes cannot be appended to a log whose header has other parameters
+        this.kdf = new Argon2KeyDerivationFunction(parameters, ARGON_SALT_LEN, AES_KEY_LEN_BYTES);
+        this.appendable = false;
+    }
+
+    @Override
+    public boolean canSerializeChanges(PasswordDatabase db) {
+        return appendable && getOrigin(db) == database
+                && recordCount < Math.max(COMPACTION_MIN_RECORDS,
+                        COMPACTION_RATIO * (digests.size() + 1));
+    }
+
+    @Override
+    public void serializeChanges(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        if (!canSerializeChanges(db))
+            throw new IllegalStateException("Changes cannot be serialized: serialize in full");
+
+        // Find the records that differ from those last written, and those no longer present.
+        // Changed entries are only encoded for writing (sealing their secrets) once found.
+        byte[] name = encodeName(db.getName());
+        byte[] newNameDigest = getSha256Hash(name);
+        boolean nameChanged = !Arrays.equals(newNameDigest, nameDigest);
+
+        Map<Integer, byte[]> newDigests = new HashMap<>();
+        List<EntryRecord> records = getEntryRecords(db);
+        List<EntryRecord> changedRecords = new ArrayList<>();
+        for (EntryRecord record : records) {
+            // Copies in snapshots are not modified, so one written in the same place is unchanged
+            EntryRecord written = writtenCopies.get(record.id);
+            if (written != null && written.entry == record.entry
+                    && written.parentId == record.parentId && written.prevId == record.prevId) {
+                newDigests.put(record.id, digests.get(record.id));
+                continue;
+            }
+
+            byte[] digest = getSha256Hash(encodePut(record, sealer, null));
+            newDigests.put(record.id, digest);
+            if (!Arrays.equals(digest, digests.get(record.id)))
+                changedRecords.add(record);
+        }
+
+        List<byte[]> deletes = new ArrayList<>();
+        for (Integer id : digests.keySet()) {
+            if (!newDigests.containsKey(id))
+                deletes.add(ByteBuffer.allocate(5).put(RECORD_DELETE).putInt(id).array());
+        }
+
+        // Forget entries that have been removed from the database
+        ids.values().retainAll(newDigests.keySet());
+
+        if (!nameChanged && changedRecords.isEmpty() && deletes.isEmpty())
+            return;
+
+        // We cannot append again until this batch has been committed
+        this.appendable = false;
+
+        // Changes are compressed with the codec of the log, which may not be ours if it was read
+        AesGcmEncrypter encrypter = newEncrypter(kdf, mp);
+        byte[] key = encrypter.deriveKey();
+        CompressionCodec.Compressor compressor = newCompressor(logCodec);
+        try {
+            NonceSequence nonces = new NonceSequence();
+            if (nameChanged)
+                writeRecord(out, encrypter, key, nonces, compressor, name);
+            for (EntryRecord record : changedRecords) {
+                writeRecord(out, encrypter, key, nonces, compressor,
+                        encodePut(record, sealer, key));
+            }
+            for (byte[] delete : deletes)
+                writeRecord(out, encrypter, key, nonces, compressor, delete);
+            writeRecord(out, encrypter, key, nonces, compressor, new byte[] { RECORD_COMMIT });
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            endCompressor(compressor);
+        }
+
+        this.nameDigest = newNameDigest;
+        this.digests = newDigests;
+        this.writtenCopies = getSnapshotCopies(records);
+        this.appendable = true;
+    }
+
+    @Override
+    public void setKeyCache(@Nullable DerivedKeyCache cache) {
+        this.keyCache = cache;
+    }
+
+    /**
+     * Sets the executor on which runs of records are encoded, compressed and encrypted when
+     * serializing a database in full, and decrypted and decoded when deserializing one. By
+     * default, this is the shared compute executor if there is more than one core, or otherwise
+     * null.
+     *
+     * @param executor Executor to use, or null to (de)serialize on the calling thread only
+     */
+    public void setExecutor(@Nullable ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Writes the put records of entries, encoding, compressing and encrypting runs of them in
+     * parallel on our executor. Runs are written in order, and only a few runs per thread are held
+     * in memory at once.
+     */
+    private void writeRecordsInParallel(OutputStream out, List<EntryRecord> records,
+                                        @Nullable final SecretSealer sealer,
+                                        final AesGcmEncrypter encrypter, final byte[] key,
+                                        final NonceSequence nonces, Map<Integer, byte[]> digests)
+            throws IOException {
+        int maxPending = ParallelUtils.getParallelism() * RUNS_PER_THREAD;
+        Deque<Future<EncryptedRun>> pending = new ArrayDeque<>();
+        try {
+            for (int start = 0; start < records.size(); start += RECORDS_PER_RUN) {
+                final List<EntryRecord> run = records.subList(start,
+                        Math.min(records.size(), start + RECORDS_PER_RUN));
+                while (pending.size() >= maxPending)
+                    writeRun(out, pending.removeFirst(), digests);
+
+                final int sequence = recordCount + start;
+                pending.addLast(executor.submit(new Callable<EncryptedRun>() {
+                    @Override
+                    public EncryptedRun call() throws Exception {
+                        return encryptRun(run, sealer, encrypter, key, nonces, sequence);
+                    }
+                }));
+            }
+            while (!pending.isEmpty())
+                writeRun(out, pending.removeFirst(), digests);
+        } finally {
+            for (Future<EncryptedRun> run : pending)
+                run.cancel(false);
+        }
+
+        recordCount += records.size();
+    }
+
+    /**
+     * Encodes, compresses (if the log is compressed) and encrypts the put records of a run of
+     * consecutive entries, with a compressor of its own
+     * @param sequence Position of the first record in the log
+     * @return The records, one after another, and the digests of the entries
+     */
+    private EncryptedRun encryptRun(List<EntryRecord> run, @Nullable SecretSealer sealer,
+                                    AesGcmEncrypter encrypter, byte[] key, NonceSequence nonces,
+                                    int sequence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<Integer, byte[]> digests = new HashMap<>();
+        CompressionCodec.Compressor compressor = newCompressor(logCodec);
+        try {
+            for (EntryRecord entryRecord : run) {
+                byte[] put = encodePut(entryRecord, sealer, key);
+                digests.put(entryRecord.id, sealer == null ? getSha256Hash(put)
+                        : getSha256Hash(encodePut(entryRecord, sealer, null)));
+
+                byte[] record = encryptRecord(encrypter, key, nonces, compressor, put,
+                        sequence++);
+                out.write(record, 0, record.length);
+            }
+        } finally {
+            endCompressor(compressor);
+        }
+
+        return new EncryptedRun(out.toByteArray(), digests);
+    }
+
+    /** Waits for a run of records to be encrypted, and writes it, keeping the digests of it */
+    private static void writeRun(OutputStream out, Future<EncryptedRun> run,
+                                 Map<Integer, byte[]> digests) throws IOException {
+        try {
+            EncryptedRun encrypted = run.get();
+            out.write(encrypted.records);
+            digests.putAll(encrypted.digests);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while serializing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encrypt records", e.getCause());
+        }
+    }
+
+    /**
+     * Creates an encrypter to encrypt records with, deriving its key through our key cache if we
+     * have one. Nonces are given explicitly for each record, so it has no IV factory.
+     */
+    private AesGcmEncrypter newEncrypter(Argon2KeyDerivationFunction kdf, String mp) {
+        KeyDerivationFunction keyFunction = keyCache == null ? kdf
+                : new CachingKeyDerivationFunction(kdf, keyCache);
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(keyFunction, null);
+        encrypter.setMasterPassword(mp);
+        return encrypter;
+    }
+
+    /**
+     * Creates a sealer for the secrets of a log. Secrets are unsealed long after the log is read,
+     * so its key is always derived through a cache: ours, or otherwise one of its own.
+     */
+    private SecretSealer newSealer(Argon2KeyDerivationFunction kdf, String mp) {
+        DerivedKeyCache cache = keyCache == null ? new DerivedKeyCache() : keyCache;
+        AesGcmEncrypter encrypter = new AesGcmEncrypter(
+                new CachingKeyDerivationFunction(kdf, cache), null);
+        encrypter.setMasterPassword(mp);
+        return new SecretSealer(kdf, mp, encrypter);
+    }
+
+    /** Creates a compressor for records of the given codec, or null if records are uncompressed */
+    @Nullable
+    private static CompressionCodec.Compressor newCompressor(@Nullable CompressionCodec codec) {
+        return codec == null ? null : codec.newCompressor();
+    }
+
+    private static void endCompressor(@Nullable CompressionCodec.Compressor compressor) {
+        if (compressor != null)
+            compressor.end();
+    }
+
+    /**
+     * Gets the records of all entries in a database, in depth-first order such that parents
+     * precede their children. Entries without IDs are assigned them.
+     */
+    private List<EntryRecord> getEntryRecords(PasswordDatabase db) {
+        List<EntryRecord> records = new ArrayList<>();
+        addEntryRecords(db.getRootEntries(), NO_ID, records);
+        return records;
+    }
+
+    private void addEntryRecords(List<PasswordDatabaseEntry> entries, int parentId,
+                                 List<EntryRecord> records) {
+        int prevId = NO_ID;
+        for (PasswordDatabaseEntry entry : entries) {
+            Integer id = ids.get(entry.getOriginal());
+            if (id == null) {
+                id = nextId++;
+                ids.put(entry.getOriginal(), id);
+            }
+
+            records.add(new EntryRecord(id, parentId, prevId, entry));
+            if (entry instanceof FolderEntry)
+                addEntryRecords(((FolderEntry) entry).children, id, records);
+
+            prevId = id;
+        }
+    }
+
+    /** Gets the records of entries that are copies in a snapshot, by ID */
+    private static Map<Integer, EntryRecord> getSnapshotCopies(List<EntryRecord> records) {
+        Map<Integer, EntryRecord> copies = new HashMap<>();
+        for (EntryRecord record : records) {
+            if (record.entry.getOriginal() != record.entry)
+                copies.put(record.id, record);
+        }
+        return copies;
+    }
+
+    /** Gets the database that a database is a snapshot of, or the database itself otherwise */
+    private static PasswordDatabase getOrigin(PasswordDatabase db) {
+        return db instanceof JsonPasswordDatabase ? ((JsonPasswordDatabase) db).getOrigin() : db;
+    }
+
+    /**
+     * Builds the list of children of a parent from the records, in order. Records are removed from
+     * the map as they are added to the tree.
+     */
+    private List<PasswordDatabaseEntry> buildChildren(int parentId,
+                                                      Map<Integer, List<EntryRecord>> children)
+            throws SerializationException {
+        List<EntryRecord> records = children.remove(parentId);
+        if (records == null)
+            return Collections.emptyList();
+
+        // Each child refers to its previous sibling, so follow these from the first child
+        Map<Integer, EntryRecord> byPrevId = new HashMap<>();
+        for (EntryRecord record : records)
+            byPrevId.put(record.prevId, record);
+
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        int prevId = NO_ID;
+        for (int i = 0; i < records.size(); i++) {
+            EntryRecord record = byPrevId.get(prevId);
+            if (record == null)
+                throw new SerializationException("Records have inconsistent order");
+
+            if (record.entry instanceof FolderEntry)
+                ((FolderEntry) record.entry).children.addAll(buildChildren(record.id, children));
+
+            entries.add(record.entry);
+            prevId = record.id;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Runs a task on our executor, or on the calling thread if we have none
+     * @return Future of the task
+     */
+    private <T> Future<T> submit(Callable<T> task) {
+        if (executor != null)
+            return executor.submit(task);
+
+        FutureTask<T> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+
+    /** Waits for a task of ours, rethrowing any SerializationException that it threw */
+    private static <T> T getResult(Future<T> future) throws SerializationException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while deserializing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SerializationException)
+                throw (SerializationException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException("Failed to read records", cause);
+        }
+    }
+
+    /**
+     * Decrypts and (if the log is compressed) decompresses a run of consecutive records, with a
+     * compressor of its own, stopping at the first record that cannot be read
+     * @param sequence Position of the first record in the log
+     * @param readError Error reading the log after the run, if it ended with one
+     * @return Plaintexts of the records, and the error that the run ended with, if any
+     */
+    private static DecryptedRun decryptRun(List<byte[]> records, AesGcmEncrypter encrypter,
+                                           byte[] key, @Nullable CompressionCodec codec,
+                                           byte[] header, int sequence,
+                                           @Nullable Exception readError) {
+        List<byte[]> plaintexts = new ArrayList<>(records.size());
+        CompressionCodec.Compressor compressor = newCompressor(codec);
+        try {
+            for (byte[] record : records) {
+                plaintexts.add(readPlaintext(record, encrypter, key, compressor, header,
+                        sequence++));
+            }
+            return new DecryptedRun(plaintexts, readError);
+        } catch (SerializationException | DecryptionException e) {
+            return new DecryptedRun(plaintexts, e);
+        } finally {
+            endCompressor(compressor);
+        }
+    }
+
+    /**
+     * Decodes a run of put records
+     * @return The records of the entries, and their digests
+     * @throws SerializationException If a record is malformed
+     */
+    private DecodedRun decodeRun(List<byte[]> puts, @Nullable SecretSealer sealer)
+            throws SerializationException {
+        List<EntryRecord> records = new ArrayList<>(puts.size());
+        Map<Integer, byte[]> digests = new HashMap<>();
+        for (byte[] put : puts) {
+            EntryRecord record = decodePut(put, sealer);
+            records.add(record);
+            digests.put(record.id, getSha256Hash(put));
+        }
+        return new DecodedRun(records, digests);
+    }
+
+    /**
+     * Compresses (if the log is compressed) and encrypts a record and writes it to the stream,
+     * incrementing the record count
+     */
+    private void writeRecord(OutputStream out, AesGcmEncrypter encrypter, byte[] key,
+                             NonceSequence nonces,
+                             @Nullable CompressionCodec.Compressor compressor, byte[] plaintext)
+            throws IOException {
+        out.write(encryptRecord(encrypter, key, nonces, compressor, plaintext, recordCount));
+        recordCount++;
+    }
+
+    /**
+     * Compresses (if the log is compressed) and encrypts a record
+     * @param sequence Position of the record in the log
+     * @return The whole record, as written to the log
+     */
+    private byte[] encryptRecord(AesGcmEncrypter encrypter, byte[] key, NonceSequence nonces,
+                                 @Nullable CompressionCodec.Compressor compressor,
+                                 byte[] plaintext, int sequence) {
+        if (compressor != null)
+            plaintext = compressor.compress(plaintext);
+
+        // Build the whole record (length, nonce, ciphertext) in one buffer, encrypting into it
+        byte[] nonce = nonces.next();
+        int length = nonce.length + encrypter.getOutputSize(plaintext.length, true);
+        byte[] record = ByteBuffer.allocate(4 + length)
+                .order(ByteOrder.BIG_ENDIAN)
+                .putInt(length)
+                .put(nonce)
+                .array();
+        try {
+            encrypter.crypt(key, nonce, getAssociatedData(header, sequence), plaintext, 0,
+                    plaintext.length, record, 4 + nonce.length, true);
+        } catch (DecryptionException e) {
+            // This is never thrown when encrypting
+            throw new IllegalStateException(e);
+        }
+
+        return record;
+    }
+
+    /**
+     * Reads the next record from the stream
+     * @param in Stream to read from
+     * @return The nonce and ciphertext of the record, or null if the stream has ended
+     * @throws EOFException If the stream ends part-way through the record
+     * @throws SerializationException If the record is malformed
+     * @throws IOException If the stream could not be read
+     */
+    private byte[] readRecord(DataInputStream in) throws SerializationException, IOException {
+        // Distinguish the end of the log from the end of a truncated record
+        int first = in.read();
+        if (first == -1)
+            return null;
+
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+        if (length < HybridIvFactory.IV_LENGTH || length > MAX_RECORD_LENGTH)
+            throw new SerializationException("Invalid record length");
+
+        byte[] record = new byte[length];
+        in.readFully(record);
+        return record;
+    }
+
+    /**
+     * Decrypts and (if the log is compressed) decompresses a record read by
+     * {@link #readRecord(DataInputStream)}
+     * @return Plaintext of the record, which is never empty
+     * @throws SerializationException If the record is malformed
+     * @throws DecryptionException If the record could not be authenticated
+     */
+    private static byte[] readPlaintext(byte[] record, AesGcmEncrypter encrypter, byte[] key,
+                                        @Nullable CompressionCodec.Compressor compressor,
+                                        byte[] header, int sequence)
+            throws SerializationException, DecryptionException {
+        byte[] nonce = Arrays.copyOf(record, HybridIvFactory.IV_LENGTH);
+        byte[] plaintext = encrypter.crypt(key, nonce, getAssociatedData(header, sequence),
+                record, nonce.length, record.length - nonce.length, false);
+        if (compressor != null)
+            plaintext = compressor.decompress(plaintext, 0, plaintext.length, MAX_RECORD_LENGTH);
+        if (plaintext.length == 0)
+            throw new SerializationException("Empty record");
+
+        return plaintext;
+    }
+
+    /** Gets the associated data of a record: the header and the position of the record */
+    private static byte[] getAssociatedData(byte[] header, int sequence) {
+        return ByteBuffer.allocate(header.length + 4)
+                .order(ByteOrder.BIG_ENDIAN)
+                .put(header)
+                .putInt(sequence)
+                .array();
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] nameBytes = name.getBytes(CHARSET);
+        return ByteBuffer.allocate(1 + nameBytes.length)
+                .put(RECORD_NAME)
+                .put(nameBytes)
+                .array();
+    }
+
+    /**
+     * Encodes the put record of an entry
+     * @param record Record of the entry
+     * @param sealer Sealer of the secrets of the log, or null if they are not sealed
+     * @param key Key to seal secrets with, or null to encode them for a digest of the entry
+     * @return Put record
+     */
+    private byte[] encodePut(EntryRecord record, @Nullable SecretSealer sealer,
+                             @Nullable byte[] key) {
+        if (version >= VERSION_BINARY) {
+            BinaryEntryEncoding.SecretEncoder secrets = sealer == null ? null
+                    : new LogSecretEncoder(sealer, key);
+
+            // Folders are encoded without their children
+            return ByteBuffer.wrap(BinaryEntryEncoding.encode(record.entry, 13, secrets))
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .put(RECORD_PUT)
+                    .putInt(record.id)
+                    .putInt(record.parentId)
+                    .putInt(record.prevId)
+                    .array();
+        }
+
+        // Folders are stored without their children, as each child has its own record
+        PasswordDatabaseEntry entry = record.entry;
+        if (entry instanceof FolderEntry) {
+            FolderEntry folder = new FolderEntry(entry.name);
+            folder.fromCopy(entry);
+            folder.children.clear();
+            entry = folder;
+        }
+
+        byte[] json = JsonPasswordDatabase.entryToJson(entry).getBytes(CHARSET);
+        return ByteBuffer.allocate(13 + json.length)
+                .order(ByteOrder.BIG_ENDIAN)
+                .put(RECORD_PUT)
+                .putInt(record.id)
+                .putInt(record.parentId)
+                .putInt(record.prevId)
+                .put(json)
+                .array();
+    }
+
+    private EntryRecord decodePut(byte[] put, @Nullable SecretSealer sealer)
+            throws SerializationException {
+        ByteBuffer buff = ByteBuffer.wrap(put).order(ByteOrder.BIG_ENDIAN);
+        try {
+            buff.get(); // Record type
+            int id = buff.getInt();
+            int parentId = buff.getInt();
+            int prevId = buff.getInt();
+            PasswordDatabaseEntry entry = version >= VERSION_BINARY
+                    ? BinaryEntryEncoding.decode(put, buff.position(), buff.remaining(), sealer)
+                    : JsonPasswordDatabase.entryFromJson(
+                            new String(put, buff.position(), buff.remaining(), CHARSET));
+            if (entry == null || id == NO_ID)
+                throw new SerializationException("Invalid entry record");
+
+            return new EntryRecord(id, parentId, prevId, entry);
+        } catch (JsonParseException | IndexOutOfBoundsException e) {
+            throw new SerializationException("Invalid entry record", e);
+        }
+    }
+
+    private static byte[] getSha256Hash(byte[] message) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        return md.digest(message);
+    }
+
+    /** An entry along with its position in the tree of entries */
+    private static class EntryRecord {
+        final int id;
+        final int parentId; // NO_ID for entries in the root
+        final int prevId; // NO_ID for the first entry in the parent
+        final PasswordDatabaseEntry entry;
+
+        EntryRecord(int id, int parentId, int prevId, PasswordDatabaseEntry entry) {
+            this.id = id;
+            this.parentId = parentId;
+            this.prevId = prevId;
+            this.entry = entry;
+        }
+    }
+
+    /** The plaintexts of a run of records, and the error that the log ended with after them */
+    private static class DecryptedRun {
+        final List<byte[]> plaintexts;
+        final Exception error; // null if the log goes on
+
+        DecryptedRun(List<byte[]> plaintexts, @Nullable Exception error) {
+            this.plaintexts = plaintexts;
+            this.error = error;
+        }
+    }
+
+    /** A run of decoded put records, and the digests of their entries by ID */
+    private static class DecodedRun {
+        final List<EntryRecord> records;
+        final Map<Integer, byte[]> digests;
+
+        DecodedRun(List<EntryRecord> records, Map<Integer, byte[]> digests) {
+            this.records = records;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * The state of a log as it is replayed: the name and puts as of the last commit, and the
+     * records of the batch since
+     */
+    private static class LogReplay {
+        String name = null;
+        final Map<Integer, byte[]> puts = new HashMap<>();
+        final List<byte[]> batch = new ArrayList<>();
+        boolean committed = false;
+        boolean torn = false;
+
+        /**
+         * Applies a run of records, in order
+         * @return False if the log ends with the run
+         * @throws SerializationException If the log is malformed before its first commit
+         * @throws DecryptionException If the first record cannot be authenticated (e.g. as the
+         *                             master password is wrong)
+         */
+        boolean apply(DecryptedRun run) throws SerializationException, DecryptionException {
+            for (byte[] plaintext : run.plaintexts)
+                apply(plaintext);
+
+            Exception error = run.error;
+            if (error == null)
+                return true;
+
+            // The log ends part-way through a record, i.e. the last append was interrupted. Once a
+            // batch has been committed, anything that cannot be read after it is also what was
+            // left of an interrupted append (e.g. zeros or garbage written before power was
+            // lost). Before then, the key may be wrong.
+            if (!committed && !(error instanceof EOFException)) {
+                if (error instanceof DecryptionException)
+                    throw (DecryptionException) error;
+                throw (SerializationException) error;
+            }
+
+            torn = true;
+            return false;
+        }
+
+        private void apply(byte[] plaintext) throws SerializationException {
+            if (plaintext[0] != RECORD_COMMIT) {
+                batch.add(plaintext);
+                return;
+            }
+
+            for (byte[] change : batch) {
+                ByteBuffer buff = ByteBuffer.wrap(change).order(ByteOrder.BIG_ENDIAN);
+                switch (buff.get()) {
+                    case RECORD_NAME:
+                        name = new String(change, 1, change.length - 1, CHARSET);
+                        break;
+                    case RECORD_PUT:
+                        puts.put(buff.getInt(), change);
+                        break;
+                    case RECORD_DELETE:
+                        puts.remove(buff.getInt());
+                        break;
+                    default:
+                        throw new SerializationException("Unknown record type");
+                }
+            }
+            batch.clear();
+            committed = true;
+        }
+    }
+
+    /** A run of encrypted put records, and the digests of their entries by ID */
+    private static class EncryptedRun {
+        final byte[] records;
+        final Map<Integer, byte[]> digests;
+
+        EncryptedRun(byte[] records, Map<Integer, byte[]> digests) {
+            this.records = records;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Encodes the secrets of entries for a log whose secrets are sealed. Secrets sealed by the
+     * sealer of the log are encoded as they are. Other secrets are sealed if a key is given, or
+     * otherwise encoded in plaintext, so that digests of entries do not depend on the random
+     * nonces of their seals. An entry whose secret has been unsealed into it (e.g. by editing it)
+     * is therefore written again, even if the secret is unchanged, rather than unsealing every
+     * secret to compare it.
+     */
+    private static class LogSecretEncoder implements BinaryEntryEncoding.SecretEncoder {
+
+        private final SecretSealer sealer;
+        private final byte[] key;
+
+        LogSecretEncoder(SecretSealer sealer, @Nullable byte[] key) {
+            this.sealer = sealer;
+            this.key = key;
+        }
+
+        @Override
+        public byte[] encodeSecret(@Nullable String plaintext, @Nullable SealedSecret sealed) {
+            if (sealed != null) {
+                if (sealed.getUnsealer() == sealer)
+                    return sealed.getSealed();
+
+                // Sealed with another key (e.g. before the master password was changed)
+                plaintext = sealed.unseal();
+            }
+
+            if (plaintext == null)
+                return null;
+
+            return key == null ? plaintext.getBytes(CHARSET) : sealer.seal(key, plaintext);
+        }
+
+    }
+
+    /**
+     * Header with the following structure:
+     * <pre>
+     * uint16_t version;
+     * uint32_t argon_iterations;
+     * uint32_t argon_memory;
+     * uint32_t argon_parallelism;
+     * uint16_t argon_salt_len;
+     * uint8_t* argon_salt; // salt_len bytes
+     * uint8_t codec; // version 4 onwards only: ID of the CompressionCodec of the records
+     * </pre>
+     * The length of the Argon2 hash (i.e. the AES key) is not stored: it is always 256 bits.
+     * The header is followed by records, each with the following structure:
+     * <pre>
+     * uint32_t length; // of nonce and ciphertext
+     * uint8_t nonce[12];
+     * uint8_t* ciphertext; // AES-GCM, associated data: header || uint32_t record_index
+     * </pre>
+     * The plaintext of a record is a uint8_t type followed by:
+     * <ul>
+     *     <li>Name: the UTF-8 name of the database</li>
+     *     <li>Put: uint32_t id, parent_id, prev_sibling_id (0 if none), then the UTF-8 JSON of the
+     *     entry (without children), or from version 5, its {@link BinaryEntryEncoding}, with
+     *     secrets sealed by a {@link SecretSealer} from version 6</li>
+     *     <li>Delete: uint32_t id</li>
+     *     <li>Commit: nothing</li>
+     * </ul>
+     * From version 4, this plaintext is compressed by the codec before it is encrypted.
+     */
+    private static class Header {
+
+        private static final int LENGTH_EXCEPT_SALT = 16;
+
+        short version;
+        int argonIterations;
+        int argonMemory;
+        int argonParallelism;
+        byte[] argonSalt;
+        CompressionCodec codec; // null before version 4
+
+        /** Constructs a header, setting parameters based on the given KDF and codec */
+        Header(Argon2KeyDerivationFunction kdf, short version, @Nullable CompressionCodec codec) {
+            this.version = version;
+            this.codec = codec;
+            this.argonIterations = kdf.getIterations();
+            this.argonMemory = kdf.getMemory();
+            this.argonParallelism = kdf.getParallelism();
+            this.argonSalt = kdf.getSalt();
+            if (this.argonSalt.length > Short.MAX_VALUE)
+                throw new IllegalArgumentException("KDF salt too long");
+        }
+
+        /**
+         * Constructs a header, deserializing the given (big-endian) input into the class
+         * @param buff Input to deserialize
+         * @param version Version that the header must be
+         */
+        Header(DataInput buff, short version) throws SerializationException, IOException {
+            this.version = buff.readShort();
+            if (this.version != version)
+                throw new SerializationException("Invalid version");
+
+            this.argonIterations = buff.readInt();
+            if (this.argonIterations < 0)
+                throw new SerializationException("Invalid KDF parameters (iterations)");
+
+            this.argonMemory = buff.readInt();
+            if (this.argonMemory <= 0)
+                throw new SerializationException("Invalid KDF parameters (memory)");
+
+            this.argonParallelism = buff.readInt();
+            if (this.argonParallelism <= 0)
+                throw new SerializationException("Invalid KDF parameters (parallelism)");
+
+            short len = buff.readShort();
+            if (len <= 0)
+                throw new SerializationException("Invalid salt length");
+
+            this.argonSalt = new byte[len];
+            buff.readFully(this.argonSalt);
+
+            if (version >= VERSION_COMPRESSED) {
+                this.codec = CompressionCodec.fromId(buff.readUnsignedByte());
+                if (this.codec == null)
+                    throw new SerializationException("Unknown compression codec");
+            }
+        }
+
+        /** Serializes this header to a byte array */
+        byte[] toByteArray() {
+            ByteBuffer buff = ByteBuffer.allocate(LENGTH_EXCEPT_SALT + argonSalt.length
+                    + (codec == null ? 0 : 1))
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .putShort(this.version)
+                    .putInt(this.argonIterations)
+                    .putInt(this.argonMemory)
+                    .putInt(this.argonParallelism)
+                    .putShort((short) this.argonSalt.length)
+                    .put(this.argonSalt);
+            if (codec != null)
+                buff.put((byte) codec.getId());
+
+            return buff.array();
+        }
+
+    }
+
+}
@@ -0,0 +1,33 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+
+/**
+ * An {@link EncryptedDatabaseSerializer} for version 4 of the DB format
+ * <p>
+ * Version 4 is the log of records of version 3 (see {@link V3EncryptedDatabaseSerializer}), with
+ * each record compressed before it is encrypted. The {@link CompressionCodec} of the records is
+ * given in the header, so is fixed for the lifetime of a log: changes appended to a log read from
+ * data are compressed with the codec of that log, and the codec given on construction only takes
+ * effect once the database is next serialized in full.
+ */
+public class V4EncryptedDatabaseSerializer extends V3EncryptedDatabaseSerializer {
+
+    private static final short VERSION = 4;
+
+    /**
+     * Constructs a new V4EncryptedDatabaseSerializer, compressing records quickly
+     */
+    public V4EncryptedDatabaseSerializer() {
+        this(CompressionCodec.FAST);
+    }
+
+    /**
+     * Constructs a new V4EncryptedDatabaseSerializer
+     * @param codec Codec to compress the records of new logs with
+     */
+    public V4EncryptedDatabaseSerializer(CompressionCodec codec) {
+        super(VERSION, codec);
+    }
+
+}
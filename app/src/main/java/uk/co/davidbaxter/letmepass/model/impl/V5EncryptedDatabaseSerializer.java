@@ -0,0 +1,31 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+
+/**
+ * An {@link EncryptedDatabaseSerializer} for version 5 of the DB format
+ * <p>
+ * Version 5 is the compressed log of records of version 4 (see
+ * {@link V4EncryptedDatabaseSerializer}), with each entry in {@link BinaryEntryEncoding} rather
+ * than JSON, which is smaller and much quicker to encode and decode.
+ */
+public class V5EncryptedDatabaseSerializer extends V3EncryptedDatabaseSerializer {
+
+    private static final short VERSION = 5;
+
+    /**
+     * Constructs a new V5EncryptedDatabaseSerializer, compressing records quickly
+     */
+    public V5EncryptedDatabaseSerializer() {
+        this(CompressionCodec.FAST);
+    }
+
+    /**
+     * Constructs a new V5EncryptedDatabaseSerializer
+     * @param codec Codec to compress the records of new logs with
+     */
+    public V5EncryptedDatabaseSerializer(CompressionCodec codec) {
+        super(VERSION, codec);
+    }
+
+}
@@ -0,0 +1,36 @@
+package uk.co.davidbaxter.letmepass.model.impl;
+
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.model.SealedSecret;
+
+/**
+ * An {@link EncryptedDatabaseSerializer} for version 6 of the DB format
+ * <p>
+ * Version 6 is the log of binary records of version 5 (see {@link V5EncryptedDatabaseSerializer}),
+ * with the secret fields of entries (passwords and data) each encrypted again within their
+ * records, with the same key. When the database is read, these fields are left encrypted, as
+ * {@link SealedSecret}s, and are only decrypted when they are needed (e.g. when an entry is
+ * opened), so they are not all held in memory in plaintext while the database is open.
+ * <p>
+ * Sealed fields that are unchanged are written back as they are, without being decrypted.
+ */
+public class V6EncryptedDatabaseSerializer extends V3EncryptedDatabaseSerializer {
+
+    private static final short VERSION = 6;
+
+    /**
+     * Constructs a new V6EncryptedDatabaseSerializer, compressing records quickly
+     */
+    public V6EncryptedDatabaseSerializer() {
+        this(CompressionCodec.FAST);
+    }
+
+    /**
+     * Constructs a new V6EncryptedDatabaseSerializer
+     * @param codec Codec to compress the records of new logs with
+     */
+    public V6EncryptedDatabaseSerializer(CompressionCodec codec) {
+        super(VERSION, codec);
+    }
+
+}
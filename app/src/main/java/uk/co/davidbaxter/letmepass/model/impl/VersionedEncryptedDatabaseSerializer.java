@@ -1,8 +1,17 @@
 package uk.co.davidbaxter.letmepass.model.impl;
 
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
 import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
 import uk.co.davidbaxter.letmepass.model.SerializationException;
@@ -10,12 +19,23 @@ import uk.co.davidbaxter.letmepass.model.SerializationException;
 /**
  * An {@link EncryptedDatabaseSerializer} that reads the version of the file format from the
  * header of the data, and chooses the implementation accordingly.
+ * <p>
+ * Data is always serialized to the version given on construction, so a database read from an
+ * older version is upgraded the next time it is saved.
  */
 public class VersionedEncryptedDatabaseSerializer implements EncryptedDatabaseSerializer {
 
     private static final int VERSION_1 = 1;
-    private static final int LATEST_VERSION = VERSION_1;
-    private EncryptedDatabaseSerializer serializer;
+    private static final int VERSION_2 = 2;
+    private static final int VERSION_3 = 3;
+    private static final int VERSION_4 = 4;
+    private static final int VERSION_5 = 5;
+    private static final int VERSION_6 = 6;
+    private static final int LATEST_VERSION = VERSION_6;
+    private final int version;
+    private final CompressionCodec codec;
+    private final EncryptedDatabaseSerializer serializer;
+    private DerivedKeyCache keyCache = null;
 
     /**
      * Creates a VersionedEncryptedDatabaseSerializer that will serialize data to the latest
@@ -25,18 +45,36 @@ public class VersionedEncryptedDatabaseSerializer implements EncryptedDatabaseSe
         this(LATEST_VERSION);
     }
 
+    /**
+     * Creates a VersionedEncryptedDatabaseSerializer that will serialize data to the latest
+     * version of the DB format, compressing it with the given codec (see
+     * {@link CompressionCodec#forDataStore(uk.co.davidbaxter.letmepass.storage.DataStore)})
+     *
+     * @param codec Codec to compress data with
+     */
+    public VersionedEncryptedDatabaseSerializer(CompressionCodec codec) {
+        this(LATEST_VERSION, codec);
+    }
+
     /**
      * Creates a VersionedEncryptedDatabaseSerializer to serialize data to the given version
      * @param version Version of format to serialize to
      */
     public VersionedEncryptedDatabaseSerializer(int version) {
-        switch (version) {
-            case VERSION_1:
-                this.serializer = new V1EncryptedDatabaseSerializer();
-                break;
-            default:
-                throw new IllegalArgumentException("Invalid version");
-        }
+        this(version, CompressionCodec.FAST);
+    }
+
+    /**
+     * Creates a VersionedEncryptedDatabaseSerializer to serialize data to the given version
+     * @param version Version of format to serialize to
+     * @param codec Codec to compress data with, in versions that support codecs
+     */
+    public VersionedEncryptedDatabaseSerializer(int version, CompressionCodec codec) {
+        this.version = version;
+        this.codec = codec;
+        this.serializer = newSerializer(version, codec);
+        if (this.serializer == null)
+            throw new IllegalArgumentException("Invalid version");
     }
 
     @Override
@@ -44,6 +82,12 @@ public class VersionedEncryptedDatabaseSerializer implements EncryptedDatabaseSe
         return this.serializer.serialize(db, mp);
     }
 
+    @Override
+    public void serialize(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        this.serializer.serialize(db, mp, out);
+    }
+
     @Override
     public PasswordDatabase deserialize(byte[] data, String mp) throws SerializationException,
             DecryptionException {
@@ -54,13 +98,100 @@ public class VersionedEncryptedDatabaseSerializer implements EncryptedDatabaseSe
         short version = ByteBuffer.wrap(data, 0, 2)
                 .getShort();
 
+        return getDeserializer(version).deserialize(data, mp);
+    }
+
+    @Override
+    public PasswordDatabase deserialize(InputStream in, String mp) throws SerializationException,
+            DecryptionException, IOException {
+        // Peek at the version, resetting so that the serializer can read the header in full
+        if (!in.markSupported())
+            in = new BufferedInputStream(in);
+
+        short version;
+        in.mark(2);
+        try {
+            version = new DataInputStream(in).readShort();
+        } catch (IOException e) {
+            throw new SerializationException("Data too short", e);
+        }
+        in.reset();
+
+        return getDeserializer(version).deserialize(in, mp);
+    }
+
+    @Override
+    public void setKeyCache(@Nullable DerivedKeyCache cache) {
+        this.keyCache = cache;
+        this.serializer.setKeyCache(cache);
+    }
+
+    @Override
+    public void setKdfParameters(Argon2Parameters parameters) {
+        // Only our own serializer ever serializes
+        this.serializer.setKdfParameters(parameters);
+    }
+
+    @Override
+    public boolean canSerializeChanges(PasswordDatabase db) {
+        // Databases read from other versions are never read by our serializer, so these are
+        // always serialized in full (upgrading them)
+        return this.serializer.canSerializeChanges(db);
+    }
+
+    @Override
+    public void serializeChanges(PasswordDatabase db, String mp, OutputStream out)
+            throws SerializationException, IOException {
+        this.serializer.serializeChanges(db, mp, out);
+    }
+
+    /**
+     * Gets the serializer to deserialize data of the given version with. This is our own
+     * serializer if the version matches, so that it picks up the parameters of the data for future
+     * serialization; otherwise it is a new serializer for that version.
+     *
+     * @param version Version of the data
+     * @return Serializer for the given version
+     * @throws IllegalArgumentException If the version is not supported
+     */
+    private EncryptedDatabaseSerializer getDeserializer(int version) {
+        if (version == this.version)
+            return serializer;
+
+        EncryptedDatabaseSerializer deserializer = newSerializer(version, codec);
+        if (deserializer == null)
+            throw new IllegalArgumentException(
+                    "Unsupported password database version or corrupted file"
+            );
+
+        deserializer.setKeyCache(keyCache);
+        return deserializer;
+    }
+
+    /**
+     * Creates a serializer for the given version of the DB format
+     * @param version Version of the format
+     * @param codec Codec to compress data with, in versions that support codecs
+     * @return New serializer, or null if the version is not supported
+     */
+    @Nullable
+    private static EncryptedDatabaseSerializer newSerializer(int version,
+                                                             CompressionCodec codec) {
         switch (version) {
-            case LATEST_VERSION:
-                return serializer.deserialize(data, mp);
+            case VERSION_1:
+                return new V1EncryptedDatabaseSerializer();
+            case VERSION_2:
+                return new V2EncryptedDatabaseSerializer();
+            case VERSION_3:
+                return new V3EncryptedDatabaseSerializer();
+            case VERSION_4:
+                return new V4EncryptedDatabaseSerializer(codec);
+            case VERSION_5:
+                return new V5EncryptedDatabaseSerializer(codec);
+            case VERSION_6:
+                return new V6EncryptedDatabaseSerializer(codec);
             default:
-                throw new IllegalArgumentException(
-                        "Unsupported password database version or corrupted file"
-                );
+                return null;
         }
     }
 
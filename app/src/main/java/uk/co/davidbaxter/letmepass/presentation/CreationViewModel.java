@@ -3,15 +3,21 @@ package uk.co.davidbaxter.letmepass.presentation;
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
 import android.arch.lifecycle.ViewModel;
+import android.os.AsyncTask;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.Pair;
 
 import java.security.Security;
 import java.util.Collections;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import uk.co.davidbaxter.letmepass.R;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Calibrator;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
 import uk.co.davidbaxter.letmepass.model.PasswordFlags;
@@ -24,6 +30,7 @@ import uk.co.davidbaxter.letmepass.session.impl.DefaultSessionContext;
 import uk.co.davidbaxter.letmepass.storage.DataStore;
 import uk.co.davidbaxter.letmepass.storage.impl.DriveDataStore;
 import uk.co.davidbaxter.letmepass.storage.impl.FileDataStore;
+import uk.co.davidbaxter.letmepass.model.impl.CompressionCodec;
 import uk.co.davidbaxter.letmepass.model.impl.VersionedEncryptedDatabaseSerializer;
 import uk.co.davidbaxter.letmepass.ui.BreachCheckCommon;
 import uk.co.davidbaxter.letmepass.ui.CreationActivity;
@@ -209,7 +216,12 @@ public class CreationViewModel extends ViewModel {
             cloudDataStore.deleteStore();
     }
 
-    public void onComplete() {
+    /**
+     * Creates the database and saves it, once the key derivation has been calibrated for the
+     * device (which takes a few seconds)
+     * @param memoryClass Memory class of the device in MiB (see ActivityManager#getMemoryClass())
+     */
+    public void onComplete(int memoryClass) {
         // Create the database
         PasswordDatabase database = new JsonPasswordDatabase(dbName.getValue() == null ? ""
                 : dbName.getValue(), Collections.<PasswordDatabaseEntry>emptyList());
@@ -218,13 +230,46 @@ public class CreationViewModel extends ViewModel {
         DataStore dataStore = cloudChecked.getValue() != null && cloudChecked.getValue() ?
                 cloudDataStore : deviceDataStore;
 
-        SessionContext context = new DefaultSessionContext();
+        final SessionContext context = new DefaultSessionContext();
+        final EncryptedDatabaseSerializer serializer = new VersionedEncryptedDatabaseSerializer(
+                CompressionCodec.forDataStore(dataStore));
         context.setDataStore(dataStore);
         context.setDatabase(database);
         context.setMasterPassword(masterPassword.getValue());
-        context.setEncryptedDatabaseSerializer(new VersionedEncryptedDatabaseSerializer());
+        context.setEncryptedDatabaseSerializer(serializer);
         SessionContextRegistry.setSessionContext(context);
 
+        // Tune the key derivation to take the same time to unlock the database on any device,
+        // using up to half of the memory class of the device
+        final Argon2Calibrator calibrator = new Argon2Calibrator(
+                Argon2Calibrator.DEFAULT_TARGET_MILLIS, memoryClass * 1024 / 2);
+        FutureTask<Argon2Parameters> calibration = new FutureTask<>(
+                new Callable<Argon2Parameters>() {
+            @Override
+            public Argon2Parameters call() {
+                return calibrator.calibrate();
+            }
+        });
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(calibration);
+        AsyncUtils.futureToTask(calibration, new Consumer<Argon2Parameters>() {
+            @Override
+            public void accept(Argon2Parameters parameters) {
+                serializer.setKdfParameters(parameters);
+                saveNewDatabase(context);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // The default parameters will do
+                Log.w(CreationViewModel.class.getSimpleName(), "Failed to calibrate KDF", t);
+                saveNewDatabase(context);
+            }
+        }).execute();
+        // TODO here: create a SessionContextFactory of some sort? Might be cleaner
+    }
+
+    /** Encrypts and saves a new database for the first time, signalling the result to the view */
+    private void saveNewDatabase(SessionContext context) {
         // Encrypt and save the database
         Future<Void> future = context.encryptAndSaveDb();
         AsyncUtils.futureToTask(future, new Consumer<Void>() {
@@ -240,7 +285,6 @@ public class CreationViewModel extends ViewModel {
                 Log.e(CreationViewModel.class.getSimpleName(), "Failed to create DB", t);
             }
         }).execute();
-        // TODO here: create a SessionContextFactory of some sort? Might be cleaner
     }
 
     public @Nullable Pair<Integer, Object[]> onVerifyStep(int stepId) {
@@ -94,13 +94,13 @@ public class EntryDialogViewModel extends ViewModel {
         this.startedAsEditable = editable;
         this.editable.setValue(editable);
         this.container = container;
-        this.workingEntry.setValue((PasswordDatabaseEntry) container.getEntry().clone());
+        this.workingEntry.setValue(newWorkingEntry());
         this.passwordFlags.setValue(new PasswordFlags());
 
         // Initialize password flags for the current password
         if (container.getEntry().getType().equals(PasswordEntry.TYPE)) {
             final PasswordFlags flagsInstance = this.passwordFlags.getValue();
-            final String pwd = ((PasswordEntry) this.container.getEntry()).password;
+            final String pwd = ((PasswordEntry) this.workingEntry.getValue()).password;
 
             // Debounce with time 0 so that if the user types before this completes, it gets
             // cancelled; also runs as async so UI not slowed
@@ -228,7 +228,7 @@ public class EntryDialogViewModel extends ViewModel {
 
         // Set the password on our entry and update in view
         PasswordEntry entry = (PasswordEntry) this.workingEntry.getValue();
-        entry.password = pwd;
+        entry.setPassword(pwd);
         this.workingEntry.postValue(entry);
     }
 
@@ -315,7 +315,7 @@ public class EntryDialogViewModel extends ViewModel {
             this.closeEvent.postValue(null);
         // If cancelling edits, re-set working entry to saved entry
         } else {
-            this.workingEntry.postValue((PasswordDatabaseEntry) this.container.getEntry().clone());
+            this.workingEntry.postValue(newWorkingEntry());
             this.editable.postValue(false);
         }
     }
@@ -330,6 +330,16 @@ public class EntryDialogViewModel extends ViewModel {
         this.closeEvent.postValue(null);
     }
 
+    /**
+     * Creates a working copy of the container's entry, with its secrets decrypted for display.
+     * The container's entry keeps its secrets sealed until the working entry is saved to it.
+     */
+    private PasswordDatabaseEntry newWorkingEntry() {
+        PasswordDatabaseEntry entry = (PasswordDatabaseEntry) this.container.getEntry().clone();
+        entry.unseal();
+        return entry;
+    }
+
     public static class Factory implements ViewModelProvider.Factory {
 
         private final PasswordDatabaseEntryContainer container;
@@ -7,6 +7,7 @@ import uk.co.davidbaxter.letmepass.session.SessionContext;
 import uk.co.davidbaxter.letmepass.session.SessionContextRegistry;
 import uk.co.davidbaxter.letmepass.session.impl.DefaultSessionContext;
 import uk.co.davidbaxter.letmepass.storage.DataStore;
+import uk.co.davidbaxter.letmepass.model.impl.CompressionCodec;
 import uk.co.davidbaxter.letmepass.model.impl.VersionedEncryptedDatabaseSerializer;
 import uk.co.davidbaxter.letmepass.util.SingleLiveEvent;
 
@@ -38,7 +39,8 @@ public class IntroViewModel extends ViewModel {
         // Create session context and store in registry
         SessionContext sessionContext = new DefaultSessionContext();
         sessionContext.setDataStore(store);
-        sessionContext.setEncryptedDatabaseSerializer(new VersionedEncryptedDatabaseSerializer());
+        sessionContext.setEncryptedDatabaseSerializer(new VersionedEncryptedDatabaseSerializer(
+                CompressionCodec.forDataStore(store)));
         SessionContextRegistry.setSessionContext(sessionContext);
 
         // Launch the decryption screen
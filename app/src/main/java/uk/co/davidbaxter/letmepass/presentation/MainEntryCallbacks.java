@@ -117,7 +117,7 @@ public class MainEntryCallbacks {
             return false;
 
         PasswordEntry entry = (PasswordEntry) container.getEntry();
-        this.viewModel.copyToClipboard.postValue(entry.password);
+        this.viewModel.copyToClipboard.postValue(entry.getPassword());
         return true;
     }
 
@@ -134,6 +134,10 @@ public class MainEntryCallbacks {
                     this.viewModel.navigator.getFolder()
             );
         }
+        // The entry may have been changed in place, so the database must be told of it for the
+        // change to be indexed and saved
+        this.viewModel.database.updateEntry(container.getEntry());
+
         // If we are saving an existing entry, then simply update the container
         if (this.viewModel.getContainers().getValue().contains(container)) {
             this.viewModel.updateContainer.postValue(container);
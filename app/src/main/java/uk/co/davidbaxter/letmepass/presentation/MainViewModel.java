@@ -13,7 +13,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Future;
 
 import uk.co.davidbaxter.letmepass.R;
 import uk.co.davidbaxter.letmepass.model.FolderEntry;
@@ -22,7 +21,6 @@ import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabaseNavigator;
 import uk.co.davidbaxter.letmepass.session.SessionContext;
 import uk.co.davidbaxter.letmepass.session.SessionContextRegistry;
-import uk.co.davidbaxter.letmepass.util.AsyncUtils;
 import uk.co.davidbaxter.letmepass.util.Consumer;
 import uk.co.davidbaxter.letmepass.util.SingleLiveEvent;
 import uk.co.davidbaxter.letmepass.util.Triplet;
@@ -103,6 +101,11 @@ public class MainViewModel extends ViewModel {
      */
     final SingleLiveEvent<Pair<Integer, Object[]>> snackBarMessage = new SingleLiveEvent<>();
 
+    /**
+     * Whether the database has unsaved changes, is being saved, or is saved
+     */
+    final MutableLiveData<SessionContext.SaveState> saveState = new MutableLiveData<>();
+
     //________________________________INTERNALS________________________________
     /**
      * Current display mode -- this does NOT include search results
@@ -159,6 +162,28 @@ public class MainViewModel extends ViewModel {
         this.containers = transformIntoContainers(entries);
         this.entries.postValue(this.database.getRootEntries());
         this.stuckContainer.setValue(new PasswordDatabaseEntryContainer(R.string.main_divider_passwords));
+
+        // Report the results of saves, which are scheduled in the background
+        this.saveState.setValue(this.sessionContext.getSaveState());
+        this.sessionContext.setSaveStateListener(new Consumer<SessionContext.SaveState>() {
+            @Override
+            public void accept(SessionContext.SaveState state) {
+                saveState.postValue(state);
+                if (state == SessionContext.SaveState.SAVED) {
+                    snackBarMessage.postValue(Pair.create(
+                            R.string.main_db_saved, new Object[] {}
+                    ));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Log.e(MainViewModel.class.getSimpleName(), "Failed to save DB", t);
+                snackBarMessage.postValue(Pair.create(
+                        R.string.main_error_db_save_failure, new Object[] {}
+                ));
+            }
+        });
     }
 
     //________________________________GETTERS________________________________
@@ -242,6 +267,14 @@ public class MainViewModel extends ViewModel {
         return snackBarMessage;
     }
 
+    /**
+     * Gets whether the database has unsaved changes, is being saved, or is saved
+     * @return Live save state
+     */
+    public LiveData<SessionContext.SaveState> getSaveState() {
+        return saveState;
+    }
+
     public MainEntryCallbacks getEntryCallbacks() {
         return entryCallbacks;
     }
@@ -291,10 +324,24 @@ public class MainViewModel extends ViewModel {
             this.stuckContainer.postValue(NULL_DIVIDER_CONTAINER);
     }
 
+    /**
+     * Saves any changes that are waiting to be saved now, as the app is going into the background
+     * (where it may be killed at any time)
+     */
+    public void onBackground() {
+        this.sessionContext.flushSave();
+    }
+
     public void onFinish() {
         SessionContextRegistry.discardSessionContext();
     }
 
+    @Override
+    protected void onCleared() {
+        // The session is discarded separately; it should not call back into us once we are gone
+        this.sessionContext.setSaveStateListener(null);
+    }
+
     //________________________________PACKAGE METHODS________________________________
     //                          (used by callback classes)
 
@@ -336,25 +383,10 @@ public class MainViewModel extends ViewModel {
     }
 
     void saveDatabase() {
-        // TODO: consider here whether database ref gets modified during saving: what then?
-        // Deep copy instead? Locks? Synchronized?
-        Future<Void> saveFuture = this.sessionContext.encryptAndSaveDb();
-        AsyncUtils.futureToTask(saveFuture, new Consumer<Void>() {
-            @Override
-            public void accept(Void aVoid) {
-                snackBarMessage.postValue(Pair.create(
-                        R.string.main_db_saved, new Object[] {}
-                ));
-            }
-
-            @Override
-            public void onFailure(Throwable t) {
-                Log.e(MainViewModel.class.getSimpleName(), "Failed to save DB", t);
-                snackBarMessage.postValue(Pair.create(
-                        R.string.main_error_db_save_failure, new Object[] {}
-                ));
-            }
-        }).execute();
+        // Changes made in quick succession are saved together, from a snapshot of the database so
+        // that it can go on being changed while saving; results are reported through the save
+        // state listener
+        this.sessionContext.scheduleSave();
     }
 
     //________________________________INTERNAL METHODS________________________________
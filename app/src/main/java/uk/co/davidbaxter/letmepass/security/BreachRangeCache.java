@@ -0,0 +1,145 @@
+package uk.co.davidbaxter.letmepass.security;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A disk cache of responses from the Pwned Passwords range API, with one file per hash prefix.
+ * Responses expire after a fixed time to live, after which they must be fetched again.
+ * <p>
+ * Only whole range responses are cached, which contain the hash suffixes of every breached
+ * password with a prefix, so the cache reveals no more about the user's passwords than the
+ * requests to the API do: the five-character hash prefixes.
+ */
+public class BreachRangeCache {
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("utf-8");
+    private static final String FILE_SUFFIX = ".txt";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long ttlMillis;
+    private final long maxSizeBytes;
+
+    /**
+     * Creates a cache stored in the given directory, which is created if it does not exist
+     * @param directory Directory to store responses in
+     * @param ttlMillis Time after which cached responses expire, in milliseconds
+     * @param maxSizeBytes Size of the cache in bytes above which {@link #trim()} removes the oldest
+     *                     responses
+     */
+    public BreachRangeCache(File directory, long ttlMillis, long maxSizeBytes) {
+        this.directory = directory;
+        this.ttlMillis = ttlMillis;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Gets the cached response for a hash prefix, if it has not expired
+     * @param prefix Hash prefix, in uppercase hex
+     * @return Cached response, or null if none is cached or it has expired
+     */
+    @Nullable
+    public String get(String prefix) {
+        File file = getFile(prefix);
+        long age = System.currentTimeMillis() - file.lastModified();
+        if (!file.isFile() || age < 0 || age >= ttlMillis)
+            return null;
+
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                return new String(out.toByteArray(), CHARSET_UTF8);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Treat an unreadable response as a cache miss
+            return null;
+        }
+    }
+
+    /**
+     * Caches the response for a hash prefix. Failure to write the response is ignored, as the
+     * response can always be fetched again.
+     *
+     * @param prefix Hash prefix, in uppercase hex
+     * @param response Response to cache
+     */
+    public void put(String prefix, String response) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            return;
+
+        // Write to a temporary file first, so concurrent readers never see a partial response
+        File file = getFile(prefix);
+        File tempFile = new File(directory, prefix + TEMP_FILE_SUFFIX + Thread.currentThread().getId());
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(response.getBytes(CHARSET_UTF8));
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(file))
+                tempFile.delete();
+        } catch (IOException e) {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes expired responses, and then the least recently fetched responses until the cache
+     * is no larger than its maximum size
+     */
+    public void trim() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long m1 = o1.lastModified();
+                long m2 = o2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        for (File file : files)
+            size += file.length();
+
+        for (File file : files) {
+            boolean expired = now - file.lastModified() >= ttlMillis;
+            if (!expired && size <= maxSizeBytes)
+                break;
+
+            long length = file.length();
+            if (file.delete())
+                size -= length;
+        }
+    }
+
+    private File getFile(String prefix) {
+        return new File(directory, prefix + FILE_SUFFIX);
+    }
+
+}
@@ -0,0 +1,282 @@
+package uk.co.davidbaxter.letmepass.security;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+
+/**
+ * A client for the Pwned Passwords range API, which finds the number of breaches that passwords
+ * have appeared in by sending only the first five characters of their SHA-1 hashes.
+ * <p>
+ * Passwords are checked synchronously; see {@link PasswordBreachService} for asynchronous checks.
+ * Range responses are read from and written to a {@link BreachRangeCache}, if one is given, and
+ * when auditing many passwords, each range is fetched once for all passwords sharing its prefix,
+ * with the fetches run on the given executor (which bounds how many run at once).
+ * <p>
+ * Results are given as breach counts (&gt;= 0), or the error codes of
+ * {@link PasswordBreachService}.
+ */
+public class BreachRangeClient {
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("utf-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int PREFIX_LENGTH = 5;
+    private static final int SUFFIX_LENGTH = 35;
+
+    private final OkHttpClient httpClient;
+    private final String urlFormat;
+    private final BreachRangeCache cache;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new client
+     * @param httpClient HTTP client to make requests with
+     * @param urlFormat Format of the range URL, with a single %s for the hash prefix
+     * @param cache Cache of range responses, or null to always fetch them
+     * @param executor Executor to fetch ranges on when auditing many passwords
+     */
+    public BreachRangeClient(OkHttpClient httpClient, String urlFormat,
+                             @Nullable BreachRangeCache cache, ExecutorService executor) {
+        this.httpClient = httpClient;
+        this.urlFormat = urlFormat;
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    /**
+     * Checks the number of known breaches that a password has appeared in
+     * @param password Password to check
+     * @return Number of breaches (&gt;= 0), or an error code (&lt; 0)
+     */
+    public int checkBreaches(String password) {
+        String hash;
+        try {
+            hash = getSha1Hex(password);
+        } catch (NoSuchAlgorithmException e) {
+            // For some reason we couldn't SHA-1 hash the password; fail gracefully
+            Log.e(BreachRangeClient.class.getSimpleName(), "Failed to get SHA-1", e);
+            return PasswordBreachService.ERROR_UNKNOWN_ERROR;
+        }
+
+        String suffix = hash.substring(PREFIX_LENGTH);
+        try {
+            return getBreachCounts(hash.substring(0, PREFIX_LENGTH),
+                    Collections.singletonList(suffix)).get(suffix);
+        } catch (Exception e) {
+            return getErrorCode(e);
+        }
+    }
+
+    /**
+     * Checks the number of known breaches that the passwords of each of the given entries have
+     * appeared in. Entries that are not password entries, or have empty passwords, are not
+     * checked, and are left out of the result.
+     *
+     * @param entries Entries to check the passwords of, e.g.
+     *                {@link uk.co.davidbaxter.letmepass.model.PasswordDatabase#getAllEntries()}
+     * @return Map from each entry checked (by reference) to its number of breaches (&gt;= 0) or an
+     *         error code (&lt; 0)
+     * @throws InterruptedException if interrupted while waiting for ranges to be fetched
+     */
+    public Map<PasswordEntry, Integer> auditBreaches(
+            Collection<? extends PasswordDatabaseEntry> entries) throws InterruptedException {
+        Map<PasswordEntry, Integer> results = new IdentityHashMap<>();
+
+        // Group the entries by hash prefix, then suffix, so each range is only fetched once
+        final Map<String, Map<String, List<PasswordEntry>>> groups = new HashMap<>();
+        for (PasswordDatabaseEntry databaseEntry : entries) {
+            if (!(databaseEntry instanceof PasswordEntry))
+                continue;
+
+            PasswordEntry entry = (PasswordEntry) databaseEntry;
+            String password = entry.getPassword();
+            if (password == null || password.isEmpty())
+                continue;
+
+            String hash;
+            try {
+                hash = getSha1Hex(password);
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(BreachRangeClient.class.getSimpleName(), "Failed to get SHA-1", e);
+                results.put(entry, PasswordBreachService.ERROR_UNKNOWN_ERROR);
+                continue;
+            }
+
+            String prefix = hash.substring(0, PREFIX_LENGTH);
+            String suffix = hash.substring(PREFIX_LENGTH);
+            Map<String, List<PasswordEntry>> suffixes = groups.get(prefix);
+            if (suffixes == null) {
+                suffixes = new HashMap<>();
+                groups.put(prefix, suffixes);
+            }
+
+            List<PasswordEntry> suffixEntries = suffixes.get(suffix);
+            if (suffixEntries == null) {
+                suffixEntries = new ArrayList<>();
+                suffixes.put(suffix, suffixEntries);
+            }
+            suffixEntries.add(entry);
+        }
+
+        // Fetch each range on the executor
+        Map<String, Future<Map<String, Integer>>> futures = new HashMap<>();
+        try {
+            for (final Map.Entry<String, Map<String, List<PasswordEntry>>> group
+                    : groups.entrySet()) {
+                futures.put(group.getKey(), executor.submit(new Callable<Map<String, Integer>>() {
+                    @Override
+                    public Map<String, Integer> call() throws Exception {
+                        return getBreachCounts(group.getKey(), group.getValue().keySet());
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<Map<String, Integer>>> future : futures.entrySet()) {
+                Map<String, List<PasswordEntry>> suffixes = groups.get(future.getKey());
+
+                Map<String, Integer> counts = null;
+                int error = 0;
+                try {
+                    counts = future.getValue().get();
+                } catch (ExecutionException e) {
+                    error = getErrorCode(e.getCause());
+                }
+
+                for (Map.Entry<String, List<PasswordEntry>> suffix : suffixes.entrySet()) {
+                    int result = counts == null ? error : counts.get(suffix.getKey());
+                    for (PasswordEntry entry : suffix.getValue())
+                        results.put(entry, result);
+                }
+            }
+        } finally {
+            // Stop fetching if we've been interrupted (does nothing if all are done)
+            for (Future<Map<String, Integer>> future : futures.values())
+                future.cancel(true);
+
+            if (cache != null)
+                cache.trim();
+        }
+
+        return results;
+    }
+
+    /**
+     * Gets the breach counts of the given hash suffixes within a range, from the cache if possible
+     * @param prefix Hash prefix of the range, in uppercase hex
+     * @param suffixes Hash suffixes to get the counts of, in uppercase hex
+     * @return Map from each suffix to its number of breaches
+     * @throws IOException if the range could not be fetched
+     */
+    private Map<String, Integer> getBreachCounts(String prefix, Collection<String> suffixes)
+            throws IOException {
+        String range = cache == null ? null : cache.get(prefix);
+        if (range == null) {
+            range = fetchRange(prefix);
+            if (cache != null)
+                cache.put(prefix, range);
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (String suffix : suffixes)
+            counts.put(suffix, 0);
+
+        // Each line of the range is in the format <hash suffix>:<breaches>
+        int start = 0;
+        while (start < range.length()) {
+            int end = range.indexOf('\n', start);
+            if (end == -1)
+                end = range.length();
+
+            if (end - start > SUFFIX_LENGTH && range.charAt(start + SUFFIX_LENGTH) == ':') {
+                for (String suffix : suffixes) {
+                    if (range.regionMatches(start, suffix, 0, SUFFIX_LENGTH)) {
+                        counts.put(suffix, Integer.parseInt(
+                                range.substring(start + SUFFIX_LENGTH + 1, end).trim()));
+                        break;
+                    }
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return counts;
+    }
+
+    private String fetchRange(String prefix) throws IOException {
+        Request request = new Request.Builder()
+                .url(String.format(urlFormat, prefix))
+                .build();
+        Response response = httpClient.newCall(request).execute();
+        try {
+            // If something went wrong, fail gracefully
+            if (response.code() != 200)
+                throw new ServerErrorException(response.code());
+
+            return response.body().string();
+        } finally {
+            response.close();
+        }
+    }
+
+    private static int getErrorCode(Throwable e) {
+        if (e instanceof ServerErrorException) {
+            return PasswordBreachService.ERROR_SERVER_ERROR;
+        } else if (e instanceof IOException) {
+            // Couldn't connect or otherwise HTTP request failed
+            return PasswordBreachService.ERROR_IO_EXCEPTION;
+        } else if (e instanceof NumberFormatException) {
+            // We couldn't convert the number of breaches to an int
+            Log.e(BreachRangeClient.class.getSimpleName(), "Malformed response", e);
+            return PasswordBreachService.ERROR_UNKNOWN_ERROR;
+        }
+
+        Log.e(BreachRangeClient.class.getSimpleName(), "Failed to check breaches", e);
+        return PasswordBreachService.ERROR_UNKNOWN_ERROR;
+    }
+
+    /**
+     * Gets the SHA-1 hash of a password in uppercase hex, as the API returns uppercase hashes
+     */
+    private static String getSha1Hex(String data) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] digest = md.digest(data.getBytes(CHARSET_UTF8));
+
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    /** Thrown when the API responds with an error status */
+    private static class ServerErrorException extends IOException {
+        ServerErrorException(int code) {
+            super("Server responded with status " + code);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package uk.co.davidbaxter.letmepass.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only set of blacklisted passwords, as generated by
+ * {@code scripts/password_blacklist_generator.py}. The set consists of a Bloom filter, which
+ * rejects most passwords not in the set, and a minimal perfect hash table of 32-bit fingerprints
+ * of each password, which rejects almost all of the rest.
+ * <p>
+ * Lookups read directly from the underlying buffer (typically a memory-mapped file) and do not
+ * allocate, so they are cheap enough to perform as the user types. The format is described in the
+ * generator script, and the hashing here must match it exactly.
+ */
+public class PasswordBlacklist {
+
+    private static final int MAGIC = 0x4C4D5042; // 'LMPB'
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 24;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long BLOOM_SEED = 0x6a09e667f3bcc908L;
+    private static final long BUCKET_SEED = 0xbb67ae8584caa73bL;
+    private static final long SLOT_SEED = 0x3c6ef372fe94f82bL;
+    private static final long FINGERPRINT_SEED = 0xa54ff53a5f1d36f1L;
+
+    private final ByteBuffer buffer;
+    private final int keyCount;
+    private final long bloomBits;
+    private final int bloomHashes;
+    private final int bucketCount;
+    private final int displacementsOffset;
+    private final int fingerprintsOffset;
+
+    /**
+     * Creates a blacklist from a buffer containing a generated blacklist file
+     * @param buffer Buffer containing the blacklist, from its position to its limit
+     * @throws IOException if the buffer does not contain a valid blacklist
+     */
+    public PasswordBlacklist(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (this.buffer.capacity() < HEADER_LENGTH
+                || this.buffer.getInt(0) != MAGIC
+                || this.buffer.getInt(4) != VERSION)
+            throw new IOException("Not a supported password blacklist");
+
+        this.keyCount = this.buffer.getInt(8);
+        this.bloomBits = this.buffer.getInt(12) & 0xFFFFFFFFL;
+        this.bloomHashes = this.buffer.getInt(16);
+        this.bucketCount = this.buffer.getInt(20);
+
+        long displacementsOffset = HEADER_LENGTH + bloomBits / 8;
+        long fingerprintsOffset = displacementsOffset + 4L * bucketCount;
+        long length = fingerprintsOffset + 4L * keyCount;
+        if (keyCount <= 0 || bucketCount <= 0 || bloomBits == 0 || bloomBits % 64 != 0
+                || length != this.buffer.capacity())
+            throw new IOException("Corrupt password blacklist");
+
+        this.displacementsOffset = (int) displacementsOffset;
+        this.fingerprintsOffset = (int) fingerprintsOffset;
+    }
+
+    /**
+     * Loads a blacklist by memory-mapping a generated blacklist file
+     * @param file Blacklist file
+     * @return Loaded blacklist
+     * @throws IOException if the file could not be mapped, or is not a valid blacklist
+     */
+    public static PasswordBlacklist load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping remains valid after the channel is closed
+            return new PasswordBlacklist(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks whether a password is in the blacklist. There is a negligible (roughly 1 in 2^32)
+     * chance of a password not in the blacklist being reported as blacklisted.
+     *
+     * @param password Password to check
+     * @return Whether the password is blacklisted
+     */
+    public boolean contains(String password) {
+        long hash = hash(password);
+
+        // Check the Bloom filter, with bit indices derived by double hashing
+        long bloomHash = mix(hash ^ BLOOM_SEED);
+        long h1 = bloomHash & 0xFFFFFFFFL;
+        long h2 = bloomHash >>> 32;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = (((h1 + i * h2) & 0xFFFFFFFFL) * bloomBits) >>> 32;
+            long word = buffer.getLong(HEADER_LENGTH + (int) (bit >>> 6) * 8);
+            if ((word & (1L << (bit & 63))) == 0)
+                return false;
+        }
+
+        // Find the only slot the password can be in, and compare its fingerprint
+        int bucket = reduce(mix(hash ^ BUCKET_SEED), bucketCount);
+        int displacement = buffer.getInt(displacementsOffset + bucket * 4);
+        int slot = displacement < 0
+                ? -displacement - 1
+                : reduce(mix(hash + SLOT_SEED * (displacement + 1)), keyCount);
+        if (slot >= keyCount)
+            return false;
+
+        return buffer.getInt(fingerprintsOffset + slot * 4) == (int) mix(hash ^ FINGERPRINT_SEED);
+    }
+
+    /** Hashes the UTF-16 code units of a string with FNV-1a, then mixes the result */
+    private static long hash(String text) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < text.length(); i++)
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        return mix(hash);
+    }
+
+    /** Mixes the bits of a 64-bit value (the SplitMix64 finalizer) */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Maps the upper 32 bits of a hash onto [0, n) */
+    private static int reduce(long hash, int n) {
+        return (int) (((hash >>> 32) * n) >>> 32);
+    }
+
+}
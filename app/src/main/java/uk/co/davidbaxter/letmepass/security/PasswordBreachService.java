@@ -4,21 +4,20 @@ import android.Manifest;
 import android.content.Context;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.PermissionChecker;
-import android.util.Log;
 
-import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.File;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
 import uk.co.davidbaxter.letmepass.util.InstantFuture;
 
 /**
@@ -28,6 +27,9 @@ import uk.co.davidbaxter.letmepass.util.InstantFuture;
  * sent in this request. Rather, it is hashed, and the first five characters of the 40-character
  * hash are sent to the server; the server then returns a list of hashes that we can filter through.
  * This class abstracts this process, allowing for an asynchronous call to this service.
+ * <p>
+ * Responses are cached on disk for a day, and whole databases can be audited at once with
+ * {@link #auditBreaches(Collection)}, which fetches each hash prefix only once.
  */
 public class PasswordBreachService {
 
@@ -55,11 +57,19 @@ public class PasswordBreachService {
     public static final int ERROR_SERVER_ERROR = -4;
 
     // Class constants
-    private static final Charset CHARSET_UTF8 = Charset.forName("utf-8");
     private static final String API_URL = "https://api.pwnedpasswords.com/range/%s";
+    private static final String CACHE_DIR_NAME = "breach_ranges";
+    private static final long CACHE_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long CACHE_MAX_SIZE_BYTES = 16 * 1024 * 1024;
+    /** Number of range requests to make at once when auditing */
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
 
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
-    private final OkHttpClient httpClient = new OkHttpClient();
+    /** Separate from single checks, so that they need not wait for an audit to finish */
+    private final ExecutorService auditExecutorService = Executors.newSingleThreadExecutor();
+    private final ExecutorService requestExecutorService =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    private final BreachRangeClient client;
     private final Context context;
 
     /**
@@ -68,6 +78,12 @@ public class PasswordBreachService {
      */
     public PasswordBreachService(Context context) {
         this.context = context;
+        this.client = new BreachRangeClient(
+                new OkHttpClient(),
+                API_URL,
+                new BreachRangeCache(new File(context.getCacheDir(), CACHE_DIR_NAME),
+                        CACHE_TTL_MILLIS, CACHE_MAX_SIZE_BYTES),
+                requestExecutorService);
     }
 
     /** Checks whether we have permissions to access the internet */
@@ -102,68 +118,46 @@ public class PasswordBreachService {
         return executorService.submit(new Callable<Integer>() {
             @Override
             public Integer call() throws Exception {
-                try {
-                    // Get the password hash and form URL from first 5 chars of hex hash
-                    // N.B. - hash in uppercase because API returns uppercase hashes
-                    String passwordHashHex = getSha1Hash(password).toUpperCase();
-                    String passwordHashPrefix = passwordHashHex.substring(0, 5);
-                    String passwordHashSuffix = passwordHashHex.substring(5);
-                    String url = String.format(API_URL, passwordHashPrefix);
-
-                    // Build and send request
-                    Request request = new Request.Builder()
-                            .url(url)
-                            .build();
-                    Response response = httpClient.newCall(request).execute();
-
-                    // If something went wrong, fail gracefully
-                    if (response.code() != 200) {
-                        return ERROR_SERVER_ERROR;
-                    }
-
-                    // Decode response using the appropriate charset
-                    String responseBody = response.body().string();
-
-                    // Check if the password hash -suffix- is contained
-                    int index = -1;
-                    if ((index = responseBody.indexOf(passwordHashSuffix)) != -1) {
-                        // If suffix is contained, get breach count. Line should be in format:
-                        // <hash>:<breaches>\n
-                        String breaches = responseBody.substring(
-                                index + 36, // 35 chars for hash suffix; 1 char for colon separator
-                                responseBody.indexOf('\n', index) // Scan to newline
-                        ).trim(); // Trim to remove whitespace
-
-                        return Integer.parseInt(breaches);
-                    }
-
-                    // Password hash not found in breached hash list; return 0 breaches
-                    return 0;
-                } catch (NoSuchAlgorithmException e) {
-                    // For some reason we couldn't SHA-1 hash the password; fail gracefully
-                    Log.e(PasswordBreachService.class.getSimpleName(), "Failed to get SHA-1", e);
-                    return ERROR_UNKNOWN_ERROR;
-                } catch (NumberFormatException e) {
-                    // We couldn't convert the number of breaches to an int
-                    Log.e(PasswordBreachService.class.getSimpleName(), "Malformed response", e);
-                    return ERROR_UNKNOWN_ERROR;
-                } catch (IOException e) {
-                    // Couldn't connect or otherwise HTTP request failed; fail gracefully
-                    return ERROR_IO_EXCEPTION;
-                }
+                return client.checkBreaches(password);
             }
         });
     }
 
-    private String getSha1Hash(String data) throws NoSuchAlgorithmException {
-        // Get the SHA-1 digest of the data
-        MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] digest = md.digest(data.getBytes(CHARSET_UTF8));
+    /**
+     * Checks the number of known breaches that the passwords of each of the given entries have
+     * appeared in, asynchronously. Passwords are grouped by hash prefix, so that each prefix is
+     * only requested once, and several prefixes are requested at once.
+     * <p>
+     * If there are insufficient permissions, every entry is given the error {@link #ERROR_NO_PERMS}.
+     * Otherwise, each entry is given an error or number of breaches as in
+     * {@link #checkBreaches(String)}. Entries that are not password entries, or have empty
+     * passwords, are not checked, and are left out of the result.
+     *
+     * @param entries Entries to check the passwords of, e.g. all entries of a database
+     * @return A future that, on completion, gives a map from each entry checked (by reference) to
+     *         an error (&lt; 0) or the number of breaches (&gt;= 0)
+     */
+    public Future<Map<PasswordEntry, Integer>> auditBreaches(
+            final Collection<? extends PasswordDatabaseEntry> entries) {
+        return auditExecutorService.submit(new Callable<Map<PasswordEntry, Integer>>() {
+            @Override
+            public Map<PasswordEntry, Integer> call() throws Exception {
+                if (!hasPermissions()) {
+                    Map<PasswordEntry, Integer> results = new IdentityHashMap<>();
+                    for (PasswordDatabaseEntry entry : entries) {
+                        if (!(entry instanceof PasswordEntry))
+                            continue;
+
+                        String password = ((PasswordEntry) entry).getPassword();
+                        if (password != null && !password.isEmpty())
+                            results.put((PasswordEntry) entry, ERROR_NO_PERMS);
+                    }
+                    return results;
+                }
 
-        // Get the digest as a big integer so we can store it as an int to format it to hex
-        BigInteger digestInt = new BigInteger(1, digest);
-        // Format the digest as hex (%0<length in nibbles>x) and return
-        return String.format("%040x", digestInt);
+                return client.auditBreaches(entries);
+            }
+        });
     }
 
 }
@@ -9,13 +9,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.sql.Connection;
-import java.sql.Driver;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Locale;
 
 import uk.co.davidbaxter.letmepass.R;
 import uk.co.davidbaxter.letmepass.model.PasswordFlags;
@@ -26,10 +19,13 @@ import uk.co.davidbaxter.letmepass.model.PasswordFlags;
 public class PasswordFlagsService {
 
     /** File name of blacklist file when stored as a copy in the app storage */
-    private static final String BLACKLIST_FILE_NAME = "blacklist.db";
+    private static final String BLACKLIST_FILE_NAME = "blacklist.bin";
 
-    /** Connection to the blacklist database */
-    private static Connection blacklistConnection = null;
+    /** File name of the blacklist database used by previous versions, which we remove */
+    private static final String OLD_BLACKLIST_FILE_NAME = "blacklist.db";
+
+    /** Loaded (memory-mapped) blacklist */
+    private static PasswordBlacklist blacklist = null;
 
     /** Application context referecne */
     private Context context;
@@ -114,84 +110,68 @@ public class PasswordFlagsService {
     }
 
     /**
-     * Loads the blacklist database file from the application resources and/or the app's storage.
+     * Loads the blacklist file from the application resources and/or the app's storage.
      * <p>
-     * This method loads the database by copying it from the app resources to the app's data
-     * directory in internal storage. As such, it can fail, in which case the blacklist will be
-     * uninitialized and the 'notBlacklisted' flag will always be true.
+     * This method loads the blacklist by copying it from the app resources to the app's data
+     * directory in internal storage, and memory-mapping it from there. As such, it can fail, in
+     * which case the blacklist will be uninitialized and the 'notBlacklisted' flag will always be
+     * true.
      *
      * @param context Application context
-     * @throws IOException if an error occurred while copying the blacklist database file from
-     *                     resources to disk
-     * @throws SQLException if the database could not be loaded
+     * @throws IOException if an error occurred while copying the blacklist file from resources to
+     *                     disk, or if the blacklist could not be loaded
      */
-    public static void loadBlacklist(Context context) throws IOException, SQLException {
+    public static synchronized void loadBlacklist(Context context) throws IOException {
         // If we've already loaded the blacklist, do nothing
-        if (blacklistConnection != null)
+        if (blacklist != null)
             return;
 
-        File dbFile = new File(context.getFilesDir(), BLACKLIST_FILE_NAME);
+        // Remove the SQLite blacklist from previous versions, which is no longer used
+        File oldFile = new File(context.getFilesDir(), OLD_BLACKLIST_FILE_NAME);
+        if (oldFile.exists())
+            oldFile.delete();
+
+        File file = new File(context.getFilesDir(), BLACKLIST_FILE_NAME);
 
-        // Check that the DB file exists in local storage
-        if (!dbFile.exists()) {
-            // Write the DB file to a file in storage so we can read from it
-            InputStream in = context.getResources().openRawResource(R.raw.blacklist_db);
-            FileOutputStream out = new FileOutputStream(dbFile, false); // false = don't append
-            IOUtils.copyStream(in, out);
+        // Check that the blacklist file exists in local storage
+        if (!file.exists()) {
+            // Write the blacklist to a temporary file first, so that we never map a partial copy
+            File tempFile = new File(context.getFilesDir(), BLACKLIST_FILE_NAME + ".tmp");
+            InputStream in = context.getResources().openRawResource(R.raw.blacklist_bin);
+            FileOutputStream out = new FileOutputStream(tempFile, false); // false = don't append
+            try {
+                IOUtils.copyStream(in, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to move blacklist file into place");
         }
 
-        // Register JDBC driver
         try {
-            DriverManager.registerDriver(
-                    (Driver) Class.forName("org.sqldroid.SQLDroidDriver").newInstance());
-        } catch (Exception e) {
-            Log.e(PasswordFlagsService.class.getSimpleName(), "Failed to register driver", e);
+            blacklist = PasswordBlacklist.load(file);
+        } catch (IOException e) {
+            // Delete an unreadable copy so that it is replaced next time
+            file.delete();
+            throw e;
         }
-
-        // Load the database and save the connection
-        String jdbcUrl = "jdbc:sqldroid:" + dbFile.getPath();
-        blacklistConnection = DriverManager.getConnection(jdbcUrl);
     }
 
     /**
-     * Releases occupied resources of the blacklist database
+     * Releases occupied resources of the blacklist
      */
-    public static void closeBlacklist() {
-        // Close the connection if it exists
-        if (blacklistConnection != null)
-            try {
-                blacklistConnection.close();
-            } catch (Exception e) {}
+    public static synchronized void closeBlacklist() {
+        // The mapping is released once the blacklist is garbage collected
+        blacklist = null;
     }
 
     private boolean isBlacklisted(String password) {
-        if (password.isEmpty() || blacklistConnection == null)
+        PasswordBlacklist blacklist = PasswordFlagsService.blacklist;
+        if (password.isEmpty() || blacklist == null)
             return false;
 
-        // Prepare query parameters
-        char ch = password.charAt(0);
-        int length = password.length();
-        String suffix = password.substring(1);
-
-        try {
-            // Prepare a statement to search the blacklist DB for this password
-            PreparedStatement stmnt = blacklistConnection.prepareStatement(String.format(
-                Locale.ENGLISH,
-                "SELECT suffix FROM blacklist WHERE first_letter = '%c'" +
-                " AND suffix = '%s'" +
-                " AND length = %d",
-                ch, suffix, length)
-            );
-
-            // Execute the query
-            ResultSet rs = stmnt.executeQuery();
-
-            // Return true if we have any results, false otherwise
-            return rs.next();
-        } catch (SQLException e) {
-            // Return false if we have an SQL exception
-            return false;
-        }
+        return blacklist.contains(password);
     }
 
 }
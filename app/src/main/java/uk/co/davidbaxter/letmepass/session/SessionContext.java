@@ -1,10 +1,13 @@
 package uk.co.davidbaxter.letmepass.session;
 
+import android.support.annotation.Nullable;
+
 import java.util.concurrent.Future;
 
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.storage.DataStore;
 import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.util.Consumer;
 
 public interface SessionContext {
 
@@ -24,8 +27,65 @@ public interface SessionContext {
 
     void setMasterPassword(String mp);
 
+    /*
+     * Saves write a snapshot of the database (see PasswordDatabase#snapshot()) taken when the save
+     * is requested, so the database can go on being changed while they run. The methods below must
+     * therefore be called on the thread that changes the database.
+     */
+
+    /**
+     * Saves the database now, along with any changes waiting for a scheduled save
+     * @return Future that completes once the database has been saved
+     */
     Future<Void> encryptAndSaveDb();
 
+    /**
+     * Schedules a save of the database after it has been changed. Saves scheduled in quick
+     * succession are coalesced into a single save of the latest state of the database, which
+     * starts no later than a maximum latency after the first of them.
+     * @return Future that completes once a save including the changes has completed
+     */
+    Future<Void> scheduleSave();
+
+    /**
+     * Starts any scheduled save now, e.g. when the app is sent to the background, rather than
+     * waiting for its latency to expire. If a previous save failed, the database is saved again.
+     * @return Future that completes once the database is saved, or at once if it is saved already
+     */
+    Future<Void> flushSave();
+
+    /**
+     * Gets whether the database has changes waiting to be saved, is being saved, or is saved
+     * @return Current save state
+     */
+    SaveState getSaveState();
+
+    /**
+     * Sets a listener for changes to the save state of the database. Failed saves are passed to
+     * {@link Consumer#onFailure(Throwable)}, after which the state is {@link SaveState#DIRTY}.
+     * The listener is called on the thread that changes the state.
+     * @param listener Listener, or null to remove the listener
+     */
+    void setSaveStateListener(@Nullable Consumer<SaveState> listener);
+
     Future<Void> readAndDecryptDb();
 
+    /**
+     * Discards the session, wiping sensitive state held by it (such as cached keys) once any
+     * pending save or load has completed. The session should not be used after this.
+     */
+    void discard();
+
+    /**
+     * State of the database with respect to the saved data
+     */
+    enum SaveState {
+        /** The saved data matches the database */
+        SAVED,
+        /** The database has changes that are not yet saved (or whose save failed) */
+        DIRTY,
+        /** The database is being saved */
+        SAVING
+    }
+
 }
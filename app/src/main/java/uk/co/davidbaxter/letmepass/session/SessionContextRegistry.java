@@ -13,6 +13,8 @@ public class SessionContextRegistry {
     }
 
     public static void discardSessionContext() {
+        if (currentSessionContext != null)
+            currentSessionContext.discard();
         currentSessionContext = null;
     }
 
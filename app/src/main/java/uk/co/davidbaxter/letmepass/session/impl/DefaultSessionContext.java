@@ -1,29 +1,83 @@
 package uk.co.davidbaxter.letmepass.session.impl;
 
+import android.support.annotation.Nullable;
+
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.crypto.impl.GcmEngine;
 import uk.co.davidbaxter.letmepass.model.EncryptedDatabaseSerializer;
 import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
 import uk.co.davidbaxter.letmepass.session.SessionContext;
 import uk.co.davidbaxter.letmepass.storage.DataStore;
+import uk.co.davidbaxter.letmepass.util.Consumer;
 
 public class DefaultSessionContext implements SessionContext {
 
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    /** Default maximum time that changes wait for a scheduled save */
+    public static final long DEFAULT_MAX_SAVE_LATENCY_MS = 2000;
+
+    private final ScheduledExecutorService executorService =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /** Guards the scheduling of saves, the save state, the data store, and whether a full save is
+     * required */
+    private final Object saveLock = new Object();
+
+    private final long maxSaveLatencyMs;
+
+    /** Save that the next changes will be saved by, if one is scheduled and has not yet started */
+    private FutureTask<Void> pendingSave = null;
+
+    /** Timer that will start the pending save */
+    private ScheduledFuture<?> pendingSaveTimer = null;
+
+    /** Snapshot of the database for the pending save to write, taken when it was last requested */
+    private PasswordDatabase pendingSnapshot = null;
+
+    private SaveState saveState = SaveState.SAVED;
+
+    private Consumer<SaveState> saveStateListener = null;
 
-    private final Object databaseLock = new Object();
+    /** Keys derived from the master password during this session; zeroed on discard */
+    private final DerivedKeyCache keyCache = new DerivedKeyCache();
 
     private PasswordDatabase database = null;
 
-    private DataStore dataStore = null;
+    private DataStore dataStore = null; // Guarded by saveLock
 
     private String masterPassword = null;
 
     private EncryptedDatabaseSerializer serializer = null;
 
+    /** Whether the next save must rewrite the database in full, rather than append changes */
+    private boolean fullSaveRequired = true; // Guarded by saveLock
+
+    /** Number of times a full save has been required, so that a save or read only clears the
+     * requirement if it has not been required again since it started */
+    private int fullSaveRequests = 0; // Guarded by saveLock
+
+    public DefaultSessionContext() {
+        this(DEFAULT_MAX_SAVE_LATENCY_MS);
+    }
+
+    /**
+     * Creates a session context
+     * @param maxSaveLatencyMs Maximum time that changes wait for a scheduled save, in milliseconds
+     */
+    public DefaultSessionContext(long maxSaveLatencyMs) {
+        this.maxSaveLatencyMs = maxSaveLatencyMs;
+    }
+
     @Override
     public PasswordDatabase getDatabase() {
         return database;
@@ -36,12 +90,17 @@ public class DefaultSessionContext implements SessionContext {
 
     @Override
     public DataStore getDataStore() {
-        return dataStore;
+        synchronized (saveLock) {
+            return dataStore;
+        }
     }
 
     @Override
     public void setDataStore(DataStore store) {
-        this.dataStore = store;
+        synchronized (saveLock) {
+            this.dataStore = store;
+            requireFullSave();
+        }
     }
 
     @Override
@@ -51,6 +110,16 @@ public class DefaultSessionContext implements SessionContext {
 
     @Override
     public void setMasterPassword(String mp) {
+        // Keys derived from a previous master password will never be used again
+        if (this.masterPassword != null && !this.masterPassword.equals(mp)) {
+            keyCache.clear();
+
+            // Changes cannot be appended to data encrypted with the old password
+            synchronized (saveLock) {
+                requireFullSave();
+            }
+        }
+
         this.masterPassword = mp;
     }
 
@@ -62,34 +131,275 @@ public class DefaultSessionContext implements SessionContext {
     @Override
     public void setEncryptedDatabaseSerializer(EncryptedDatabaseSerializer serializer) {
         this.serializer = serializer;
+        if (serializer != null)
+            serializer.setKeyCache(keyCache);
     }
 
     @Override
     public Future<Void> encryptAndSaveDb() {
-        return executorService.submit(new Callable<Void>() {
+        synchronized (saveLock) {
+            if (pendingSave == null)
+                pendingSave = newSave();
+            pendingSnapshot = database.snapshot();
+            return startPendingSave();
+        }
+    }
+
+    @Override
+    public Future<Void> scheduleSave() {
+        Future<Void> save;
+        Consumer<SaveState> listener = null;
+        synchronized (saveLock) {
+            if (pendingSave == null) {
+                pendingSave = newSave();
+                pendingSaveTimer = executorService.schedule(pendingSave, maxSaveLatencyMs,
+                        TimeUnit.MILLISECONDS);
+                listener = setSaveState(SaveState.DIRTY);
+            }
+            pendingSnapshot = database.snapshot();
+            save = pendingSave;
+        }
+
+        notifySaveState(listener, SaveState.DIRTY, null);
+        return save;
+    }
+
+    @Override
+    public Future<Void> flushSave() {
+        synchronized (saveLock) {
+            // A failed save leaves the database dirty with no save pending, so save it again
+            if (pendingSave == null && saveState == SaveState.DIRTY)
+                pendingSave = newSave();
+
+            // Otherwise, if nothing is pending, wait for any save in progress
+            if (pendingSave == null) {
+                return executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, (Void) null);
+            }
+
+            pendingSnapshot = database.snapshot();
+            return startPendingSave();
+        }
+    }
+
+    @Override
+    public SaveState getSaveState() {
+        synchronized (saveLock) {
+            return saveState;
+        }
+    }
+
+    @Override
+    public void setSaveStateListener(@Nullable Consumer<SaveState> listener) {
+        synchronized (saveLock) {
+            this.saveStateListener = listener;
+        }
+    }
+
+    /**
+     * Creates a save of the latest snapshot of the database. Once it starts, it is no longer
+     * pending, so changes made from then on are saved by a new save. The database itself is never
+     * read while saving, so it can go on being changed while the save runs.
+     */
+    private FutureTask<Void> newSave() {
+        return new FutureTask<>(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                synchronized (databaseLock) {
-                    byte[] db = serializer.serialize(database, masterPassword);
-                    Future<Void> writeFuture = dataStore.writeData(db);
-                    return writeFuture.get();
+                PasswordDatabase snapshot;
+                Consumer<SaveState> listener;
+                synchronized (saveLock) {
+                    snapshot = pendingSnapshot;
+                    pendingSave = null;
+                    pendingSaveTimer = null;
+                    pendingSnapshot = null;
+                    listener = setSaveState(SaveState.SAVING);
                 }
+                notifySaveState(listener, SaveState.SAVING, null);
+
+                try {
+                    save(snapshot);
+                } catch (Exception e) {
+                    synchronized (saveLock) {
+                        listener = setSaveState(SaveState.DIRTY);
+                    }
+                    notifySaveState(listener, SaveState.DIRTY, e);
+                    throw e;
+                }
+
+                SaveState state;
+                synchronized (saveLock) {
+                    state = pendingSave == null ? SaveState.SAVED : SaveState.DIRTY;
+                    listener = setSaveState(state);
+                }
+                notifySaveState(listener, state, null);
+                return null;
             }
         });
     }
 
+    /**
+     * Starts the pending save now, rather than when its timer expires. Must be called holding the
+     * save lock. If the timer has already started the save, running it again does nothing.
+     */
+    private Future<Void> startPendingSave() {
+        FutureTask<Void> save = pendingSave;
+        if (pendingSaveTimer != null)
+            pendingSaveTimer.cancel(false);
+        executorService.execute(save);
+        return save;
+    }
+
+    /**
+     * Sets the save state. Must be called holding the save lock; the listener it returns is to be
+     * notified once the lock is released (see {@link #notifySaveState}), so that listeners can
+     * call back into this context without holding up saves.
+     * @return Listener to notify, or null if there is none
+     */
+    @Nullable
+    private Consumer<SaveState> setSaveState(SaveState state) {
+        this.saveState = state;
+        return saveStateListener;
+    }
+
+    /** Notifies a listener of a save state. Must be called without holding the save lock. */
+    private static void notifySaveState(@Nullable Consumer<SaveState> listener, SaveState state,
+                                        @Nullable Exception error) {
+        if (listener == null)
+            return;
+
+        if (error != null)
+            listener.onFailure(error);
+        listener.accept(state);
+    }
+
+    /**
+     * Requires the next save to rewrite the database in full. Must be called holding the save
+     * lock.
+     */
+    private void requireFullSave() {
+        fullSaveRequired = true;
+        fullSaveRequests++;
+    }
+
+    /**
+     * Encrypts a snapshot of the database and writes it to the store. Saves and reads only run on
+     * our executor, so they never overlap.
+     */
+    private void save(final PasswordDatabase snapshot) throws Exception {
+        // Take the store along with whether it needs a full save, so that a store set while we
+        // save is not mistaken for the one we saved to
+        DataStore store;
+        boolean fullSave;
+        int requests;
+        synchronized (saveLock) {
+            store = dataStore;
+            fullSave = fullSaveRequired;
+            requests = fullSaveRequests;
+        }
+
+        // Append only the changes to the database if we can; otherwise, stream the whole
+        // encrypted database straight to the store (compacting it)
+        final boolean append = !fullSave && serializer.canSerializeChanges(snapshot);
+        DataStore.StreamWriter writer = new DataStore.StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws Exception {
+                if (append)
+                    serializer.serializeChanges(snapshot, masterPassword, out);
+                else
+                    serializer.serialize(snapshot, masterPassword, out);
+            }
+        };
+
+        try {
+            getUnwrapped(append ? store.appendData(writer) : store.writeData(writer));
+        } catch (Exception e) {
+            // The stored data may not match what the serializer last wrote
+            synchronized (saveLock) {
+                requireFullSave();
+            }
+            throw e;
+        }
+
+        synchronized (saveLock) {
+            clearFullSaveRequired(requests);
+        }
+    }
+
+    /**
+     * Clears the requirement for a full save, unless it has been required again since a save or
+     * read started. Must be called holding the save lock.
+     * @param requests Number of full save requests when the save or read started
+     */
+    private void clearFullSaveRequired(int requests) {
+        if (fullSaveRequests == requests)
+            fullSaveRequired = false;
+    }
+
     @Override
     public Future<Void> readAndDecryptDb() {
         return executorService.submit(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                synchronized (databaseLock) {
-                    Future<byte[]> readFuture = dataStore.readData();
-                    byte[] data = readFuture.get();
-                    database = serializer.deserialize(data, masterPassword);
-                    return null;
+                DataStore store;
+                int requests;
+                synchronized (saveLock) {
+                    store = dataStore;
+                    requests = fullSaveRequests;
+                }
+
+                // Decrypt the database as it is streamed from the store
+                Future<PasswordDatabase> readFuture = store.readData(
+                        new DataStore.StreamReader<PasswordDatabase>() {
+                    @Override
+                    public PasswordDatabase readFrom(InputStream in) throws Exception {
+                        return serializer.deserialize(in, masterPassword);
+                    }
+                });
+                database = getUnwrapped(readFuture);
+                synchronized (saveLock) {
+                    clearFullSaveRequired(requests);
                 }
+                return null;
             }
         });
     }
+
+    @Override
+    public void discard() {
+        // Start any scheduled save now, and queue the wipe behind it, so that the save can still
+        // use the key
+        flushSave();
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                keyCache.clear();
+                masterPassword = null;
+                // The ciphers of the GCM engine hold the last key each thread used
+                GcmEngine.getDefault().wipe();
+            }
+        });
+        executorService.shutdown();
+    }
+
+    /**
+     * Waits for a future, rethrowing the cause of any {@link ExecutionException} so that callers
+     * see the original exception (e.g. a DecryptionException) rather than a nested one.
+     *
+     * @param future Future to wait for
+     * @param <T> Type of result of the future
+     * @return Result of the future
+     * @throws Exception The cause of the future's failure
+     */
+    private static <T> T getUnwrapped(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
 }
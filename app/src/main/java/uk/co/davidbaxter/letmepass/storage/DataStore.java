@@ -3,6 +3,8 @@ package uk.co.davidbaxter.letmepass.storage;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
@@ -45,6 +47,53 @@ public interface DataStore {
      */
     Future<Void> writeData(@NonNull byte[] data);
 
+    /**
+     * Reads data from the store asynchronously as a stream, without holding it all in memory. The
+     * stream is passed to the given reader, which may consume it as it pleases; the stream is
+     * closed once the reader returns.
+     * <p>
+     * Streamed reads do not update the cached data (see {@link #getCachedData()}).
+     *
+     * @param reader Reader to consume the stream of data
+     * @param <T> Type of result produced by the reader
+     * @return Future that will hold the reader's result, or throw an ExecutionException if the data
+     *         could not be read or the reader failed.
+     */
+    <T> Future<T> readData(@NonNull StreamReader<T> reader);
+
+    /**
+     * Writes data to the store asynchronously as a stream, without holding it all in memory. The
+     * given writer is passed a stream to write the data to; the stream is closed and the data
+     * committed once the writer returns.
+     * <p>
+     * Since the written data is never held in memory in full, this invalidates the cached data
+     * (see {@link #getCachedData()}).
+     *
+     * @param writer Writer to produce the data
+     * @return A future that will complete once the data has been written
+     */
+    Future<Void> writeData(@NonNull StreamWriter writer);
+
+    /**
+     * Appends data to the end of the store asynchronously as a stream, leaving the existing data
+     * intact. As with {@link #writeData(StreamWriter)}, the given writer is passed a stream to
+     * write the data to, which is closed and committed once the writer returns.
+     * <p>
+     * This invalidates the cached data (see {@link #getCachedData()}).
+     *
+     * @param writer Writer to produce the data to append
+     * @return A future that will complete once the data has been appended
+     */
+    Future<Void> appendData(@NonNull StreamWriter writer);
+
+    /**
+     * Checks whether the data store is remote, i.e. whether its data is transferred over the
+     * network when it is read or written. The cost of writing to remote stores is dominated by the
+     * size of the data, rather than the time taken to produce it.
+     * @return Whether the store is remote
+     */
+    boolean isRemote();
+
     /**
      * Deletes the data store permanently (async). You should not attempt to call any of the
      * non-cached methods of this class after calling this.
@@ -52,4 +101,34 @@ public interface DataStore {
      */
     Future<Void> deleteStore();
 
+    /**
+     * A consumer of a stream of data read from a {@link DataStore}
+     * @param <T> Type of result produced from the data
+     */
+    interface StreamReader<T> {
+
+        /**
+         * Reads from the data store's stream. The stream should not be closed.
+         * @param in Stream of data in the store
+         * @return Result of reading the data
+         * @throws Exception If the data could not be read
+         */
+        T readFrom(InputStream in) throws Exception;
+
+    }
+
+    /**
+     * A producer of a stream of data to be written to a {@link DataStore}
+     */
+    interface StreamWriter {
+
+        /**
+         * Writes to the data store's stream. The stream should not be closed.
+         * @param out Stream to write the data to
+         * @throws Exception If the data could not be written
+         */
+        void writeTo(OutputStream out) throws Exception;
+
+    }
+
 }
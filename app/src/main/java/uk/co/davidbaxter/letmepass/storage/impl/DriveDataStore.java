@@ -1,5 +1,6 @@
 package uk.co.davidbaxter.letmepass.storage.impl;
 
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -14,10 +15,13 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -30,6 +34,8 @@ import uk.co.davidbaxter.letmepass.storage.DataStore;
  */
 public class DriveDataStore implements DataStore {
 
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
     private byte[] cachedData = null;
     private String cachedStoreName = null;
 
@@ -120,6 +126,91 @@ public class DriveDataStore implements DataStore {
         return new FutureTaskLink<>(writeDataTask);
     }
 
+    @Override
+    public <T> Future<T> readData(@NonNull final StreamReader<T> reader) {
+        Future<DriveContents> openFileFuture = openFile(DriveFile.MODE_READ_ONLY);
+        return new FutureTransformer<DriveContents, T>(openFileFuture) {
+            @Override
+            protected T transform(DriveContents contents) throws Exception {
+                InputStream in = contents.getInputStream();
+                try {
+                    return reader.readFrom(in);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Future<Void> writeData(@NonNull final StreamWriter writer) {
+        // The file contents will no longer match our cache, whether or not the write succeeds
+        this.cachedData = null;
+
+        Task<DriveContents> openFileTask =
+                service.getDriveResourceClient().openFile(file, DriveFile.MODE_WRITE_ONLY);
+
+        Task<Void> writeDataTask = openFileTask.continueWithTask(
+                new Continuation<DriveContents, Task<Void>>() {
+
+            @Override
+            public Task<Void> then(@NonNull Task<DriveContents> task) throws Exception {
+                DriveContents contents = task.getResult();
+
+                // Let the writer stream straight to the output stream of the file
+                OutputStream out = new BufferedOutputStream(contents.getOutputStream(),
+                        STREAM_BUFFER_SIZE);
+                writer.writeTo(out);
+                out.flush();
+
+                // Commit the changes to the file
+                return service.getDriveResourceClient().commitContents(contents, null);
+            }
+
+        });
+
+        return new FutureTaskLink<>(writeDataTask);
+    }
+
+    @Override
+    public Future<Void> appendData(@NonNull final StreamWriter writer) {
+        this.cachedData = null;
+
+        // Only read-write mode gives us access to the existing contents to append to
+        Task<DriveContents> openFileTask =
+                service.getDriveResourceClient().openFile(file, DriveFile.MODE_READ_WRITE);
+
+        Task<Void> appendDataTask = openFileTask.continueWithTask(
+                new Continuation<DriveContents, Task<Void>>() {
+
+            @Override
+            public Task<Void> then(@NonNull Task<DriveContents> task) throws Exception {
+                DriveContents contents = task.getResult();
+
+                // Write through the file descriptor, starting from the end of the existing data
+                ParcelFileDescriptor pfd = contents.getParcelFileDescriptor();
+                FileOutputStream fileOut = new FileOutputStream(pfd.getFileDescriptor());
+                FileChannel channel = fileOut.getChannel();
+                channel.position(channel.size());
+
+                OutputStream out = new BufferedOutputStream(fileOut, STREAM_BUFFER_SIZE);
+                writer.writeTo(out);
+                out.flush();
+
+                // Commit the changes to the file
+                return service.getDriveResourceClient().commitContents(contents, null);
+            }
+
+        });
+
+        return new FutureTaskLink<>(appendDataTask);
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
     @Override
     public Future<Void> deleteStore() {
         Task<Void> deleteFileTask = service.getDriveResourceClient().trash(file);
@@ -5,10 +5,16 @@ import android.support.annotation.Nullable;
 
 import com.google.android.gms.common.util.IOUtils;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -22,15 +28,40 @@ import uk.co.davidbaxter.letmepass.util.InstantFuture;
  * <p>
  * Note that the store name can be retrieved instantly and that the {@link #getStoreName()} returns
  * a non-blocking, completed {@link Future}.
+ * <p>
+ * Writes never modify the file in place: the data is written to a temporary file beside it, which
+ * is synced to disk according to the {@link SyncPolicy} and then renamed over the file. A crash
+ * part-way through a write therefore leaves the previous data intact. Appends are written in place,
+ * as the data appended to must tolerate torn appends anyway (see {@link #appendData}).
+ * <p>
+ * Large files are read through a memory mapping rather than through the heap. Since the file is
+ * only ever replaced, never truncated, a mapping remains valid (of the old data) across writes.
  */
 public class FileDataStore implements DataStore {
 
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    private static final int MAP_THRESHOLD = 1048576; // Map files of 1MiB or more
+    private static final String TEMP_SUFFIX = ".tmp";
+
     private ExecutorService executorService = Executors.newSingleThreadExecutor();
     private final File file;
+    private final File tempFile;
+    private final SyncPolicy syncPolicy;
     private byte[] cachedData = null;
 
     public FileDataStore(File file) {
+        this(file, SyncPolicy.DATA);
+    }
+
+    /**
+     * Creates a store backed by the given file
+     * @param file File to store data in
+     * @param syncPolicy Policy of syncing written data to disk
+     */
+    public FileDataStore(File file, SyncPolicy syncPolicy) {
         this.file = file;
+        this.tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        this.syncPolicy = syncPolicy;
     }
 
     @Nullable
@@ -55,9 +86,28 @@ public class FileDataStore implements DataStore {
         return executorService.submit(new Callable<byte[]>() {
             @Override
             public byte[] call() throws Exception {
-                // Read the file input stream into a byte array
+                // Read the file straight into an array of its size, or copy it out of a mapping
                 FileInputStream fileIn = new FileInputStream(file);
-                byte[] result = IOUtils.toByteArray(fileIn);
+                byte[] result;
+                try {
+                    FileChannel channel = fileIn.getChannel();
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE)
+                        throw new IOException("File too large");
+
+                    result = new byte[(int) size];
+                    if (size >= MAP_THRESHOLD) {
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, size).get(result);
+                    } else {
+                        ByteBuffer buff = ByteBuffer.wrap(result);
+                        while (buff.hasRemaining()) {
+                            if (channel.read(buff) == -1)
+                                throw new IOException("File truncated while reading");
+                        }
+                    }
+                } finally {
+                    IOUtils.closeQuietly(fileIn);
+                }
 
                 // Update cached data
                 cachedData = result;
@@ -71,10 +121,13 @@ public class FileDataStore implements DataStore {
         return executorService.submit(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                // Copy the input to the file, overwriting contents
-                ByteArrayInputStream bytesIn = new ByteArrayInputStream(data);
-                FileOutputStream fileOut = new FileOutputStream(file);
-                IOUtils.copyStream(bytesIn, fileOut);
+                // Replace the file with the data
+                replaceFile(new StreamWriter() {
+                    @Override
+                    public void writeTo(OutputStream out) throws Exception {
+                        out.write(data);
+                    }
+                });
 
                 // Update cached data
                 cachedData = data;
@@ -83,16 +136,162 @@ public class FileDataStore implements DataStore {
         });
     }
 
+    @Override
+    public <T> Future<T> readData(@NonNull final StreamReader<T> reader) {
+        return executorService.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                FileInputStream fileIn = new FileInputStream(file);
+                try {
+                    // Large files are read from a mapping, without copying them into buffers
+                    FileChannel channel = fileIn.getChannel();
+                    long size = channel.size();
+                    if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                        return reader.readFrom(new ByteBufferInputStream(
+                                channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+                    }
+
+                    return reader.readFrom(new BufferedInputStream(fileIn, STREAM_BUFFER_SIZE));
+                } finally {
+                    IOUtils.closeQuietly(fileIn);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> writeData(@NonNull final StreamWriter writer) {
+        return executorService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // The file contents no longer match our cache, whether or not the write succeeds
+                cachedData = null;
+
+                replaceFile(writer);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> appendData(@NonNull final StreamWriter writer) {
+        return executorService.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                cachedData = null;
+
+                // Open the file in append mode, so only the new data is written
+                writeFile(file, true, writer);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
     @Override
     public Future<Void> deleteStore() {
         return executorService.submit(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                // Delete the file and wipe our cached data
+                // Delete the file (and any temporary file left by a crash) and wipe our cached data
                 file.delete();
+                tempFile.delete();
                 cachedData = null;
                 return null;
             }
         });
     }
+
+    /**
+     * Replaces the file with the data produced by the writer, by writing it to the temporary file
+     * and renaming this over the file. If the write fails, the file is left untouched.
+     */
+    private void replaceFile(StreamWriter writer) throws Exception {
+        try {
+            writeFile(tempFile, false, writer);
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to rename temporary file");
+        } catch (Exception e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    /** Writes the data produced by the writer to a file, syncing it according to our policy */
+    private void writeFile(File target, boolean append, StreamWriter writer) throws Exception {
+        FileOutputStream fileOut = new FileOutputStream(target, append);
+        OutputStream bufferedOut = new BufferedOutputStream(fileOut, STREAM_BUFFER_SIZE);
+        try {
+            writer.writeTo(bufferedOut);
+            bufferedOut.flush();
+            if (syncPolicy != SyncPolicy.NONE)
+                fileOut.getChannel().force(syncPolicy == SyncPolicy.FULL);
+            bufferedOut.close();
+        } finally {
+            IOUtils.closeQuietly(bufferedOut);
+        }
+    }
+
+    /**
+     * A policy of syncing written data to disk, before a write is considered complete. Syncing
+     * protects the data from a loss of power or OS crash, rather than just a crash of the app, at
+     * the cost of waiting for the disk.
+     * <p>
+     * The directory is not synced after the temporary file is renamed (directories cannot be synced
+     * without API 26), so after a loss of power the file may hold either the previous data or the
+     * new data, but never a mixture of the two.
+     */
+    public enum SyncPolicy {
+        /** Data is left for the OS to write to disk when it sees fit */
+        NONE,
+        /** The data of the file is synced, but not necessarily metadata such as its times */
+        DATA,
+        /** The data and all metadata of the file are synced */
+        FULL
+    }
+
+    /** A stream reading from a buffer, e.g. a mapping of a file */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
 }
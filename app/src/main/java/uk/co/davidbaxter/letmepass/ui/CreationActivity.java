@@ -1,8 +1,10 @@
 package uk.co.davidbaxter.letmepass.ui;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.arch.lifecycle.Observer;
 import android.arch.lifecycle.ViewModelProviders;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
@@ -121,7 +123,9 @@ public class CreationActivity extends AppCompatActivity implements StepperLayout
         // TODO: disable back navigation here too
         this.stepper.setTabNavigationEnabled(false);
         this.stepper.showProgress(getString(R.string.creation_creating_db));
-        this.viewModel.onComplete();
+        ActivityManager activityManager =
+                (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        this.viewModel.onComplete(activityManager.getMemoryClass());
     }
 
     @Override
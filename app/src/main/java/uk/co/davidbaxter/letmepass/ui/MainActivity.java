@@ -113,6 +113,12 @@ public class MainActivity extends AppCompatActivity implements
         });
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        viewModel.onBackground();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
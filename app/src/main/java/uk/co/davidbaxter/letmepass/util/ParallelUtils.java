@@ -0,0 +1,49 @@
+package uk.co.davidbaxter.letmepass.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utilities for running CPU-bound work in parallel across the available cores
+ * <p>
+ * Tasks submitted to the shared compute executor should not block waiting on other tasks
+ * submitted to the same executor, as this may deadlock once all of its threads are in use.
+ */
+public class ParallelUtils {
+
+    /** Number of threads in the compute executor: one per available core */
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** Shared executor for CPU-bound tasks; daemon threads, so it never needs shutting down */
+    private static final ExecutorService computeExecutor = Executors.newFixedThreadPool(
+            PARALLELISM,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "compute-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Gets the shared executor for CPU-bound tasks
+     * @return Compute executor, with one thread per available core
+     */
+    public static ExecutorService getComputeExecutor() {
+        return computeExecutor;
+    }
+
+    /**
+     * Gets the number of tasks that the compute executor can run at once
+     * @return Number of compute threads
+     */
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+}
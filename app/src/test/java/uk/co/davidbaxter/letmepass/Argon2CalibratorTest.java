@@ -0,0 +1,38 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Calibrator;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class Argon2CalibratorTest {
+
+    @Test
+    public void calibrates_WithinLimits() {
+        Argon2Parameters parameters = new Argon2Calibrator(100, 32768).calibrate();
+
+        assertThat(parameters.getParallelism(), is(Runtime.getRuntime().availableProcessors()));
+        assertTrue(parameters.getMemory() >= 16384);
+        assertTrue(parameters.getMemory() <= 32768);
+        assertTrue(parameters.getIterations() >= 2);
+    }
+
+    @Test
+    public void calibrates_LongerTargetWithMoreIterations() {
+        Argon2Parameters fast = new Argon2Calibrator(50, 16384).calibrate();
+        Argon2Parameters slow = new Argon2Calibrator(1000, 16384).calibrate();
+
+        assertThat(slow.getMemory(), is(fast.getMemory()));
+        assertTrue(slow.getIterations() > fast.getIterations());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_NonPositiveTarget() {
+        new Argon2Calibrator(0, 65536);
+    }
+
+}
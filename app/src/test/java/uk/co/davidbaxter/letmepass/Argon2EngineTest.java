@@ -0,0 +1,90 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Engine;
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.crypto.impl.JavaArgon2Engine;
+import uk.co.davidbaxter.letmepass.crypto.impl.NativeArgon2Engine;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class Argon2EngineTest {
+
+    private static final byte[] SALT = "somesaltsomesalt".getBytes();
+
+    @Test
+    public void javaEngine_MatchesNative() {
+        Argon2Engine javaEngine = new JavaArgon2Engine();
+        Argon2Engine nativeEngine = new NativeArgon2Engine();
+
+        // Lanes that do and do not divide the memory, several passes, and long and short hashes
+        int[][] params = { { 1, 8, 1 }, { 3, 64, 1 }, { 2, 100, 2 }, { 2, 1000, 3 },
+                { 1, 4096, 4 } };
+        for (int[] p : params) {
+            Argon2Parameters parameters = new Argon2Parameters(p[0], p[1], p[2]);
+            for (int hashLen : new int[] { 16, 32, 100 }) {
+                for (String input : new String[] { "", "password", "p\u00e4ssw\u00f6rd" }) {
+                    assertThat(javaEngine.hash(parameters, input, SALT, hashLen),
+                            is(nativeEngine.hash(parameters, input, SALT, hashLen)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void javaEngine_ReusesMemory() {
+        Argon2Engine javaEngine = new JavaArgon2Engine();
+        Argon2Parameters large = new Argon2Parameters(2, 2048, 2);
+        Argon2Parameters small = new Argon2Parameters(2, 256, 1);
+        byte[] expected = new NativeArgon2Engine().hash(small, "password", SALT, 32);
+
+        // Memory left from a larger derivation gives the same result as fresh memory
+        javaEngine.hash(large, "password", SALT, 32);
+        assertThat(javaEngine.hash(small, "password", SALT, 32), is(expected));
+        assertThat(javaEngine.hash(small, "password", SALT, 32), is(expected));
+    }
+
+    @Test
+    public void javaEngine_ParallelLanesMatchSerial() {
+        Argon2Parameters parameters = new Argon2Parameters(3, 4096, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] serial = new JavaArgon2Engine(executor, 1).hash(parameters, "password", SALT,
+                    32);
+            assertThat(new JavaArgon2Engine(executor, 4).hash(parameters, "password", SALT, 32),
+                    is(serial));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void javaEngine_DerivesOnBusyComputeThreads() throws Exception {
+        // Every compute thread derives at once, so none are free to help fill lanes
+        final Argon2Parameters parameters = new Argon2Parameters(1, 1024, 4);
+        byte[] expected = new NativeArgon2Engine().hash(parameters, "password", SALT, 32);
+        List<Future<byte[]>> hashes = new ArrayList<>();
+        for (int i = 0; i < ParallelUtils.getParallelism(); i++) {
+            hashes.add(ParallelUtils.getComputeExecutor().submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return new JavaArgon2Engine().hash(parameters, "password", SALT, 32);
+                }
+            }));
+        }
+
+        for (Future<byte[]> hash : hashes)
+            assertThat(hash.get(), is(expected));
+    }
+
+}
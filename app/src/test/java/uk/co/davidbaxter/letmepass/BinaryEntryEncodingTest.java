@@ -0,0 +1,90 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.DataEntry;
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.SerializationException;
+import uk.co.davidbaxter.letmepass.model.impl.BinaryEntryEncoding;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V5EncryptedDatabaseSerializer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryEntryEncodingTest {
+
+    @Test
+    public void roundTrips_AllTypes() throws Exception {
+        PasswordEntry password = new PasswordEntry("Bank", "user@example.com",
+                "p\u00e4ss \u20ac\ud83d\udd11", "https://bank.example.com", null);
+        password.favorite = true;
+        password.created = -1234567890123L;
+        DataEntry data = new DataEntry("Note", "some\nmultiline\u0000data");
+        FolderEntry folder = new FolderEntry("", Arrays.<PasswordDatabaseEntry>asList(data));
+
+        PasswordEntry newPassword = (PasswordEntry) roundTrip(password);
+        assertThat(newPassword.name, is("Bank"));
+        assertThat(newPassword.username, is("user@example.com"));
+        assertThat(newPassword.password, is(password.password));
+        assertThat(newPassword.website, is("https://bank.example.com"));
+        assertThat(newPassword.description, is(nullValue()));
+        assertThat(newPassword.favorite, is(true));
+        assertThat(newPassword.created, is(-1234567890123L));
+        assertThat(newPassword.updated, is(password.updated));
+
+        DataEntry newData = (DataEntry) roundTrip(data);
+        assertThat(newData.data, is(data.data));
+        assertThat(newData.favorite, is(false));
+
+        // Folders are encoded without their children
+        FolderEntry newFolder = (FolderEntry) roundTrip(folder);
+        assertThat(newFolder.name, is(""));
+        assertThat(newFolder.children.isEmpty(), is(true));
+    }
+
+    @Test
+    public void encodes_SmallerThanJson() {
+        PasswordEntry entry = new PasswordEntry("Entry", "user", "password", "example.com", "");
+        int jsonLength = new JsonPasswordDatabase("", Arrays.<PasswordDatabaseEntry>asList(entry))
+                .serialize().length;
+        assertTrue(BinaryEntryEncoding.encode(entry, 0).length * 3 < jsonLength);
+    }
+
+    @Test(expected = SerializationException.class)
+    public void rejects_TruncatedEntry() throws Exception {
+        byte[] data = BinaryEntryEncoding.encode(
+                new PasswordEntry("Entry", "user", "password", "example.com", ""), 0);
+        BinaryEntryEncoding.decode(data, 0, data.length - 3);
+    }
+
+    @Test
+    public void serializes_Version5() throws Exception {
+        FolderEntry folder = new FolderEntry("folder", Arrays.<PasswordDatabaseEntry>asList(
+                new PasswordEntry("b", "user", "pass", "website", "desc"),
+                new DataEntry("data", "secret")));
+        PasswordDatabase db = new JsonPasswordDatabase("test", Arrays.<PasswordDatabaseEntry>asList(
+                new PasswordEntry("a", "user", "pass", "website", "desc"), folder));
+
+        V5EncryptedDatabaseSerializer serializer = new V5EncryptedDatabaseSerializer();
+        serializer.setKeyCache(new DerivedKeyCache());
+        PasswordDatabase newDb = serializer.deserialize(serializer.serialize(db, "mp"), "mp");
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    private static PasswordDatabaseEntry roundTrip(PasswordDatabaseEntry entry)
+            throws SerializationException {
+        // Encode after a header, as records do
+        byte[] data = BinaryEntryEncoding.encode(entry, 5);
+        return BinaryEntryEncoding.decode(data, 5, data.length - 5);
+    }
+
+}
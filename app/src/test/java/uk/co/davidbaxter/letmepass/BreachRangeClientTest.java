@@ -0,0 +1,229 @@
+package uk.co.davidbaxter.letmepass;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.security.BreachRangeCache;
+import uk.co.davidbaxter.letmepass.security.BreachRangeClient;
+import uk.co.davidbaxter.letmepass.security.PasswordBreachService;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+import okhttp3.OkHttpClient;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BreachRangeClientTest {
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    /** Breach counts served by the mock server, by password */
+    private final Map<String, Integer> breaches = new HashMap<>();
+    /** Number of requests made to the mock server, by hash prefix */
+    private final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private volatile int status = 200;
+
+    private HttpServer server;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        breaches.put("password", 3730471);
+        breaches.put("123456", 23547453);
+        breaches.put("letmein", 4);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/range/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String prefix = path.substring(path.lastIndexOf('/') + 1);
+                getRequests(prefix).incrementAndGet();
+
+                // Serve the breached passwords with the prefix, amongst some other suffixes
+                StringBuilder body = new StringBuilder();
+                body.append("0018A45C4D1DEF81644B54AB7F969B88D65:1\r\n");
+                for (Map.Entry<String, Integer> breach : breaches.entrySet()) {
+                    String hash = sha1(breach.getKey());
+                    if (hash.startsWith(prefix))
+                        body.append(hash.substring(5)).append(':').append(breach.getValue())
+                                .append("\r\n");
+                }
+                body.append("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF:2");
+
+                byte[] bytes = body.toString().getBytes(UTF8);
+                exchange.sendResponseHeaders(status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+
+        cacheDir = new File(System.getProperty("java.io.tmpdir"),
+                "breach-cache-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void checksBreaches_SinglePassword() {
+        BreachRangeClient client = newClient(null);
+        assertThat(client.checkBreaches("password"), is(3730471));
+        assertThat(client.checkBreaches("correct horse battery staple"), is(0));
+    }
+
+    @Test
+    public void auditsBreaches_OneRequestPerPrefix() throws Exception {
+        PasswordEntry a = newEntry("password");
+        PasswordEntry b = newEntry("password");
+        PasswordEntry c = newEntry("123456");
+        PasswordEntry d = newEntry("letmein");
+        PasswordEntry e = newEntry("not a breached password");
+        PasswordEntry empty = newEntry("");
+
+        Map<PasswordEntry, Integer> results = newClient(null)
+                .auditBreaches(Arrays.asList(a, b, c, d, e, empty));
+
+        assertThat(results.get(a), is(3730471));
+        assertThat(results.get(b), is(3730471));
+        assertThat(results.get(c), is(23547453));
+        assertThat(results.get(d), is(4));
+        assertThat(results.get(e), is(0));
+        assertThat(results.get(empty), is(nullValue()));
+
+        // Both entries with the same password share a request
+        assertThat(getRequests(sha1("password").substring(0, 5)).get(), is(1));
+        assertThat(getTotalRequests(), is(4));
+    }
+
+    @Test
+    public void auditsBreaches_ManyEntries() throws Exception {
+        List<PasswordEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            entries.add(newEntry(i % 2 == 0 ? "letmein" : "password" + i));
+
+        Map<PasswordEntry, Integer> results = newClient(null).auditBreaches(entries);
+
+        assertThat(results.size(), is(500));
+        for (int i = 0; i < 500; i++)
+            assertThat(results.get(entries.get(i)), is(i % 2 == 0 ? 4 : 0));
+    }
+
+    @Test
+    public void cachesRanges() throws Exception {
+        BreachRangeCache cache = new BreachRangeCache(cacheDir, 60 * 1000, 1024 * 1024);
+        BreachRangeClient client = newClient(cache);
+
+        assertThat(client.checkBreaches("letmein"), is(4));
+        PasswordEntry entry = newEntry("password");
+        Map<PasswordEntry, Integer> results = client.auditBreaches(
+                Arrays.asList(newEntry("letmein"), entry));
+
+        assertThat(getRequests(sha1("letmein").substring(0, 5)).get(), is(1));
+        assertThat(getRequests(sha1("password").substring(0, 5)).get(), is(1));
+        assertThat(results.get(entry), is(3730471));
+
+        // Cached ranges should be used even when the server is failing
+        status = 500;
+        assertThat(client.checkBreaches("letmein"), is(4));
+    }
+
+    @Test
+    public void refetchesRanges_AfterExpiry() throws Exception {
+        BreachRangeCache cache = new BreachRangeCache(cacheDir, 60 * 1000, 1024 * 1024);
+        BreachRangeClient client = newClient(cache);
+
+        assertThat(client.checkBreaches("letmein"), is(4));
+        File[] files = cacheDir.listFiles();
+        assertThat(files.length, is(1));
+        files[0].setLastModified(System.currentTimeMillis() - 2 * 60 * 1000);
+
+        assertThat(client.checkBreaches("letmein"), is(4));
+        assertThat(getTotalRequests(), is(2));
+    }
+
+    @Test
+    public void returnsErrors_ServerError() throws Exception {
+        status = 503;
+        PasswordEntry entry = newEntry("password");
+        BreachRangeClient client = newClient(null);
+
+        assertThat(client.checkBreaches("password"), is(PasswordBreachService.ERROR_SERVER_ERROR));
+        assertThat(client.auditBreaches(Arrays.asList(entry)).get(entry),
+                is(PasswordBreachService.ERROR_SERVER_ERROR));
+    }
+
+    @Test
+    public void returnsErrors_ConnectionFailure() {
+        server.stop(0);
+        assertThat(newClient(null).checkBreaches("password"),
+                is(PasswordBreachService.ERROR_IO_EXCEPTION));
+    }
+
+    private BreachRangeClient newClient(BreachRangeCache cache) {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/range/%s";
+        return new BreachRangeClient(new OkHttpClient(), url, cache,
+                ParallelUtils.getComputeExecutor());
+    }
+
+    private AtomicInteger getRequests(String prefix) {
+        requests.putIfAbsent(prefix, new AtomicInteger());
+        return requests.get(prefix);
+    }
+
+    private int getTotalRequests() {
+        int total = 0;
+        for (AtomicInteger count : requests.values())
+            total += count.get();
+        return total;
+    }
+
+    private static PasswordEntry newEntry(String password) {
+        return new PasswordEntry("Entry", "user", password, "", "");
+    }
+
+    private static String sha1(String data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02X", b));
+            return hex.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
+import uk.co.davidbaxter.letmepass.crypto.impl.ChunkedGcmInputStream;
+import uk.co.davidbaxter.letmepass.crypto.impl.ChunkedGcmOutputStream;
+import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ChunkedGcmStreamTest {
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int CHUNK_LENGTH = CHUNK_SIZE + ChunkedGcmOutputStream.MAC_LENGTH;
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] HEADER = new byte[] { 1, 2, 3, 4 };
+
+    private final ExecutorService executor = ParallelUtils.getComputeExecutor();
+    private final HybridIvFactory ivFactory = new HybridIvFactory();
+    private final AesGcmEncrypter encrypter = new AesGcmEncrypter(new KeyDerivationFunction() {
+        @Override
+        public byte[] derive(String input) {
+            return KEY;
+        }
+    }, ivFactory);
+
+    @Test
+    public void roundTrips_AnyLength() throws IOException {
+        // Lengths either side of chunk boundaries, including an exact multiple and nothing at all
+        int[] lengths = { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 10 };
+        for (int length : lengths) {
+            byte[] plaintext = randomBytes(length);
+            assertThat(decrypt(encrypt(plaintext), HEADER), is(plaintext));
+        }
+    }
+
+    @Test
+    public void detects_Tampering() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+        ciphertext[CHUNK_LENGTH + 5] ^= 1;
+        assertFailsToDecrypt(ciphertext, HEADER);
+    }
+
+    @Test
+    public void detects_HeaderMismatch() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+        assertFailsToDecrypt(ciphertext, new byte[] { 1, 2, 3, 5 });
+    }
+
+    @Test
+    public void detects_Truncation() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3 + 10));
+
+        // Truncate at a chunk boundary, so that the remaining chunks are all intact
+        assertFailsToDecrypt(Arrays.copyOf(ciphertext, CHUNK_LENGTH * 2), HEADER);
+        assertFailsToDecrypt(new byte[0], HEADER);
+    }
+
+    @Test
+    public void detects_Reordering() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(CHUNK_SIZE * 3));
+        byte[] reordered = ciphertext.clone();
+        System.arraycopy(ciphertext, 0, reordered, CHUNK_LENGTH, CHUNK_LENGTH);
+        System.arraycopy(ciphertext, CHUNK_LENGTH, reordered, 0, CHUNK_LENGTH);
+        assertFailsToDecrypt(reordered, HEADER);
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream chunkOut = new ChunkedGcmOutputStream(out, encrypter, KEY,
+                ivFactory.getCurrentIv(), HEADER, CHUNK_SIZE, executor, 4);
+
+        // Write in uneven pieces to exercise buffering across chunks
+        for (int i = 0; i < plaintext.length; i += 7)
+            chunkOut.write(plaintext, i, Math.min(7, plaintext.length - i));
+        chunkOut.close();
+
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] ciphertext, byte[] header) throws IOException {
+        InputStream chunkIn = new ChunkedGcmInputStream(new ByteArrayInputStream(ciphertext),
+                encrypter, KEY, ivFactory.getCurrentIv(), header, CHUNK_SIZE, executor, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[100];
+        int read;
+        while ((read = chunkIn.read(buff)) != -1)
+            out.write(buff, 0, read);
+        chunkIn.close();
+
+        return out.toByteArray();
+    }
+
+    private void assertFailsToDecrypt(byte[] ciphertext, byte[] header) throws IOException {
+        try {
+            decrypt(ciphertext, header);
+            fail("Decryption should have failed");
+        } catch (InvalidCipherTextIOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,160 @@
+package uk.co.davidbaxter.letmepass;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V3EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.session.SessionContext;
+import uk.co.davidbaxter.letmepass.session.impl.DefaultSessionContext;
+import uk.co.davidbaxter.letmepass.storage.impl.FileDataStore;
+import uk.co.davidbaxter.letmepass.util.Consumer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class DefaultSessionContextTest {
+
+    private File file;
+    private CountingDataStore store;
+    private PasswordDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("session", ".lmpdb");
+        store = new CountingDataStore(file);
+        database = new JsonPasswordDatabase("test",
+                Collections.<PasswordDatabaseEntry>emptyList());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.deleteStore().get();
+    }
+
+    @Test
+    public void scheduleSave_CoalescesSaves() throws Exception {
+        SessionContext context = newContext(200);
+        final List<SessionContext.SaveState> states = new ArrayList<>();
+        context.setSaveStateListener(new Consumer<SessionContext.SaveState>() {
+            @Override
+            public void accept(SessionContext.SaveState state) {
+                states.add(state);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+
+        Future<Void> first = context.scheduleSave();
+        for (int i = 0; i < 10; i++) {
+            database.addEntry(new PasswordEntry("Entry " + i, "", "password", "", ""));
+            assertThat(context.scheduleSave(), is(sameInstance(first)));
+        }
+        assertThat(context.getSaveState(), is(SessionContext.SaveState.DIRTY));
+
+        first.get();
+        assertThat(store.writes.get(), is(1));
+        assertThat(context.getSaveState(), is(SessionContext.SaveState.SAVED));
+        assertThat(states, is(Arrays.asList(SessionContext.SaveState.DIRTY,
+                SessionContext.SaveState.SAVING, SessionContext.SaveState.SAVED)));
+    }
+
+    @Test
+    public void flushSave_SavesWithoutWaiting() throws Exception {
+        SessionContext context = newContext(3600000);
+        context.scheduleSave();
+
+        context.flushSave().get();
+        assertThat(store.writes.get(), is(1));
+        assertThat(context.getSaveState(), is(SessionContext.SaveState.SAVED));
+
+        // Nothing is left to save
+        context.flushSave().get();
+        assertThat(store.writes.get(), is(1));
+    }
+
+    @Test
+    public void saveStateListener_MayWaitOnContext() throws Exception {
+        final SessionContext context = newContext(3600000);
+        final AtomicInteger blocked = new AtomicInteger();
+        context.setSaveStateListener(new Consumer<SessionContext.SaveState>() {
+            @Override
+            public void accept(SessionContext.SaveState state) {
+                // Wait for another thread to use the context, as a UI thread might
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        context.getSaveState();
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (thread.isAlive())
+                    blocked.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+
+        context.scheduleSave();
+        context.flushSave().get();
+        assertThat(blocked.get(), is(0));
+        assertThat(context.getSaveState(), is(SessionContext.SaveState.SAVED));
+    }
+
+    private SessionContext newContext(long maxSaveLatencyMs) {
+        SessionContext context = new DefaultSessionContext(maxSaveLatencyMs);
+        context.setDataStore(store);
+        context.setDatabase(database);
+        context.setMasterPassword("master password");
+        context.setEncryptedDatabaseSerializer(new V3EncryptedDatabaseSerializer());
+        return context;
+    }
+
+    /** A file store counting the writes and appends made to it */
+    private static class CountingDataStore extends FileDataStore {
+
+        final AtomicInteger writes = new AtomicInteger();
+
+        CountingDataStore(File file) {
+            super(file);
+        }
+
+        @Override
+        public Future<Void> writeData(@NonNull StreamWriter writer) {
+            writes.incrementAndGet();
+            return super.writeData(writer);
+        }
+
+        @Override
+        public Future<Void> appendData(@NonNull StreamWriter writer) {
+            writes.incrementAndGet();
+            return super.appendData(writer);
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DerivedKeyCacheTest {
+
+    private static final byte[] SALT = new byte[] { 1, 2, 3, 4 };
+
+    @Test
+    public void caches_ByParameters() {
+        DerivedKeyCache cache = new DerivedKeyCache();
+        byte[] key = new byte[] { 10, 20, 30 };
+        cache.put("password", SALT, 10, 65536, 2, key);
+
+        // Same parameters should hit the cache
+        assertThat(cache.get("password", SALT.clone(), 10, 65536, 2), is(key));
+
+        // Any differing parameter should miss
+        assertThat(cache.get("other", SALT, 10, 65536, 2), is(nullValue()));
+        assertThat(cache.get("password", new byte[] { 4, 3, 2, 1 }, 10, 65536, 2), is(nullValue()));
+        assertThat(cache.get("password", SALT, 11, 65536, 2), is(nullValue()));
+        assertThat(cache.get("password", SALT, 10, 1024, 2), is(nullValue()));
+        assertThat(cache.get("password", SALT, 10, 65536, 4), is(nullValue()));
+    }
+
+    @Test
+    public void caches_Copies() {
+        DerivedKeyCache cache = new DerivedKeyCache();
+        byte[] key = new byte[] { 10, 20, 30 };
+        cache.put("password", SALT, 1, 8, 1, key);
+
+        // Modifying the original or a retrieved key should not affect the cached key
+        key[0] = 0;
+        cache.get("password", SALT, 1, 8, 1)[1] = 0;
+        assertThat(cache.get("password", SALT, 1, 8, 1), is(new byte[] { 10, 20, 30 }));
+    }
+
+    @Test
+    public void clears_AllKeys() {
+        DerivedKeyCache cache = new DerivedKeyCache();
+        cache.put("one", SALT, 1, 8, 1, new byte[] { 1 });
+        cache.put("two", SALT, 1, 8, 1, new byte[] { 2 });
+        cache.clear();
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.get("one", SALT, 1, 8, 1), is(nullValue()));
+    }
+
+}
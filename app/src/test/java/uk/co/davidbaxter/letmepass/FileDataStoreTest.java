@@ -0,0 +1,109 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import uk.co.davidbaxter.letmepass.storage.DataStore;
+import uk.co.davidbaxter.letmepass.storage.impl.FileDataStore;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FileDataStoreTest {
+
+    private File file;
+    private FileDataStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("store", ".lmpdb");
+        store = new FileDataStore(file, FileDataStore.SyncPolicy.DATA);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.deleteStore().get();
+    }
+
+    @Test
+    public void reads_SmallAndLargeFiles() throws Exception {
+        // Either side of the threshold for mapping the file
+        for (int length : new int[] { 0, 100, 1048576, 3000000 }) {
+            byte[] data = randomBytes(length);
+            store.writeData(data).get();
+            assertThat(store.readData().get(), is(data));
+            assertThat(store.readData(new ReadAll()).get(), is(data));
+        }
+    }
+
+    @Test
+    public void writes_NothingOnFailure() throws Exception {
+        byte[] data = randomBytes(1000);
+        store.writeData(data).get();
+
+        try {
+            store.writeData(new DataStore.StreamWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws Exception {
+                    out.write(new byte[500]);
+                    throw new IllegalStateException("Interrupted");
+                }
+            }).get();
+            fail();
+        } catch (ExecutionException e) {
+            // Expected
+        }
+
+        assertThat(store.readData().get(), is(data));
+        assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+    }
+
+    @Test
+    public void appends_ToData() throws Exception {
+        store.writeData(new byte[] { 1, 2 }).get();
+        store.appendData(new DataStore.StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(new byte[] { 3 });
+            }
+        }).get();
+
+        assertThat(store.readData().get(), is(new byte[] { 1, 2, 3 }));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /** Reads a stream in pieces of varying size */
+    private static class ReadAll implements DataStore.StreamReader<byte[]> {
+
+        @Override
+        public byte[] readFrom(InputStream in) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[7919];
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+                int n = in.read(buffer);
+                if (n == -1)
+                    break;
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.BouncyCastleGcmEngine;
+import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.GcmEngine;
+import uk.co.davidbaxter.letmepass.crypto.impl.JcaGcmEngine;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class GcmEngineTest {
+
+    private final GcmEngine bouncyCastle = new BouncyCastleGcmEngine();
+    private final GcmEngine jca = new JcaGcmEngine(bouncyCastle);
+
+    @Test
+    public void default_UsesPlatformProvider() {
+        // The desktop JVM has a working AES/GCM provider
+        assertThat(JcaGcmEngine.isAvailable(bouncyCastle), is(true));
+        assertThat(GcmEngine.getDefault() instanceof JcaGcmEngine, is(true));
+    }
+
+    @Test
+    public void jcaEngine_MatchesBouncyCastle() throws Exception {
+        Random random = new Random(1);
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[12];
+        byte[] associatedData = new byte[20];
+        byte[] input = new byte[70000];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        random.nextBytes(associatedData);
+        random.nextBytes(input);
+
+        // Messages that do and do not fill whole blocks, at an offset, with and without AAD
+        for (int length : new int[] { 0, 1, 16, 17, 4096, 69990 }) {
+            for (byte[] aad : new byte[][] { new byte[0], associatedData }) {
+                byte[] expected = bouncyCastle.crypt(key, nonce, aad, 128, input, 7, length, true);
+                byte[] cipherText = jca.crypt(key, nonce, aad, 128, input, 7, length, true);
+                assertThat(cipherText, is(expected));
+
+                // Each engine decrypts the other's ciphertext
+                byte[] plainText = jca.crypt(key, nonce, aad, 128, expected, 0, expected.length,
+                        false);
+                assertThat(plainText, is(bouncyCastle.crypt(key, nonce, aad, 128, cipherText, 0,
+                        cipherText.length, false)));
+                assertThat(plainText.length, is(length));
+            }
+        }
+    }
+
+    @Test
+    public void jcaEngine_FallsBackForUnsupportedNonces() throws Exception {
+        byte[] key = new byte[16];
+        byte[] nonce = new byte[60]; // Only BouncyCastle is guaranteed to accept long nonces
+        byte[] input = "some message".getBytes();
+
+        assertThat(jca.crypt(key, nonce, new byte[0], 96, input, 0, input.length, true),
+                is(bouncyCastle.crypt(key, nonce, new byte[0], 96, input, 0, input.length, true)));
+    }
+
+    @Test
+    public void jcaEngine_RejectsTamperedMessage() throws Exception {
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[12];
+        byte[] input = "some message".getBytes();
+        byte[] cipherText = jca.crypt(key, nonce, new byte[0], 128, input, 0, input.length, true);
+        cipherText[3] ^= 1;
+
+        try {
+            jca.crypt(key, nonce, new byte[0], 128, cipherText, 0, cipherText.length, false);
+            fail("Tampered message was decrypted");
+        } catch (DecryptionException e) {
+            // Expected
+        }
+
+        try {
+            jca.crypt(key, nonce, new byte[0], 128, cipherText, 0, 5, false);
+            fail("Truncated message was decrypted");
+        } catch (DecryptionException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void cryptsIntoBuffer_ReusingCipherAcrossKeys() throws Exception {
+        Random random = new Random(2);
+        byte[][] keys = { new byte[32], new byte[32], new byte[16] };
+        for (byte[] key : keys)
+            random.nextBytes(key);
+        byte[] nonce = new byte[12];
+        byte[] input = new byte[1000];
+        random.nextBytes(input);
+
+        for (GcmEngine engine : new GcmEngine[] { bouncyCastle, jca }) {
+            // Switch between keys, and repeat a key and nonce, on this thread's cipher
+            for (int i = 0; i < 6; i++) {
+                byte[] key = keys[i % 3];
+                byte[] expected = new BouncyCastleGcmEngine().crypt(key, nonce, new byte[0], 128,
+                        input, 0, input.length, true);
+
+                byte[] output = new byte[5 + GcmEngine.getOutputSize(input.length, 128, true)];
+                int written = engine.crypt(key, nonce, new byte[0], 128, input, 0, input.length,
+                        output, 5, true);
+                assertThat(written, is(expected.length));
+                assertThat(Arrays.copyOfRange(output, 5, output.length), is(expected));
+
+                byte[] plainText = new byte[input.length];
+                written = engine.crypt(key, nonce, new byte[0], 128, output, 5, written, plainText,
+                        0, false);
+                assertThat(written, is(input.length));
+                assertThat(plainText, is(input));
+            }
+        }
+    }
+
+    @Test
+    public void crypts_AfterWipe() throws Exception {
+        Random random = new Random(3);
+        final byte[] key = new byte[32];
+        random.nextBytes(key);
+        final byte[] nonce = new byte[12];
+        final byte[] input = new byte[100];
+        random.nextBytes(input);
+        byte[] expected = new BouncyCastleGcmEngine().crypt(key, nonce, new byte[0], 128, input, 0,
+                input.length, true);
+
+        for (final GcmEngine engine : new GcmEngine[] { bouncyCastle, jca }) {
+            engine.crypt(key, nonce, new byte[0], 128, input, 0, input.length, true);
+
+            // Wipe from another thread, as a discarded session does
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.wipe();
+                }
+            });
+            thread.start();
+            thread.join();
+
+            byte[] cipherText = engine.crypt(key, nonce, new byte[0], 128, input, 0, input.length,
+                    true);
+            assertThat(cipherText, is(expected));
+            assertThat(engine.crypt(key, nonce, new byte[0], 128, cipherText, 0, cipherText.length,
+                    false), is(input));
+        }
+    }
+
+    @Test
+    public void cryptsIntoBuffer_RejectsSmallBuffer() throws Exception {
+        byte[] input = new byte[100];
+        try {
+            jca.crypt(new byte[32], new byte[12], new byte[0], 128, input, 0, input.length,
+                    new byte[115], 0, true);
+            fail("Encrypted into a buffer without room for the MAC");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+}
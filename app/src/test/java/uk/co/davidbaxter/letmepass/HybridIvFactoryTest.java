@@ -74,4 +74,16 @@ public class HybridIvFactoryTest {
                 Arrays.equals(factory1.getCurrentIv(), factory2.getCurrentIv()));
     }
 
+    @Test
+    public void offsetsIv_IntoBuffer() {
+        byte[] base = new HybridIvFactory().getCurrentIv();
+        byte[] buff = new byte[HybridIvFactory.IV_LENGTH + 2];
+
+        HybridIvFactory.offsetIv(base, 5, buff, 2);
+        byte[] iv = Arrays.copyOfRange(buff, 2, buff.length);
+        assertThat(iv, is(HybridIvFactory.offsetIv(base, 5)));
+        assertThat(getIntBE(iv, 8), is(getIntBE(base, 8) + 5));
+        assertTrue(Arrays.equals(Arrays.copyOf(iv, 8), Arrays.copyOf(base, 8)));
+    }
+
 }
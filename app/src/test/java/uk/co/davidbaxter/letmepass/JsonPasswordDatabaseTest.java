@@ -7,10 +7,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import uk.co.davidbaxter.letmepass.model.DataEntry;
 import uk.co.davidbaxter.letmepass.model.FolderEntry;
@@ -66,6 +71,53 @@ public class JsonPasswordDatabaseTest {
         }
     }
 
+    @Test
+    public void serializes_StreamMatchesBytes() throws IOException {
+        // Create a DB with nested entries
+        JsonPasswordDatabase db = new JsonPasswordDatabase("test", Arrays.asList(
+                new PasswordEntry("test", "user", "pass", "website", "desc"),
+                new FolderEntry("folder", Arrays.<PasswordDatabaseEntry>asList(
+                        new DataEntry("data test", "my data here")
+                ))
+        ));
+
+        // Serialize the DB to a stream, and ensure it is identical to the byte array form
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        db.serialize(out);
+        assertThat(out.toByteArray(), is(db.serialize()));
+
+        // Deserialize from a stream and ensure we get the same DB back
+        JsonPasswordDatabase newDb = JsonPasswordDatabase.deserialize(
+                new ByteArrayInputStream(out.toByteArray()), false);
+        assertThat(newDb.getAllEntries().size(), is(3));
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    @Test
+    public void serializes_SameJsonAsReflection() throws IOException {
+        // JSON as written by Gson's reflective adapters: subclass fields first, nulls omitted,
+        // HTML characters escaped
+        String json = "{\"entries\":[[\"password\",{\"username\":\"user\","
+                + "\"website\":\"https://x.com/?a\\u003d1\",\"description\":\"d\u00e9sc\\n\","
+                + "\"name\":\"Bank \\u003c\\u0026\\u003e\",\"created\":1,\"updated\":-5,"
+                + "\"favorite\":true}],[\"folder\",{\"children\":[[\"data\",{\"data\":"
+                + "\"text \\\"quoted\\\" \\\\\",\"name\":\"data\",\"created\":2,\"updated\":3,"
+                + "\"favorite\":false}],[\"folder\",{\"children\":[],\"name\":\"inner\","
+                + "\"created\":4,\"updated\":5,\"favorite\":false}]],\"name\":\"folder\","
+                + "\"created\":6,\"updated\":7,\"favorite\":false}]],\"name\":\"name\"}";
+
+        JsonPasswordDatabase db = JsonPasswordDatabase.deserialize(json.getBytes("UTF-8"), false);
+        PasswordEntry entry = (PasswordEntry) db.getRootEntries().get(0);
+        assertThat(entry.name, is("Bank <&>"));
+        assertThat(entry.password, is(nullValue()));
+        assertThat(entry.description, is("d\u00e9sc\n"));
+        assertThat(entry.updated, is(-5L));
+        assertThat(entry.favorite, is(true));
+        assertThat(((FolderEntry) db.getRootEntries().get(1)).children.size(), is(2));
+
+        assertThat(new String(db.serialize(), "UTF-8"), is(json));
+    }
+
     @Test
     public void filters_AllEntriesAndRoot() {
         // Create entries
@@ -156,4 +208,166 @@ public class JsonPasswordDatabaseTest {
         assertThat(results.size(), is(0));
     }
 
+    @Test
+    public void searches_UsernamesAndWebsitesInFolders() throws IOException {
+        FolderEntry folder = new FolderEntry("folder", Arrays.<PasswordDatabaseEntry>asList(
+                new PasswordEntry("mail", "alice", "", "mail.example.com", ""),
+                new PasswordEntry("bank", "bob", "", "bank.example.org", "")));
+        PasswordDatabase db = new JsonPasswordDatabase("db",
+                Collections.<PasswordDatabaseEntry>singletonList(folder));
+
+        // Search a deserialized copy too, which must build its index from scratch
+        PasswordDatabase newDb = JsonPasswordDatabase.deserialize(db.serialize(), false);
+        for (PasswordDatabase database : Arrays.asList(db, newDb)) {
+            assertThat(database.search("ALICE").size(), is(1));
+            assertThat(database.search("example").size(), is(2));
+            assertThat(database.search(".org").get(0).name, is("bank"));
+            assertThat(database.search("ob").size(), is(1));
+        }
+    }
+
+    @Test
+    public void searches_AfterChanges() {
+        PasswordDatabase db = new JsonPasswordDatabase("db",
+                Collections.<PasswordDatabaseEntry>emptyList());
+        PasswordEntry entry = new PasswordEntry("one", "", "", "", "");
+        FolderEntry folder = new FolderEntry("folder");
+        db.addEntry(entry);
+        db.addEntry(folder);
+        assertThat(db.search("one").size(), is(1));
+
+        // Rename an entry in place
+        entry.fromCopy(new PasswordEntry("two", "", "", "", ""));
+        db.updateEntry(entry);
+        assertThat(db.search("one").size(), is(0));
+        assertThat(db.search("two").size(), is(1));
+
+        // Add to a folder, then delete the folder
+        db.addEntry(new DataEntry("three", ""), folder);
+        assertThat(db.search("three").size(), is(1));
+        db.deleteEntry(folder);
+        assertThat(db.search("three").size(), is(0));
+    }
+
+    @Test
+    public void deletes_AfterFolderChildrenReplaced() {
+        PasswordEntry child = new PasswordEntry("child", "", "", "", "");
+        FolderEntry folder = new FolderEntry("folder",
+                Collections.<PasswordDatabaseEntry>singletonList(child));
+        PasswordDatabase db = new JsonPasswordDatabase("db",
+                Collections.<PasswordDatabaseEntry>singletonList(folder));
+        assertThat(db.search("child").get(0), is((PasswordDatabaseEntry) child));
+
+        // Editing a folder replaces its children with copies
+        folder.fromCopy((FolderEntry) folder.clone());
+        db.updateEntry(folder);
+        PasswordDatabaseEntry newChild = folder.children.get(0);
+        assertThat(db.search("child").size(), is(1));
+        assertThat(db.search("child").get(0), is(newChild));
+
+        // Only the current child is in the database
+        assertFalse(db.deleteEntry(child));
+        assertTrue(db.deleteEntry(newChild));
+        assertThat(folder.children.isEmpty(), is(true));
+
+        // Adding the same entry twice only adds it once
+        db.addEntry(newChild, folder);
+        db.addEntry(newChild, folder);
+        assertThat(folder.children.size(), is(1));
+    }
+
+    @Test
+    public void snapshot_UnaffectedByChanges() throws IOException {
+        PasswordEntry child = new PasswordEntry("child", "user", "pass", "", "");
+        FolderEntry folder = new FolderEntry("folder",
+                Collections.<PasswordDatabaseEntry>singletonList(child));
+        PasswordDatabase db = new JsonPasswordDatabase("db",
+                Arrays.<PasswordDatabaseEntry>asList(folder, new DataEntry("data", "secret")));
+        PasswordDatabase snapshot = db.snapshot();
+        byte[] serialized = db.serialize();
+
+        child.password = "new pass";
+        db.updateEntry(child);
+        db.addEntry(new DataEntry("new", "data"), folder);
+        db.deleteEntry(db.getRootEntries().get(1));
+        db.setName("renamed");
+
+        assertThat(snapshot.serialize(), is(serialized));
+        assertThat(db.snapshot().serialize(), is(db.serialize()));
+        assertThat(snapshot.getRootEntries().get(0).getOriginal(),
+                is((PasswordDatabaseEntry) folder));
+    }
+
+    @Test
+    public void snapshot_SharesUnchangedEntries() {
+        PasswordEntry changed = new PasswordEntry("changed", "", "", "", "");
+        PasswordEntry unchanged = new PasswordEntry("unchanged", "", "", "", "");
+        FolderEntry folder = new FolderEntry("folder", Arrays.<PasswordDatabaseEntry>asList(
+                changed, unchanged));
+        PasswordDatabase db = new JsonPasswordDatabase("db",
+                Arrays.<PasswordDatabaseEntry>asList(folder, new DataEntry("data", "")));
+        PasswordDatabase first = db.snapshot();
+        assertThat(db.snapshot(), is(sameInstance(first)));
+
+        changed.name = "changed again";
+        db.updateEntry(changed);
+        PasswordDatabase second = db.snapshot();
+
+        // Only the changed entry and the folder containing it are copied again
+        FolderEntry firstFolder = (FolderEntry) first.getRootEntries().get(0);
+        FolderEntry secondFolder = (FolderEntry) second.getRootEntries().get(0);
+        assertThat(secondFolder, is(not(sameInstance(firstFolder))));
+        assertThat(secondFolder.children.get(0).name, is("changed again"));
+        assertThat(secondFolder.children.get(1), is(sameInstance(firstFolder.children.get(1))));
+        assertThat(second.getRootEntries().get(1),
+                is(sameInstance(first.getRootEntries().get(1))));
+    }
+
+    @Test
+    public void serializesInParallel_IdenticalToSerial() throws IOException {
+        // A wide database of folders and entries, with characters that must be escaped
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            if (i % 3 == 0) {
+                FolderEntry folder = new FolderEntry("Folder <" + i + ">");
+                for (int j = 0; j < i % 7; j++) {
+                    FolderEntry inner = new FolderEntry("Inner \"" + j + "\"");
+                    inner.children.add(new PasswordEntry("P\u00e4ss " + j, "u", "p&w", "", ""));
+                    folder.children.add(inner);
+                }
+                entries.add(folder);
+            } else {
+                entries.add(new PasswordEntry("Entry " + i, "user\n", "pass=" + i, "", ""));
+            }
+        }
+
+        // A folder too large for a single run, which must still be encoded whole
+        FolderEntry large = new FolderEntry("Large");
+        for (int i = 0; i < 1000; i++)
+            large.children.add(new PasswordEntry("Child " + i, "u", "p", "", ""));
+        entries.add(250, large);
+        JsonPasswordDatabase db = new JsonPasswordDatabase("Wide \u00e9", entries);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] expected = db.serialize();
+            for (int maxPending : new int[] { 1, 3, 100 }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                db.serialize(out, executor, maxPending);
+                assertThat(out.toByteArray(), is(expected));
+            }
+
+            // Databases too small to split, and without a name, are also written as usual
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new JsonPasswordDatabase(null, Collections.<PasswordDatabaseEntry>emptyList())
+                    .serialize(out, executor, 2);
+            assertThat(new String(out.toByteArray(), "UTF-8"), is("{\"entries\":[]}"));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(JsonPasswordDatabase.deserialize(db.serialize(), false).serialize(),
+                is(db.serialize()));
+    }
+
 }
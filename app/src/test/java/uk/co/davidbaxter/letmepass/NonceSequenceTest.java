@@ -0,0 +1,82 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.NonceSequence;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+public class NonceSequenceTest {
+
+    @Test
+    public void generates_UniqueAcrossThreads() throws Exception {
+        final NonceSequence nonces = new NonceSequence();
+        final int perThread = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<ByteBuffer>>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<List<ByteBuffer>>() {
+                    @Override
+                    public List<ByteBuffer> call() {
+                        List<ByteBuffer> generated = new ArrayList<>();
+                        for (int i = 0; i < perThread; i++)
+                            generated.add(ByteBuffer.wrap(nonces.next()));
+                        return generated;
+                    }
+                }));
+            }
+
+            // Every nonce is distinct, and all share the random part of the sequence
+            Set<ByteBuffer> unique = new HashSet<>();
+            byte[] random = null;
+            for (Future<List<ByteBuffer>> future : futures) {
+                for (ByteBuffer nonce : future.get()) {
+                    unique.add(nonce);
+                    byte[] prefix = Arrays.copyOf(nonce.array(), 8);
+                    if (random == null)
+                        random = prefix;
+                    assertThat(prefix, is(random));
+                }
+            }
+            assertThat(unique.size(), is(4 * perThread));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writes_IntoBuffer() {
+        NonceSequence nonces = new NonceSequence();
+        byte[] first = nonces.next();
+        byte[] buff = new byte[3 + NonceSequence.NONCE_LENGTH + 3];
+        nonces.next(buff, 3);
+
+        // The next nonce is written at the offset, with the counter incremented
+        byte[] second = Arrays.copyOfRange(buff, 3, 3 + NonceSequence.NONCE_LENGTH);
+        assertThat(Arrays.copyOf(second, 8), is(Arrays.copyOf(first, 8)));
+        assertThat(ByteBuffer.wrap(second, 8, 4).getInt(), is(ByteBuffer.wrap(first, 8, 4).getInt()
+                + 1));
+        assertThat(buff[0] == 0 && buff[buff.length - 1] == 0, is(true));
+    }
+
+    @Test
+    public void generates_UniqueOnMultipleInstantiations() {
+        assertFalse("Multiple sequences should NOT produce the same nonces",
+                Arrays.equals(new NonceSequence().next(), new NonceSequence().next()));
+    }
+
+}
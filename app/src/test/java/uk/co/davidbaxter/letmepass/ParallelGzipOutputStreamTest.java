@@ -0,0 +1,113 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.ParallelGzipOutputStream;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 32768;
+
+    @Test
+    public void roundTrips_AnyLength() throws IOException {
+        // Lengths either side of block boundaries, including an exact multiple and nothing at all
+        int[] lengths = { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, BLOCK_SIZE * 10 };
+        for (int length : lengths) {
+            byte[] data = compressibleBytes(length);
+            assertThat(gunzip(gzip(data)), is(data));
+        }
+    }
+
+    @Test
+    public void compresses_AsWellAsSerial() throws IOException {
+        // Blocks refer back into previous blocks through their dictionaries
+        byte[] data = compressibleBytes(BLOCK_SIZE * 20);
+        int parallelLength = gzip(data).length;
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(serial);
+        gzipOut.write(data);
+        gzipOut.close();
+
+        assertTrue(parallelLength < serial.size() * 1.02);
+    }
+
+    @Test
+    public void deserializes_Database() throws IOException {
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            entries.add(new PasswordEntry("Entry " + i, "user" + i, "pass" + i, "site" + i, ""));
+        JsonPasswordDatabase db = new JsonPasswordDatabase("Test", entries);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream gzipOut = ParallelGzipOutputStream.create(out);
+        db.serialize(gzipOut);
+        gzipOut.close();
+
+        JsonPasswordDatabase result = JsonPasswordDatabase.deserialize(out.toByteArray(), true);
+        assertThat(result.getAllEntries().size(), is(5000));
+        assertThat(((PasswordEntry) result.getRootEntries().get(4999)).password, is("pass4999"));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream gzipOut = new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION,
+                BLOCK_SIZE, ParallelUtils.getComputeExecutor(), 4);
+
+        // Write in odd-sized pieces, so writes span blocks
+        for (int off = 0; off < data.length; off += 1000)
+            gzipOut.write(data, off, Math.min(1000, data.length - off));
+        gzipOut.close();
+
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /** Generates text-like data, with words repeated throughout */
+    private static byte[] compressibleBytes(int length) {
+        String[] words = new String[500];
+        Random random = new Random(length);
+        for (int i = 0; i < words.length; i++)
+            words[i] = Long.toString(random.nextLong(), 36);
+
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            byte[] word = (words[random.nextInt(words.length)] + " ").getBytes();
+            int n = Math.min(word.length, length - i);
+            System.arraycopy(word, 0, data, i, n);
+            i += n;
+        }
+        return data;
+    }
+
+}
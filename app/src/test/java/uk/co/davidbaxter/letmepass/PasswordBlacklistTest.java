@@ -0,0 +1,50 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import uk.co.davidbaxter.letmepass.security.PasswordBlacklist;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PasswordBlacklistTest {
+
+    private PasswordBlacklist blacklist;
+
+    @Before
+    public void setUp() throws Exception {
+        // Unit tests run from the module directory
+        blacklist = PasswordBlacklist.load(new File("src/main/res/raw/blacklist_bin"));
+    }
+
+    @Test
+    public void contains_CommonPasswords() {
+        assertTrue(blacklist.contains("123456"));
+        assertTrue(blacklist.contains("password"));
+        assertTrue(blacklist.contains("qwerty"));
+        assertTrue(blacklist.contains("iloveyou"));
+    }
+
+    @Test
+    public void doesNotContain_UncommonPasswords() {
+        assertFalse(blacklist.contains(""));
+        assertFalse(blacklist.contains("pAssword"));
+        assertFalse(blacklist.contains("correct horse battery staple"));
+        assertFalse(blacklist.contains("vJ8#qz!Lp2@wXr"));
+    }
+
+    @Test
+    public void validates_Format() {
+        try {
+            new PasswordBlacklist(ByteBuffer.wrap(new byte[64]));
+            fail("Blacklist should not be loaded from an invalid buffer");
+        } catch (IOException e) {}
+    }
+
+}
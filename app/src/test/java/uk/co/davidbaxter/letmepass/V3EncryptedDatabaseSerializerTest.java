@@ -0,0 +1,206 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2Parameters;
+import uk.co.davidbaxter.letmepass.crypto.impl.DecryptionException;
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.DataEntry;
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V3EncryptedDatabaseSerializer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class V3EncryptedDatabaseSerializerTest {
+
+    private static final String MP = "master password";
+
+    // Shared so that keys are only derived once per salt across all tests
+    private static final DerivedKeyCache KEY_CACHE = new DerivedKeyCache();
+
+    @Test
+    public void serializes_NestedEntriesInOrder() throws Exception {
+        PasswordDatabase db = newDatabase();
+        byte[] data = newSerializer().serialize(db, MP);
+
+        PasswordDatabase newDb = newSerializer().deserialize(data, MP);
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    @Test
+    public void serializesChanges_OnlyChangedRecords() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer serializer = newSerializer();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        serializer.serialize(db, MP, data);
+        int fullLength = data.size();
+
+        // Edit one entry: only its record (and a commit) should be written
+        ((PasswordEntry) db.getRootEntries().get(0)).password = "new password";
+        assertThat(serializer.canSerializeChanges(db), is(true));
+        serializer.serializeChanges(db, MP, data);
+        assertTrue(data.size() - fullLength < 512);
+        assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                is(db.serialize()));
+
+        // Delete a folder (and so its children), add an entry, and rename the database
+        db.deleteEntry(db.getRootEntries().get(1));
+        db.addEntry(new DataEntry("new data", "data"));
+        db.setName("renamed");
+        serializer.serializeChanges(db, MP, data);
+        assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                is(db.serialize()));
+    }
+
+    @Test
+    public void serializesChanges_FromSnapshots() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer serializer = newSerializer();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        serializer.serialize(db.snapshot(), MP, data);
+        int fullLength = data.size();
+
+        // Changes are appended from a later snapshot, and made after it are not saved
+        PasswordEntry entry = (PasswordEntry) db.getRootEntries().get(0);
+        entry.password = "new password";
+        db.updateEntry(entry);
+        PasswordDatabase snapshot = db.snapshot();
+        entry.password = "newer password";
+        db.deleteEntry(db.getRootEntries().get(1));
+
+        assertThat(serializer.canSerializeChanges(snapshot), is(true));
+        assertThat(serializer.canSerializeChanges(db), is(true));
+        serializer.serializeChanges(snapshot, MP, data);
+        assertTrue(data.size() - fullLength < 512);
+        assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                is(snapshot.serialize()));
+
+        // The entries keep their records across snapshots
+        db.updateEntry(entry);
+        serializer.serializeChanges(db.snapshot(), MP, data);
+        assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                is(db.serialize()));
+    }
+
+    @Test
+    public void ignores_UncommittedRecords() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer serializer = newSerializer();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        serializer.serialize(db, MP, data);
+        byte[] original = db.serialize();
+
+        // Cut off the end of an append, as if it had been interrupted
+        ((PasswordEntry) db.getRootEntries().get(0)).password = "new password";
+        serializer.serializeChanges(db, MP, data);
+        byte[] torn = Arrays.copyOf(data.toByteArray(), data.size() - 10);
+
+        V3EncryptedDatabaseSerializer newSerializer = newSerializer();
+        PasswordDatabase newDb = newSerializer.deserialize(torn, MP);
+        assertThat(newDb.serialize(), is(original));
+
+        // Appending after the torn record would corrupt the log
+        assertThat(newSerializer.canSerializeChanges(newDb), is(false));
+    }
+
+    @Test
+    public void ignores_ZeroFilledTail() throws Exception {
+        PasswordDatabase db = newDatabase();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        newSerializer().serialize(db, MP, data);
+
+        // Zeros left at the end of the file, e.g. by a power loss during an append
+        data.write(new byte[4096]);
+
+        V3EncryptedDatabaseSerializer newSerializer = newSerializer();
+        PasswordDatabase newDb = newSerializer.deserialize(data.toByteArray(), MP);
+        assertThat(newDb.serialize(), is(db.serialize()));
+        assertThat(newSerializer.canSerializeChanges(newDb), is(false));
+    }
+
+    @Test
+    public void ignores_GarbageTail() throws Exception {
+        PasswordDatabase db = newDatabase();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        newSerializer().serialize(db, MP, data);
+
+        // A record of plausible length that cannot be authenticated
+        byte[] garbage = new byte[4 + 100];
+        new Random(1).nextBytes(garbage);
+        garbage[0] = 0;
+        garbage[1] = 0;
+        garbage[2] = 0;
+        garbage[3] = 100;
+        data.write(garbage);
+
+        V3EncryptedDatabaseSerializer newSerializer = newSerializer();
+        PasswordDatabase newDb = newSerializer.deserialize(data.toByteArray(), MP);
+        assertThat(newDb.serialize(), is(db.serialize()));
+        assertThat(newSerializer.canSerializeChanges(newDb), is(false));
+
+        // A wrong master password is still reported as such
+        try {
+            newSerializer().deserialize(data.toByteArray(), "wrong password");
+            fail("Decrypted with the wrong master password");
+        } catch (DecryptionException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void serializesChanges_OnlyForLastDatabase() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer serializer = newSerializer();
+        assertThat(serializer.canSerializeChanges(db), is(false));
+
+        serializer.serialize(db, MP);
+        assertThat(serializer.canSerializeChanges(db), is(true));
+        assertThat(serializer.canSerializeChanges(newDatabase()), is(false));
+    }
+
+    @Test
+    public void serializes_WithKdfParameters() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer serializer = newSerializer();
+        serializer.serialize(db, MP);
+
+        // The key changes, so the log must be rewritten
+        serializer.setKdfParameters(new Argon2Parameters(2, 8192, 1));
+        assertThat(serializer.canSerializeChanges(db), is(false));
+
+        byte[] data = serializer.serialize(db, MP);
+        assertThat(newSerializer().deserialize(data, MP).serialize(), is(db.serialize()));
+    }
+
+    private static V3EncryptedDatabaseSerializer newSerializer() {
+        V3EncryptedDatabaseSerializer serializer = new V3EncryptedDatabaseSerializer();
+        serializer.setKeyCache(KEY_CACHE);
+        return serializer;
+    }
+
+    private static PasswordDatabase newDatabase() {
+        FolderEntry inner = new FolderEntry("inner", Arrays.<PasswordDatabaseEntry>asList(
+                new DataEntry("inner data", "secret")));
+        FolderEntry folder = new FolderEntry("folder", Arrays.<PasswordDatabaseEntry>asList(
+                new PasswordEntry("b", "user", "pass", "website", "desc"),
+                inner,
+                new PasswordEntry("a", "user", "pass", "website", "desc")));
+        return new JsonPasswordDatabase("test", Arrays.<PasswordDatabaseEntry>asList(
+                new PasswordEntry("first", "user", "pass", "website", "desc"),
+                folder,
+                new FolderEntry("empty", Collections.<PasswordDatabaseEntry>emptyList())));
+    }
+
+}
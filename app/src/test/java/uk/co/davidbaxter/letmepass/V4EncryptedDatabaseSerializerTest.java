@@ -0,0 +1,101 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.CompressionCodec;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V3EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.model.impl.V4EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.model.impl.VersionedEncryptedDatabaseSerializer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class V4EncryptedDatabaseSerializerTest {
+
+    private static final String MP = "master password";
+
+    // Shared so that keys are only derived once per salt across all tests
+    private static final DerivedKeyCache KEY_CACHE = new DerivedKeyCache();
+
+    @Test
+    public void serializes_AllCodecs() throws Exception {
+        PasswordDatabase db = newDatabase();
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            byte[] data = newSerializer(codec).serialize(db, MP);
+            PasswordDatabase newDb = newSerializer(CompressionCodec.STORED).deserialize(data, MP);
+            assertThat(newDb.serialize(), is(db.serialize()));
+        }
+    }
+
+    @Test
+    public void compresses_Records() throws Exception {
+        PasswordDatabase db = newDatabase();
+        int stored = newSerializer(CompressionCodec.STORED).serialize(db, MP).length;
+        int fast = newSerializer(CompressionCodec.FAST).serialize(db, MP).length;
+        int best = newSerializer(CompressionCodec.BEST).serialize(db, MP).length;
+
+        assertTrue(fast < stored * 0.8);
+        assertTrue(best <= fast);
+    }
+
+    @Test
+    public void serializesChanges_WithCodecOfLog() throws Exception {
+        PasswordDatabase db = newDatabase();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        newSerializer(CompressionCodec.BEST).serialize(db, MP, data);
+
+        // Changes are appended to a compressed log by a serializer that would store records
+        V4EncryptedDatabaseSerializer serializer = newSerializer(CompressionCodec.STORED);
+        db = serializer.deserialize(data.toByteArray(), MP);
+        ((PasswordEntry) db.getRootEntries().get(0)).password = "new password";
+        serializer.serializeChanges(db, MP, data);
+
+        assertThat(newSerializer(CompressionCodec.FAST).deserialize(data.toByteArray(), MP)
+                .serialize(), is(db.serialize()));
+    }
+
+    @Test
+    public void deserializes_OlderVersion() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V3EncryptedDatabaseSerializer v3Serializer = new V3EncryptedDatabaseSerializer();
+        v3Serializer.setKeyCache(KEY_CACHE);
+        byte[] data = v3Serializer.serialize(db, MP);
+
+        VersionedEncryptedDatabaseSerializer serializer =
+                new VersionedEncryptedDatabaseSerializer(CompressionCodec.BEST);
+        serializer.setKeyCache(KEY_CACHE);
+        PasswordDatabase newDb = serializer.deserialize(data, MP);
+        assertThat(newDb.serialize(), is(db.serialize()));
+
+        // The database is upgraded when it is next saved
+        assertThat(serializer.canSerializeChanges(newDb), is(false));
+        assertThat(serializer.deserialize(serializer.serialize(newDb, MP), MP).serialize(),
+                is(db.serialize()));
+    }
+
+    private static V4EncryptedDatabaseSerializer newSerializer(CompressionCodec codec) {
+        V4EncryptedDatabaseSerializer serializer = new V4EncryptedDatabaseSerializer(codec);
+        serializer.setKeyCache(KEY_CACHE);
+        return serializer;
+    }
+
+    private static PasswordDatabase newDatabase() {
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new PasswordEntry("Entry " + i, "user" + i + "@example.com",
+                    "password" + i, "https://www.example.com/", ""));
+        }
+        return new JsonPasswordDatabase("test", entries);
+    }
+
+}
@@ -0,0 +1,153 @@
+package uk.co.davidbaxter.letmepass;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.DataEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V6EncryptedDatabaseSerializer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class V6EncryptedDatabaseSerializerTest {
+
+    private static final String MP = "master password";
+
+    // Shared so that keys are only derived once per salt across all tests
+    private static final DerivedKeyCache KEY_CACHE = new DerivedKeyCache();
+
+    @Test
+    public void deserializes_SecretsSealed() throws Exception {
+        PasswordDatabase db = newDatabase();
+        V6EncryptedDatabaseSerializer serializer = newSerializer();
+        PasswordDatabase newDb = serializer.deserialize(serializer.serialize(db, MP), MP);
+
+        PasswordEntry passwordEntry = (PasswordEntry) newDb.getRootEntries().get(0);
+        assertThat(passwordEntry.password, is(nullValue()));
+        assertThat(passwordEntry.getSealedPassword(), is(notNullValue()));
+        assertThat(passwordEntry.getPassword(), is("password0"));
+
+        DataEntry dataEntry = (DataEntry) newDb.getRootEntries().get(100);
+        assertThat(dataEntry.data, is(nullValue()));
+        assertThat(dataEntry.getData(), is("secret data"));
+
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    @Test
+    public void unseal_KeepsOriginalSealed() throws Exception {
+        V6EncryptedDatabaseSerializer serializer = newSerializer();
+        PasswordDatabase db = serializer.deserialize(serializer.serialize(newDatabase(), MP), MP);
+
+        PasswordEntry entry = (PasswordEntry) db.getRootEntries().get(0);
+        PasswordEntry copy = (PasswordEntry) entry.clone();
+        copy.unseal();
+
+        assertThat(copy.password, is("password0"));
+        assertThat(copy.getSealedPassword(), is(nullValue()));
+        assertThat(entry.password, is(nullValue()));
+        assertThat(entry.getSealedPassword(), is(notNullValue()));
+    }
+
+    @Test
+    public void serializesChanges_OnlyChangedEntries() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        newSerializer().serialize(newDatabase(), MP, data);
+
+        V6EncryptedDatabaseSerializer serializer = newSerializer();
+        PasswordDatabase db = serializer.deserialize(data.toByteArray(), MP);
+
+        // Sealed secrets are unchanged, so nothing is written
+        int length = data.size();
+        serializer.serializeChanges(db, MP, data);
+        assertThat(data.size(), is(length));
+
+        PasswordEntry entry = (PasswordEntry) db.getRootEntries().get(1);
+        entry.setPassword("new password");
+        serializer.serializeChanges(db, MP, data);
+        PasswordDatabase newDb = newSerializer().deserialize(data.toByteArray(), MP);
+        assertThat(((PasswordEntry) newDb.getRootEntries().get(1)).getPassword(),
+                is("new password"));
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    @Test
+    public void serializes_SealedFromOtherLog() throws Exception {
+        V6EncryptedDatabaseSerializer serializer = newSerializer();
+        PasswordDatabase db = serializer.deserialize(serializer.serialize(newDatabase(), MP), MP);
+
+        // Saving in full with a new password reseals the secrets with the new key
+        V6EncryptedDatabaseSerializer newSerializer = newSerializer();
+        byte[] data = newSerializer.serialize(db, "new master password");
+        PasswordDatabase newDb = newSerializer().deserialize(data, "new master password");
+        assertThat(newDb.serialize(), is(db.serialize()));
+    }
+
+    private static V6EncryptedDatabaseSerializer newSerializer() {
+        V6EncryptedDatabaseSerializer serializer = new V6EncryptedDatabaseSerializer();
+        serializer.setKeyCache(KEY_CACHE);
+        return serializer;
+    }
+
+    @Test
+    public void serializes_InParallel() throws Exception {
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new PasswordEntry("Entry " + i, "user" + i + "@example.com",
+                    "password" + i, "https://www.example.com/", ""));
+        }
+        PasswordDatabase db = new JsonPasswordDatabase("test", entries);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            V6EncryptedDatabaseSerializer serializer = newSerializer();
+            serializer.setExecutor(executor);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            serializer.serialize(db, MP, data);
+            assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                    is(db.serialize()));
+
+            // The log can be appended to as usual, with only the changed entry written
+            ((PasswordEntry) db.getRootEntries().get(500)).password = "new password";
+            int fullLength = data.size();
+            serializer.serializeChanges(db, MP, data);
+            assertTrue(data.size() - fullLength < 512);
+            assertThat(newSerializer().deserialize(data.toByteArray(), MP).serialize(),
+                    is(db.serialize()));
+
+            // Runs of records are decrypted and decoded in parallel too
+            V6EncryptedDatabaseSerializer newSerializer = newSerializer();
+            newSerializer.setExecutor(executor);
+            PasswordDatabase newDb = newSerializer.deserialize(data.toByteArray(), MP);
+            assertThat(newDb.serialize(), is(db.serialize()));
+            assertThat(((PasswordEntry) newDb.getRootEntries().get(500)).getPassword(),
+                    is("new password"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static PasswordDatabase newDatabase() {
+        List<PasswordDatabaseEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new PasswordEntry("Entry " + i, "user" + i + "@example.com",
+                    "password" + i, "https://www.example.com/", ""));
+        }
+        entries.add(new DataEntry("Data", "secret data"));
+        return new JsonPasswordDatabase("test", entries);
+    }
+
+}
@@ -0,0 +1,86 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.crypto.KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.AesGcmEncrypter;
+import uk.co.davidbaxter.letmepass.crypto.impl.BouncyCastleGcmEngine;
+import uk.co.davidbaxter.letmepass.crypto.impl.GcmEngine;
+import uk.co.davidbaxter.letmepass.crypto.impl.HybridIvFactory;
+import uk.co.davidbaxter.letmepass.crypto.impl.JcaGcmEngine;
+
+/**
+ * Benchmarks AES-GCM encryption and decryption of payloads (see {@link KdfBenchmark} for key
+ * derivation)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+
+    /** Payload size in bytes (64 is about the size of a single record or sealed secret) */
+    @Param({ "64", "1024", "1048576" })
+    public int payloadSize;
+
+    /** GCM engine: the platform's provider, or BouncyCastle */
+    @Param({ "jca", "bouncycastle" })
+    public String engine;
+
+    private AesGcmEncrypter encrypter;
+    private byte[] plainText;
+    private byte[] cipherText;
+    private byte[] key;
+    private byte[] baseIv;
+    private byte[] output;
+    private int messageIndex = 0;
+
+    @Setup
+    public void setUp() {
+        // Use a fixed key, so encryption is measured without key derivation
+        key = new byte[32];
+        new Random(1).nextBytes(key);
+        encrypter = new AesGcmEncrypter(new KeyDerivationFunction() {
+            @Override
+            public byte[] derive(String input) {
+                return key;
+            }
+        }, new HybridIvFactory());
+        encrypter.setMasterPassword(SyntheticVaults.MASTER_PASSWORD);
+        GcmEngine bouncyCastle = new BouncyCastleGcmEngine();
+        encrypter.setEngine(engine.equals("jca") ? new JcaGcmEngine(bouncyCastle) : bouncyCastle);
+
+        plainText = new byte[payloadSize];
+        new Random(2).nextBytes(plainText);
+        cipherText = encrypter.encrypt(plainText);
+        baseIv = new HybridIvFactory().getCurrentIv();
+        output = new byte[encrypter.getOutputSize(payloadSize, true)];
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return encrypter.encrypt(plainText);
+    }
+
+    /** Encrypts into a reused buffer with a fresh nonce each time, as chunks and records are */
+    @Benchmark
+    public int encryptIntoBuffer() throws Exception {
+        return encrypter.crypt(key, HybridIvFactory.offsetIv(baseIv, messageIndex++), new byte[0],
+                plainText, 0, plainText.length, output, 0, true);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return encrypter.decrypt(cipherText);
+    }
+
+}
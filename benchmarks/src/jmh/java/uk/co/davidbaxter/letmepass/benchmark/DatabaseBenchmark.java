@@ -0,0 +1,41 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+
+/**
+ * Benchmarks listing the entries of a database (see {@link SearchBenchmark} for searching)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatabaseBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int size;
+
+    private JsonPasswordDatabase database;
+
+    @Setup
+    public void setUp() {
+        database = SyntheticVaults.create(size);
+    }
+
+    @Benchmark
+    public List<PasswordDatabaseEntry> getAllEntries() {
+        return database.getAllEntries();
+    }
+
+}
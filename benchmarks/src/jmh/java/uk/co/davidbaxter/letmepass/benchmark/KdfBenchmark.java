@@ -0,0 +1,48 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.Argon2KeyDerivationFunction;
+import uk.co.davidbaxter.letmepass.crypto.impl.JavaArgon2Engine;
+import uk.co.davidbaxter.letmepass.crypto.impl.NativeArgon2Engine;
+
+/**
+ * Benchmarks Argon2 key derivation with the parameters used by the database serializers, with the
+ * native library and with the pure-Java engine, and with more lanes to show how both scale across
+ * cores. Each derivation takes long enough to be measured on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KdfBenchmark {
+
+    @Param({ "native", "java" })
+    public String engine;
+
+    @Param({ "2", "4" })
+    public int lanes;
+
+    private Argon2KeyDerivationFunction kdf;
+
+    @Setup
+    public void setUp() {
+        // 10 iterations, 64MiB, 128-bit salt, 256-bit key: as in the serializers (with 2 lanes)
+        kdf = new Argon2KeyDerivationFunction(10, 65536, lanes, 16, 32);
+        kdf.setEngine(engine.equals("java") ? new JavaArgon2Engine() : new NativeArgon2Engine());
+    }
+
+    @Benchmark
+    public byte[] deriveKey() {
+        return kdf.derive(SyntheticVaults.MASTER_PASSWORD);
+    }
+
+}
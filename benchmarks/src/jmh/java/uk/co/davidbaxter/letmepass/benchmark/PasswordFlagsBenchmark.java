@@ -0,0 +1,78 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.model.PasswordFlags;
+import uk.co.davidbaxter.letmepass.security.PasswordFlagsService;
+
+/**
+ * Benchmarks the password checks made as the user types, including the blacklist lookup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PasswordFlagsBenchmark {
+
+    /** A blacklisted password, and one that is not */
+    @Param({ "iloveyou", "vJ8#qz!Lp2@wXr" })
+    public String password;
+
+    private PasswordFlagsService flagsService;
+    private PasswordFlags flags;
+
+    @Setup
+    public void setUp() throws IOException {
+        final File filesDir = File.createTempFile("letmepass", "files");
+        filesDir.delete();
+        filesDir.mkdirs();
+        filesDir.deleteOnExit();
+
+        // The blacklist resource is copied from the app, as it is on a device
+        final File blacklist = new File(System.getProperty("letmepass.blacklist"));
+        flagsService = new PasswordFlagsService(new Context() {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public Resources getResources() {
+                return new Resources() {
+                    @Override
+                    public InputStream openRawResource(int id) {
+                        try {
+                            return new FileInputStream(blacklist);
+                        } catch (FileNotFoundException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+        });
+        flags = new PasswordFlags();
+    }
+
+    @Benchmark
+    public PasswordFlags updateFlags() {
+        flagsService.updateFlags(flags, password);
+        return flags;
+    }
+
+}
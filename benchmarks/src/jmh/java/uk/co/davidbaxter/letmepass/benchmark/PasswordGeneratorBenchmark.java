@@ -0,0 +1,35 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.security.PasswordGenerator;
+
+/**
+ * Benchmarks password generation with the default settings
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PasswordGeneratorBenchmark {
+
+    private PasswordGenerator generator;
+
+    @Setup
+    public void setUp() {
+        generator = new PasswordGenerator.Builder().create();
+    }
+
+    @Benchmark
+    public String generate() {
+        return generator.generate();
+    }
+
+}
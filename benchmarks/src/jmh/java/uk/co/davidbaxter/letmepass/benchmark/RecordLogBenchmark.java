@@ -0,0 +1,60 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.CompressionCodec;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.VersionedEncryptedDatabaseSerializer;
+
+/**
+ * Benchmarks full serialization and deserialization of databases to the versions of the DB format
+ * that are logs of records: JSON records (3), compressed JSON records (4) and compressed binary
+ * records (5).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordLogBenchmark {
+
+    @Param({ "3", "4", "5", "6" })
+    public int version;
+
+    @Param({ "1000", "10000" })
+    public int size;
+
+    private JsonPasswordDatabase database;
+    private VersionedEncryptedDatabaseSerializer serializer;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = SyntheticVaults.create(size);
+        serializer = new VersionedEncryptedDatabaseSerializer(version, CompressionCodec.FAST);
+        serializer.setKeyCache(new DerivedKeyCache());
+
+        // Derives (and caches) the key
+        serialized = serializer.serialize(database, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return serializer.serialize(database, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+    @Benchmark
+    public PasswordDatabase deserialize() throws Exception {
+        return serializer.deserialize(serialized, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+}
@@ -0,0 +1,51 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+
+/**
+ * Benchmarks searching the entries of a database
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int size;
+
+    /**
+     * Search keywords: one matching many entries, one matching few, and one too short to be
+     * matched through the search index
+     */
+    @Param({ "bank", "shop42", "ma" })
+    public String keyword;
+
+    private JsonPasswordDatabase database;
+
+    @Setup
+    public void setUp() {
+        database = SyntheticVaults.create(size);
+
+        // Searches build their index on first use; measure searches once it is built
+        database.search(keyword);
+    }
+
+    @Benchmark
+    public List<PasswordDatabaseEntry> search() {
+        return database.search(keyword);
+    }
+
+}
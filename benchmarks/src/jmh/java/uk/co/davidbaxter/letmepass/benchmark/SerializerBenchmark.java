@@ -0,0 +1,75 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.davidbaxter.letmepass.crypto.impl.DerivedKeyCache;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+import uk.co.davidbaxter.letmepass.model.impl.V1EncryptedDatabaseSerializer;
+import uk.co.davidbaxter.letmepass.util.ParallelUtils;
+
+/**
+ * Benchmarks encrypted serialization and deserialization of whole databases, and serialization of
+ * their JSON alone.
+ * <p>
+ * Keys are cached, as they are in a session, so these measure JSON, compression and encryption
+ * rather than key derivation (see {@link KdfBenchmark}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializerBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int size;
+
+    private JsonPasswordDatabase database;
+    private V1EncryptedDatabaseSerializer serializer;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = SyntheticVaults.create(size);
+        serializer = new V1EncryptedDatabaseSerializer();
+        serializer.setKeyCache(new DerivedKeyCache());
+
+        // Derives (and caches) the key
+        serialized = serializer.serialize(database, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return serializer.serialize(database, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+    /** Serializes the JSON alone, serially or in parallel depending on the number of cores */
+    @Benchmark
+    public byte[] serializeJson() {
+        return database.serialize();
+    }
+
+    /** Serializes the JSON alone, always encoding runs of entries on the compute executor */
+    @Benchmark
+    public byte[] serializeJsonInParallel() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        database.serialize(out, ParallelUtils.getComputeExecutor(),
+                ParallelUtils.getParallelism() * 2);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public PasswordDatabase deserialize() throws Exception {
+        return serializer.deserialize(serialized, SyntheticVaults.MASTER_PASSWORD);
+    }
+
+}
@@ -0,0 +1,90 @@
+package uk.co.davidbaxter.letmepass.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.co.davidbaxter.letmepass.model.FolderEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordDatabaseEntry;
+import uk.co.davidbaxter.letmepass.model.PasswordEntry;
+import uk.co.davidbaxter.letmepass.model.impl.JsonPasswordDatabase;
+
+/**
+ * Generates synthetic password databases for benchmarking. Databases are generated from a fixed
+ * seed, so every run (and every build being compared) benchmarks the same data.
+ */
+public class SyntheticVaults {
+
+    /** Master password of generated databases */
+    public static final String MASTER_PASSWORD = "correct horse battery staple";
+
+    private static final long SEED = 0x5EED;
+    private static final int ENTRIES_PER_FOLDER = 25;
+    private static final int MAX_DEPTH = 4;
+
+    private static final String[] SITES = {
+            "mail", "bank", "shop", "news", "social", "forum", "cloud", "games", "travel",
+            "music", "video", "work", "school", "health", "energy", "phone", "insurance"
+    };
+    private static final String[] DOMAINS = { ".com", ".co.uk", ".org", ".net", ".io" };
+    private static final String ALPHABET =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!@#$%^&*";
+
+    /**
+     * Creates a database with the given number of password entries, spread across nested folders
+     * (which are not counted)
+     *
+     * @param size Number of password entries
+     * @return New database
+     */
+    public static JsonPasswordDatabase create(int size) {
+        Random random = new Random(SEED);
+        List<PasswordDatabaseEntry> root = new ArrayList<>();
+        int[] remaining = { size };
+        while (remaining[0] > 0)
+            root.add(createFolder(random, remaining, 1, root.size()));
+
+        return new JsonPasswordDatabase("Benchmark", root);
+    }
+
+    private static PasswordDatabaseEntry createFolder(Random random, int[] remaining, int depth,
+                                                      int index) {
+        FolderEntry folder = new FolderEntry("Folder " + depth + "-" + index);
+        for (int i = 0; i < ENTRIES_PER_FOLDER && remaining[0] > 0; i++) {
+            // Some entries are subfolders, down to a maximum depth
+            if (depth < MAX_DEPTH && random.nextInt(5) == 0) {
+                folder.children.add(createFolder(random, remaining, depth + 1, i));
+            } else {
+                folder.children.add(createEntry(random, remaining[0]));
+                remaining[0]--;
+            }
+        }
+
+        return folder;
+    }
+
+    private static PasswordEntry createEntry(Random random, int index) {
+        String site = SITES[random.nextInt(SITES.length)];
+        String domain = site + index + DOMAINS[random.nextInt(DOMAINS.length)];
+        PasswordEntry entry = new PasswordEntry(
+                capitalize(site) + " " + index,
+                "user" + random.nextInt(10000) + "@" + domain,
+                randomString(random, 8 + random.nextInt(12)),
+                "https://www." + domain + "/login",
+                random.nextInt(4) == 0 ? "Security question: " + randomString(random, 16) : "");
+        entry.favorite = random.nextInt(20) == 0;
+        return entry;
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return builder.toString();
+    }
+
+    private static String capitalize(String text) {
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+
+}
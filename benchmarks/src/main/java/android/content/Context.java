@@ -0,0 +1,17 @@
+package android.content;
+
+import android.content.res.Resources;
+
+import java.io.File;
+
+/**
+ * JVM shim of the parts of the Android Context used by the benchmarked code. Benchmarks
+ * subclass this to provide a files directory and resources.
+ */
+public abstract class Context {
+
+    public abstract File getFilesDir();
+
+    public abstract Resources getResources();
+
+}
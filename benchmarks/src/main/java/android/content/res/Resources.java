@@ -0,0 +1,12 @@
+package android.content.res;
+
+import java.io.InputStream;
+
+/**
+ * JVM shim of the parts of Android Resources used by the benchmarked code
+ */
+public abstract class Resources {
+
+    public abstract InputStream openRawResource(int id);
+
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * JVM shim of the Android log, which writes to standard error
+ */
+public final class Log {
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+
+}
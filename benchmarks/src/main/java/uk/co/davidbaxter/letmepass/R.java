@@ -0,0 +1,12 @@
+package uk.co.davidbaxter.letmepass;
+
+/**
+ * JVM shim of the generated resource IDs used by the benchmarked code
+ */
+public final class R {
+
+    public static final class raw {
+        public static final int blacklist_bin = 1;
+    }
+
+}
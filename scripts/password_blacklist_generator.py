@@ -1,47 +1,130 @@
-import gzip
-import json
 import os
-import sqlite3
+import struct
 import sys
 
-def get_index(word):
-    """Gets the non-unique index (for indexing) that should be used to represent a word"""
-    return (word[0], len(word))
+# File format (all values big-endian):
+#   uint32 magic ('LMPB')
+#   uint32 version
+#   uint32 key_count (n)
+#   uint32 bloom_bits (m, a multiple of 64)
+#   uint32 bloom_hashes (k)
+#   uint32 bucket_count (r)
+#   uint64 bloom[m / 64]
+#   int32  displacements[r]  # < 0: -(slot + 1) of a single-key bucket; >= 0: seed index
+#   int32  fingerprints[n]   # fingerprint of the key in each slot
+#
+# This must be kept in sync with PasswordBlacklist.java.
 
-def gen_partitions(words):
-    """Generates a dictionary of sorted word partitions by index"""
-    partitions = {}
+MAGIC = 0x4C4D5042
+VERSION = 1
+BLOOM_BITS_PER_KEY = 10  # ~1% false positive rate
+BLOOM_HASHES = 7
+KEYS_PER_BUCKET = 2
 
-    # Add each word to its appropriate partition
-    for word in words:
-        index = get_index(word)
-        if not index in partitions:
-            partitions[index] = []
+MASK64 = (1 << 64) - 1
+MASK32 = (1 << 32) - 1
+FNV_OFFSET = 0xcbf29ce484222325
+FNV_PRIME = 0x100000001b3
+BLOOM_SEED = 0x6a09e667f3bcc908
+BUCKET_SEED = 0xbb67ae8584caa73b
+SLOT_SEED = 0x3c6ef372fe94f82b
+FINGERPRINT_SEED = 0xa54ff53a5f1d36f1
 
-        # Omit the first character as it is contained in index
-        partitions[index].append(word[1:])
+def mix(z):
+    """Mixes the bits of a 64-bit integer (SplitMix64 finalizer)"""
+    z = ((z ^ (z >> 30)) * 0xbf58476d1ce4e5b9) & MASK64
+    z = ((z ^ (z >> 27)) * 0x94d049bb133111eb) & MASK64
+    return z ^ (z >> 31)
 
-    # Sort each partition
-    for index in partitions:
-        partitions[index].sort()
+def hash_word(word):
+    """Hashes a word by its UTF-16 code units (as Java sees a String) to 64 bits"""
+    h = FNV_OFFSET
+    data = word.encode('utf-16-be')
+    for (unit,) in struct.iter_unpack('>H', data):
+        h = ((h ^ unit) * FNV_PRIME) & MASK64
+    return mix(h)
 
-    return partitions
+def reduce(h, n):
+    """Maps the upper 32 bits of a 64-bit hash onto [0, n)"""
+    return ((h >> 32) * n) >> 32
 
-def write_db(parts, outfile):
-    conn = sqlite3.connect(outfile)
-    conn.execute('CREATE TABLE blacklist (first_letter character(1), length integer, suffix varchar(255))')
-    conn.execute('CREATE INDEX idx ON blacklist (first_letter, length)')
+def slot_for(h, seed_index, n):
+    return reduce(mix((h + SLOT_SEED * (seed_index + 1)) & MASK64), n)
 
-    rows = []
-    for i in parts:
-        # Add all passwords in the part as a separate row
-        for password in parts[i]:
-            rows.append((i[0], i[1], password))
+def fingerprint(h):
+    f = mix(h ^ FINGERPRINT_SEED) & MASK32
+    return f - (1 << 32) if f >= (1 << 31) else f
 
-    c = conn.cursor()
-    c.executemany('INSERT INTO blacklist VALUES (?,?,?)', rows)
-    conn.commit()
-    conn.close()
+def build_bloom(hashes, m, k):
+    """Builds a Bloom filter of m bits with k hash functions (by double hashing)"""
+    words = [0] * (m // 64)
+    for h in hashes:
+        b = mix(h ^ BLOOM_SEED)
+        h1 = b & MASK32
+        h2 = b >> 32
+        for i in range(k):
+            bit = (((h1 + i * h2) & MASK32) * m) >> 32
+            words[bit >> 6] |= 1 << (bit & 63)
+    return words
+
+def build_mph(hashes):
+    """Builds a minimal perfect hash of the hashes by hashing and displacing buckets"""
+    n = len(hashes)
+    r = max(1, n // KEYS_PER_BUCKET)
+
+    buckets = [[] for _ in range(r)]
+    for h in hashes:
+        buckets[reduce(mix(h ^ BUCKET_SEED), r)].append(h)
+
+    displacements = [0] * r
+    taken = [False] * n
+    fingerprints = [0] * n
+
+    # Place the largest buckets first, while there are the most free slots
+    order = sorted(range(r), key=lambda b: len(buckets[b]), reverse=True)
+    free = None
+    for b in order:
+        bucket = buckets[b]
+        if not bucket:
+            break
+
+        if len(bucket) == 1:
+            # Single keys go straight into a free slot, which we store directly
+            if free is None:
+                free = [s for s in range(n) if not taken[s]]
+            slot = free.pop()
+            taken[slot] = True
+            displacements[b] = -(slot + 1)
+            fingerprints[slot] = fingerprint(bucket[0])
+            continue
+
+        seed_index = 0
+        while True:
+            slots = [slot_for(h, seed_index, n) for h in bucket]
+            if len(set(slots)) == len(slots) and not any(taken[s] for s in slots):
+                break
+            seed_index += 1
+
+        displacements[b] = seed_index
+        for h, slot in zip(bucket, slots):
+            taken[slot] = True
+            fingerprints[slot] = fingerprint(h)
+
+    return r, displacements, fingerprints
+
+def write_blacklist(words, outfile):
+    hashes = sorted(set(hash_word(word) for word in words))
+    n = len(hashes)
+    m = max(64, (n * BLOOM_BITS_PER_KEY + 63) // 64 * 64)
+
+    bloom = build_bloom(hashes, m, BLOOM_HASHES)
+    r, displacements, fingerprints = build_mph(hashes)
+
+    with open(outfile, 'wb') as fh:
+        fh.write(struct.pack('>6I', MAGIC, VERSION, n, m, BLOOM_HASHES, r))
+        fh.write(struct.pack('>%dQ' % len(bloom), *bloom))
+        fh.write(struct.pack('>%di' % r, *displacements))
+        fh.write(struct.pack('>%di' % n, *fingerprints))
 
 def main():
     if len(sys.argv) != 3:
@@ -66,14 +149,11 @@ def main():
         words = fh.read()
 
     # Split words by line and eliminate blank lines
-    words = [ x.strip() for x in words.split("\n") if x ]
-    
-    # Generate partitions
-    parts = gen_partitions(words)
+    words = [ x.strip() for x in words.split("\n") if x.strip() ]
 
-    # Write DB
-    write_db(parts, outfile)
+    # Write blacklist
+    write_blacklist(words, outfile)
     print("Blacklist written to {}!".format(outfile))
-    
+
 if __name__ == "__main__":
     main()